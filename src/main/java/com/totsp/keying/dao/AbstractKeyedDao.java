@@ -23,15 +23,32 @@ import com.google.appengine.api.memcache.MemcacheServiceException;
 import com.google.apphosting.api.ApiProxy;
 import com.google.common.base.Function;
 import com.google.common.base.Strings;
+import com.google.common.collect.AbstractIterator;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ListeningExecutorService;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.googlecode.objectify.Key;
 import com.googlecode.objectify.Objectify;
 import com.googlecode.objectify.cmd.Query;
+import com.totsp.keying.util.CircuitBreaker;
 import com.totsp.keying.util.RetryHandler;
+import com.totsp.keying.util.RetryStats;
+import com.totsp.keying.util.interfaces.RetryBuilderBuild;
 
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
 import java.io.Serializable;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.ConcurrentModificationException;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.TimeUnit;
 import java.util.logging.Logger;
 
@@ -46,18 +63,29 @@ public abstract class AbstractKeyedDao<T extends Serializable, K extends Seriali
 
     private static int ERROR_TRY_NUM = 3;
     private static final int ERROR_BACKOFF_MILLIS = 250;
+    private static final int ERROR_MAX_BACKOFF_MILLIS = 2000;
+    private static final double ERROR_RETRY_RATIO = 0.1;
+    private static final int ERROR_RETRY_BURST = 10;
+    private static final int WRITE_BATCH_SIZE = 500;
+    private static final int READ_BATCH_SIZE = 1000;
+    private static final int BATCHES_IN_FLIGHT = 4;
+
+    /**
+     * The time left in the current App Engine request, if there is one.
+     */
+    protected static final RetryHandler.Deadline REQUEST_DEADLINE = new RetryHandler.Deadline() {
+        @Override
+        public long remainingMillis() {
+            ApiProxy.Environment environment = ApiProxy.getCurrentEnvironment();
+            return environment == null ? Long.MAX_VALUE : environment.getRemainingMillis();
+        }
+    };
+    private static final ConcurrentMap<String, CircuitBreaker> KIND_BREAKERS = new ConcurrentHashMap<>();
     protected Logger logger = Logger.getLogger(this.getClass().getName());
     /**
      * The retryHandler that will be used to check exceptions.
      */
-    @SuppressWarnings("unchecked")
-    protected RetryHandler retryHandler = RetryHandler.Builder
-            .retryTimes(ERROR_TRY_NUM)
-            .every(ERROR_BACKOFF_MILLIS, TimeUnit.MILLISECONDS)
-            .withBackoffStrategy(RetryHandler.Builder.EXPONENTIAL)
-            .forExceptions(ApiProxy.RPCFailedException.class, MemcacheServiceException.class,
-                    DatastoreTimeoutException.class, DatastoreFailureException.class, ConcurrentModificationException.class)
-            .build();
+    protected RetryHandler retryHandler = defaultRetryHandler(null);
     /**
      * The class type this DAO is for.
      */
@@ -120,6 +148,246 @@ public abstract class AbstractKeyedDao<T extends Serializable, K extends Seriali
         }
     }
 
+    /**
+     * Builds the default retry policy.
+     * @param breaker circuit breaker for the handler, or null for none.
+     * @return a new RetryHandler.
+     */
+    @SuppressWarnings("unchecked")
+    protected static RetryHandler defaultRetryHandler(@Nullable CircuitBreaker breaker) {
+        RetryBuilderBuild builder = RetryHandler.Builder
+                .retryTimes(ERROR_TRY_NUM)
+                .every(ERROR_BACKOFF_MILLIS, TimeUnit.MILLISECONDS)
+                .withBackoffStrategy(RetryHandler.Builder.jittered(RetryHandler.Builder.cappedExponential(ERROR_MAX_BACKOFF_MILLIS)))
+                .forExceptions(ApiProxy.RPCFailedException.class, MemcacheServiceException.class,
+                        DatastoreTimeoutException.class, DatastoreFailureException.class, ConcurrentModificationException.class)
+                .withRetryBudget(ERROR_RETRY_RATIO, ERROR_RETRY_BURST)
+                .withDeadline(REQUEST_DEADLINE);
+        if (breaker != null) {
+            builder = builder.withCircuitBreaker(breaker);
+        }
+        return builder.build();
+    }
+
+    /**
+     * Replaces the retryHandler with the default policy guarded by a circuit breaker.
+     * @param breaker the breaker, such as kindCircuitBreaker().
+     */
+    protected void useCircuitBreaker(@Nonnull CircuitBreaker breaker) {
+        retryHandler = defaultRetryHandler(checkNotNull(breaker));
+    }
+
+    /**
+     * @return the default circuit breaker shared by every DAO of this entity kind.
+     */
+    protected CircuitBreaker kindCircuitBreaker() {
+        String kind = Key.getKind(clazz);
+        CircuitBreaker breaker = KIND_BREAKERS.get(kind);
+        if (breaker == null) {
+            CircuitBreaker created = CircuitBreaker.Builder.named(kind).build();
+            breaker = KIND_BREAKERS.putIfAbsent(kind, created);
+            if (breaker == null) {
+                breaker = created;
+            }
+        }
+        return breaker;
+    }
+
+    /**
+     * The number of entities saved or deleted per datastore call. The default is 500, the
+     * datastore's limit for a single write.
+     * @return the batch size.
+     */
+    protected int writeBatchSize() {
+        return WRITE_BATCH_SIZE;
+    }
+
+    /**
+     * The number of batches of one operation that may be waiting on the datastore at once.
+     * @return the number of batches, 4 by default.
+     */
+    protected int maxBatchesInFlight() {
+        return BATCHES_IN_FLIGHT;
+    }
+
+    /**
+     * The number of entities loaded per datastore call. The default is 1000, the
+     * datastore's limit for a single read.
+     * @return the batch size.
+     */
+    protected int readBatchSize() {
+        return READ_BATCH_SIZE;
+    }
+
+    /**
+     * Runs an operation over the chunks of a batch. Up to maxBatchesInFlight() chunks are
+     * started at once, and their results are waited for in order. A chunk that fails is
+     * retried on its own, if retry is set; if it still fails the exception is thrown, and
+     * earlier chunks will already have been done. Each chunk is a separate call to the
+     * retryHandler, so an operation of n chunks counts as n calls towards the retry budget
+     * and in the circuit breaker's window, and a breaker that opens part way through fails
+     * the remaining chunks.
+     * @param chunks the chunks.
+     * @param operation starts the operation for a chunk.
+     * @param retry whether failed chunks may be retried.
+     * @param <C> chunk type.
+     * @param <R> result type.
+     * @return the result for each chunk, in order.
+     */
+    protected <C, R> List<R> inChunks(@Nonnull List<C> chunks, @Nonnull ChunkOperation<C, R> operation, boolean retry) {
+        checkNotNull(chunks);
+        List<R> results = new ArrayList<>(chunks.size());
+        addAll(results, chunkResults(chunks.iterator(), operation, retry));
+        return results;
+    }
+
+    /**
+     * As inChunks(), but takes the chunks from an iterator as they are needed and returns
+     * the results as they arrive. The first maxBatchesInFlight() chunks are started before
+     * this returns; each call to next() waits for one chunk and starts another. As with
+     * inChunks(), each chunk is retried, and counted by the retryHandler, as its own call.
+     * @param chunks the chunks.
+     * @param operation starts the operation for a chunk.
+     * @param retry whether failed chunks may be retried.
+     * @param <C> chunk type.
+     * @param <R> result type.
+     * @return the result for each chunk, in order.
+     */
+    protected <C, R> Iterator<R> chunkResults(@Nonnull final Iterator<C> chunks, @Nonnull final ChunkOperation<C, R> operation,
+                                              final boolean retry) {
+        checkNotNull(chunks);
+        checkNotNull(operation);
+        final int inFlight = Math.max(1, maxBatchesInFlight());
+        final ArrayDeque<C> startedChunks = new ArrayDeque<>(inFlight);
+        final ArrayDeque<Callable<R>> pending = new ArrayDeque<>(inFlight);
+        return new AbstractIterator<R>() {
+            {
+                fill();
+            }
+
+            private void fill() {
+                while (chunks.hasNext() && pending.size() < inFlight) {
+                    C chunk = chunks.next();
+                    pending.add(operation.start(chunk));
+                    startedChunks.add(chunk);
+                }
+            }
+
+            @Override
+            protected R computeNext() {
+                if (pending.isEmpty()) {
+                    return endOfData();
+                }
+                final C chunk = startedChunks.remove();
+                final Callable<R> first = pending.remove();
+                R result;
+                if (retry) {
+                    result = retryHandler.executeRuntime(new Callable<R>() {
+                        private boolean waiting = true;
+
+                        @Override
+                        public R call() throws Exception {
+                            if (waiting) {
+                                waiting = false;
+                                return first.call();
+                            }
+                            return operation.start(chunk).call();
+                        }
+                    });
+                } else {
+                    try {
+                        result = first.call();
+                    } catch (RuntimeException e) {
+                        throw e;
+                    } catch (Exception e) {
+                        throw new RuntimeException(e);
+                    }
+                }
+                fill();
+                return result;
+            }
+        };
+    }
+
+    /**
+     * @return a snapshot of the retryHandler's counters.
+     */
+    public RetryStats getRetryStats() {
+        return retryHandler.getStats();
+    }
+
+    /**
+     * The executor that completes the futures returned by async operations. The default is
+     * a shared pool of daemon threads; on App Engine, override this to use threads from
+     * ThreadManager.currentRequestThreadFactory(). Where the default pool isn't allowed to
+     * create threads, async operations fail with an IllegalStateException.
+     * @return the executor.
+     */
+    protected ListeningExecutorService asyncExecutor() {
+        return AsyncExecutorHolder.EXECUTOR;
+    }
+
+    /**
+     * Completes an operation that has already been started. On the async executor, the
+     * pending call waits for the first attempt; if that fails with an exception the
+     * retryHandler retries, operation is called for each further attempt. Backoff delays
+     * are waited on the retry timer, not on an executor thread. The App Engine
+     * environment of the calling thread is used by the executor thread while it runs.
+     * Start and retry the operation on its own asyncOfy(), since the session of ofy()
+     * belongs to the calling thread.
+     * @param pending waits for the result of the operation started by the caller.
+     * @param operation starts and waits for a new attempt, or null if the operation
+     * mustn't be retried.
+     * @param <R> result type.
+     * @return a future for the result.
+     */
+    protected <R> ListenableFuture<R> complete(@Nonnull final Callable<R> pending, @Nullable final Callable<R> operation) {
+        checkNotNull(pending);
+        final ApiProxy.Environment environment = ApiProxy.getCurrentEnvironment();
+        Callable<R> attempt = new Callable<R>() {
+            private volatile boolean started = true;
+
+            @Override
+            public R call() throws Exception {
+                ApiProxy.Environment previous = ApiProxy.getCurrentEnvironment();
+                if (environment != null) {
+                    ApiProxy.setEnvironmentForCurrentThread(environment);
+                }
+                try {
+                    if (started || operation == null) {
+                        started = false;
+                        return pending.call();
+                    }
+                    return operation.call();
+                } finally {
+                    if (previous != null) {
+                        ApiProxy.setEnvironmentForCurrentThread(previous);
+                    } else {
+                        ApiProxy.clearEnvironmentForCurrentThread();
+                    }
+                }
+            }
+        };
+        if (operation == null) {
+            return asyncExecutor().submit(attempt);
+        }
+        return retryHandler.executeAsync(attempt, asyncExecutor());
+    }
+
+    /**
+     * An operation run over the chunks of a batch by inChunks().
+     * @param <C> chunk type.
+     * @param <R> result type.
+     */
+    protected interface ChunkOperation<C, R> {
+        /**
+         * Starts the operation for a chunk, without waiting for it.
+         * @param chunk the chunk.
+         * @return waits for and returns the result.
+         */
+        Callable<R> start(C chunk);
+    }
+
     /**
      * Uses the query to build a Page of results.
      * @param query query to use.
@@ -152,6 +420,37 @@ public abstract class AbstractKeyedDao<T extends Serializable, K extends Seriali
         return new Page<>(list, newCursor);
     }
 
+    /**
+     * Uses the query to build a Page of keys, without loading the entities.
+     * @param query query to use.
+     * @param pageSize size of the page to fetch
+     * @param cursor web safe ofy cursor, or null for the first one.
+     * @return a Page of keys.
+     */
+    protected Page<Key<T>> fetchKeyPage(@Nonnull Query<T> query, int pageSize, @Nullable String cursor){
+        query = query.limit(pageSize);
+        if (!Strings.isNullOrEmpty(cursor)) {
+            query = query.startAt(Cursor.fromWebSafeString(cursor));
+        }
+
+        QueryResultIterator<Key<T>> iterator = query.keys().iterator();
+        ArrayList<Key<T>> list = new ArrayList<>(pageSize);
+        String newCursor = null;
+        addAll(list, iterator);
+
+        if (list.size() == pageSize) {
+            Cursor c = iterator.getCursor();
+            if (c != null) {
+                String webSafeCursor = c.toWebSafeString();
+                if(webSafeCursor!=null && !webSafeCursor.equals(cursor)){
+                    newCursor = webSafeCursor;
+                }
+            }
+        }
+
+        return new Page<>(list, newCursor);
+    }
+
     /**
      * Applies the parameters necessary for a "startsWith" operatio to the query.
      * @param q query to append.
@@ -174,6 +473,24 @@ public abstract class AbstractKeyedDao<T extends Serializable, K extends Seriali
         return OfyService.ofy();
     }
 
+    /**
+     * The Objectify used for each batch of a streaming read. The default begins a new
+     * session, so the entities read aren't held in the session cache of ofy().
+     * @return an Objectify instance.
+     */
+    protected Objectify streamingOfy() {
+        return OfyService.factory().begin();
+    }
+
+    /**
+     * The Objectify used by an async operation, for its first attempt on the calling thread
+     * and for its retries on the executor. The default begins a new session for each operation.
+     * @return an Objectify instance.
+     */
+    protected Objectify asyncOfy() {
+        return OfyService.factory().begin();
+    }
+
     /**
      * Counts the number of entities keys in the datastore for this type up to
      * the limit.
@@ -222,5 +539,33 @@ public abstract class AbstractKeyedDao<T extends Serializable, K extends Seriali
         }
     }
 
+    private static class AsyncExecutorHolder {
+        static final ListeningExecutorService EXECUTOR = MoreExecutors.listeningDecorator(
+                Executors.newCachedThreadPool(new AsyncThreadFactory(new ThreadFactoryBuilder()
+                        .setDaemon(true)
+                        .setNameFormat("keying-dao-%d")
+                        .build())));
+    }
 
+    /**
+     * Turns the SecurityException thrown where threads can't be created, as on App Engine
+     * standard, into an error that says what to do about it.
+     */
+    private static class AsyncThreadFactory implements ThreadFactory {
+        private final ThreadFactory delegate;
+
+        AsyncThreadFactory(ThreadFactory delegate) {
+            this.delegate = delegate;
+        }
+
+        @Override
+        public Thread newThread(@Nonnull Runnable runnable) {
+            try {
+                return delegate.newThread(runnable);
+            } catch (SecurityException e) {
+                throw new IllegalStateException("The default async executor can't create threads here. "
+                        + "Override asyncExecutor() to use ThreadManager.currentRequestThreadFactory() on App Engine.", e);
+            }
+        }
+    }
 }
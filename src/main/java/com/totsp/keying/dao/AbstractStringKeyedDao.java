@@ -16,15 +16,29 @@
 package com.totsp.keying.dao;
 
 import com.google.common.base.Function;
+import com.google.common.collect.ForwardingIterator;
+import com.google.common.collect.Iterators;
+import com.google.common.collect.Lists;
+import com.google.common.util.concurrent.ListenableFuture;
 import com.googlecode.objectify.Key;
 import com.googlecode.objectify.LoadResult;
 import com.googlecode.objectify.NotFoundException;
+import com.googlecode.objectify.Objectify;
+import com.googlecode.objectify.Result;
+import com.googlecode.objectify.cmd.Query;
 
 import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
 import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.concurrent.Callable;
 
+import static com.google.common.base.Preconditions.checkArgument;
 import static com.google.common.base.Preconditions.checkNotNull;
 import static com.google.common.collect.Iterables.transform;
 
@@ -92,11 +106,11 @@ public class AbstractStringKeyedDao<T extends Serializable> extends AbstractKeye
                 return retryHandler.executeRuntime(new Callable<Key<R>>() {
                     @Override
                     public Key<R> call() throws Exception {
-                        return saveImpl(entity);
+                        return saveImpl(ofy(), entity);
                     }
                 });
             } else {
-                return saveImpl(entity);
+                return saveImpl(ofy(), entity);
             }
         } finally {
             afterOperation();
@@ -104,46 +118,63 @@ public class AbstractStringKeyedDao<T extends Serializable> extends AbstractKeye
     }
 
     @SuppressWarnings("unchecked")
-    private <R extends T> Key<R> saveImpl(R entity) {
+    private <R extends T> Key<R> saveImpl(Objectify ofy, R entity) {
         R value = KeyGenerator.key(entity);
         value = (R) preSaveHook.apply(value);
-        return ofy().save().entity(value).now();
+        return ofy.save().entity(value).now();
     }
 
     /**
-     * save or update entities in datastore entities must be of a type registered with the injected objectify factory
+     * save or update entities in datastore entities must be of a type registered with the injected objectify factory.
+     * Entities are saved in batches of writeBatchSize(), several at once; a batch that fails is retried on its own.
      *
      * @param entities Iterable of entities to save.
      * @return a map of the saved entities mapped to their datastore keys
      */
     @Override
+    @SuppressWarnings("unchecked")
     public <R extends T> Map<Key<R>, R> save(@Nonnull final Iterable<R> entities) {
         checkNotNull(entities);
         beforeOperation();
         try {
             //Only retry saves if the entity has a key or the key is
             //deterministic to try and avoid dupes.
-            if (KeyGenerator.haveKeys(entities)) {
-                return retryHandler.executeRuntime(new Callable<Map<Key<R>, R>>() {
-                    @Override
-                    public Map<Key<R>, R> call() throws Exception {
-                        return saveAllImpl(entities);
-                    }
-                });
-            } else {
-                return saveAllImpl(entities);
+            boolean retry = KeyGenerator.haveKeys(entities);
+            List<R> values = Lists.newArrayList((Iterable<R>) transform(KeyGenerator.keyAll(entities), preSaveHook));
+            List<Map<Key<R>, R>> saved = inChunks(Lists.partition(values, writeBatchSize()),
+                    new ChunkOperation<List<R>, Map<Key<R>, R>>() {
+                        @Override
+                        public Callable<Map<Key<R>, R>> start(List<R> chunk) {
+                            return waitFor(ofy().save().entities(chunk));
+                        }
+                    }, retry);
+            if (saved.size() == 1) {
+                return saved.get(0);
+            }
+            Map<Key<R>, R> result = new LinkedHashMap<>(values.size() * 4 / 3 + 1);
+            for (Map<Key<R>, R> chunk : saved) {
+                result.putAll(chunk);
             }
+            return result;
         } finally {
             afterOperation();
         }
     }
 
+    private static <V> Callable<V> waitFor(final Result<V> result) {
+        return new Callable<V>() {
+            @Override
+            public V call() throws Exception {
+                return result.now();
+            }
+        };
+    }
+
     @SuppressWarnings("unchecked")
-    private <R extends T> Map<Key<R>, R> saveAllImpl(final Iterable<R> entities) {
-        @SuppressWarnings("unchecked")
-        Iterable<R> values = transform(entities, (Function<? super R, ? extends R>) KeyGenerator.KEYING_FUNCTION);
+    private <R extends T> Map<Key<R>, R> saveAllImpl(Objectify ofy, final Iterable<R> entities) {
+        Iterable<R> values = KeyGenerator.keyAll(entities);
         values = (Iterable<R>) transform(values, preSaveHook);
-        return ofy().save().entities(values).now();
+        return ofy.save().entities(values).now();
     }
 
 
@@ -168,7 +199,8 @@ public class AbstractStringKeyedDao<T extends Serializable> extends AbstractKeye
 
     /**
      * /**
-     * get entities from datastore that match against the passed in collection of ids
+     * get entities from datastore that match against the passed in collection of ids. The ids are loaded in batches of
+     * readBatchSize(), several at once; a batch that fails is retried on its own.
      *
      * @param ids the set of String or Long ids matching against those entities to be retrieved from the datastore
      * @return all entities that match on the collection of ids. no error is thrown for entities not found in datastore.
@@ -178,41 +210,127 @@ public class AbstractStringKeyedDao<T extends Serializable> extends AbstractKeye
         checkNotNull(ids);
         beforeOperation();
         try {
-            return this.retryHandler.executeRuntime(new Callable<Map<String, T>>() {
+            List<String> idList = Lists.newArrayList(ids);
+            return merge(inChunks(Lists.partition(idList, readBatchSize()), new IdLoad(false), true), idList.size());
+        } finally {
+            afterOperation();
+        }
+    }
+
+    @Override
+    public Iterator<Map.Entry<String, T>> iterateByIds(@Nonnull Iterable<String> ids) {
+        checkNotNull(ids);
+        beforeOperation();
+        try {
+            Iterator<Map<String, T>> batches = inOperation(chunkResults(
+                    Iterators.partition(ids.iterator(), readBatchSize()), new IdLoad(true), true));
+            return Iterators.concat(Iterators.transform(batches, new Function<Map<String, T>, Iterator<Map.Entry<String, T>>>() {
                 @Override
-                public Map<String, T> call() throws Exception {
-                    Map<String, T> result = ofy().load().type(clazz).ids(ids);
-                    applyPreReturnHook(result.values());
-                    return result;
+                public Iterator<Map.Entry<String, T>> apply(Map<String, T> batch) {
+                    return batch.entrySet().iterator();
                 }
-            });
+            }));
         } finally {
             afterOperation();
         }
     }
 
+    /**
+     * Runs beforeOperation() and afterOperation() around each step of an iterator that loads
+     * chunks as it advances, as they are around the chunks loaded before it's returned.
+     */
+    private <E> Iterator<E> inOperation(final Iterator<E> iterator) {
+        return new ForwardingIterator<E>() {
+            @Override
+            protected Iterator<E> delegate() {
+                return iterator;
+            }
+
+            @Override
+            public boolean hasNext() {
+                beforeOperation();
+                try {
+                    return super.hasNext();
+                } finally {
+                    afterOperation();
+                }
+            }
+
+            @Override
+            public E next() {
+                beforeOperation();
+                try {
+                    return super.next();
+                } finally {
+                    afterOperation();
+                }
+            }
+        };
+    }
+
+    private static <K, V> Map<K, V> merge(List<Map<K, V>> batches, int size) {
+        if (batches.size() == 1) {
+            return batches.get(0);
+        }
+        Map<K, V> result = new LinkedHashMap<>(size * 4 / 3 + 1);
+        for (Map<K, V> batch : batches) {
+            result.putAll(batch);
+        }
+        return result;
+    }
+
+    /**
+     * Loads a batch of ids.
+     */
+    private class IdLoad implements ChunkOperation<List<String>, Map<String, T>> {
+        private final boolean streaming;
+
+        IdLoad(boolean streaming) {
+            this.streaming = streaming;
+        }
+
+        @Override
+        public Callable<Map<String, T>> start(List<String> chunk) {
+            final Map<String, T> started = (streaming ? streamingOfy() : ofy()).load().type(clazz).ids(chunk);
+            return new Callable<Map<String, T>>() {
+                @Override
+                public Map<String, T> call() throws Exception {
+                    applyPreReturnHook(started.values());
+                    return started;
+                }
+            };
+        }
+    }
+
 
     /**
-     * get entities from datastore that match against the passed in collection of keys
+     * get entities from datastore that match against the passed in collection of keys. The keys are loaded in batches
+     * of readBatchSize(), several at once; a batch that fails is retried on its own.
      *
      * @param keys the set of keys matching against those entities to be retrieved from the datastore
      * @return all entities that match on the collection of keys. no error is thrown for entities not found in
      * datastore.
      */
     @Override
-    @SuppressWarnings("unchecked")
     public <R extends T> Map<Key<R>, R> findByKeys(@Nonnull final Iterable<Key<R>> keys) {
         checkNotNull(keys);
         beforeOperation();
         try {
-            return this.retryHandler.executeRuntime(new Callable<Map<Key<R>, R>>() {
+            List<Key<R>> keyList = Lists.newArrayList(keys);
+            return merge(inChunks(Lists.partition(keyList, readBatchSize()), new ChunkOperation<List<Key<R>>, Map<Key<R>, R>>() {
                 @Override
-                public Map<Key<R>, R> call() throws Exception {
-                    Map<Key<R>, R> result = ofy().load().keys(keys);
-                    applyPreReturnHook((Iterable<T>) result.values());
-                    return result;
+                public Callable<Map<Key<R>, R>> start(List<Key<R>> chunk) {
+                    final Map<Key<R>, R> started = ofy().load().keys(chunk);
+                    return new Callable<Map<Key<R>, R>>() {
+                        @Override
+                        @SuppressWarnings("unchecked")
+                        public Map<Key<R>, R> call() throws Exception {
+                            applyPreReturnHook((Iterable<T>) started.values());
+                            return started;
+                        }
+                    };
                 }
-            });
+            }, true), keyList.size());
         } finally {
             afterOperation();
         }
@@ -243,7 +361,8 @@ public class AbstractStringKeyedDao<T extends Serializable> extends AbstractKeye
 
     /**
      * delete entities from datastore that match against the passed in collection entities must be of a type registered
-     * with the injected objectify factory
+     * with the injected objectify factory. Entities are deleted in batches of writeBatchSize(), several at once; a batch
+     * that fails is retried on its own.
      *
      * @param entities Iterable of entities to delete.
      */
@@ -252,15 +371,15 @@ public class AbstractStringKeyedDao<T extends Serializable> extends AbstractKeye
         checkNotNull(entities);
         beforeOperation();
         try {
-            this.retryHandler.executeRuntime(new Callable<Object>() {
+            @SuppressWarnings("unchecked")
+            Iterable<T> keyed = transform(entities, (Function<? super T, ? extends T>) KeyGenerator.KEYING_FUNCTION);
+            List<T> values = Lists.newArrayList(transform(keyed, preSaveHook));
+            inChunks(Lists.partition(values, writeBatchSize()), new ChunkOperation<List<T>, Void>() {
                 @Override
-                public Object call() throws Exception {
-                    @SuppressWarnings("unchecked")
-                    Iterable<T> finalEntities = transform(entities, (Function<? super T, ? extends T>) KeyGenerator.KEYING_FUNCTION);
-                    finalEntities = transform(finalEntities, preSaveHook);
-                    return ofy().delete().entities(finalEntities).now();
+                public Callable<Void> start(List<T> chunk) {
+                    return waitFor(ofy().delete().entities(chunk));
                 }
-            });
+            }, true);
         } finally {
             afterOperation();
         }
@@ -268,7 +387,8 @@ public class AbstractStringKeyedDao<T extends Serializable> extends AbstractKeye
 
     /**
      * delete entities from datastore that match against the passed in collection keys must be of a type string with the
-     * injected objectify factory
+     * injected objectify factory. Entities are deleted in batches of writeBatchSize(), several at once; a batch that
+     * fails is retried on its own.
      * <p/>
      *
      * @param stringKeys the keys to delete
@@ -278,9 +398,297 @@ public class AbstractStringKeyedDao<T extends Serializable> extends AbstractKeye
         checkNotNull(stringKeys);
         beforeOperation();
         try {
-            ofy().delete().type(clazz).ids(stringKeys).now();
+            inChunks(Lists.partition(Lists.newArrayList(stringKeys), writeBatchSize()), new ChunkOperation<List<String>, Void>() {
+                @Override
+                public Callable<Void> start(List<String> chunk) {
+                    return waitFor(ofy().delete().type(clazz).ids(chunk));
+                }
+            }, true);
+        } finally {
+            afterOperation();
+        }
+    }
+
+    @Override
+    public ListenableFuture<T> findByIdAsync(@Nonnull final String id) {
+        checkNotNull(id);
+        beforeOperation();
+        try {
+            final Objectify session = asyncOfy();
+            final LoadResult<T> started = session.load().key(Key.create(clazz, id));
+            return complete(new Callable<T>() {
+                @Override
+                public T call() throws Exception {
+                    return found(started);
+                }
+            }, new Callable<T>() {
+                @Override
+                public T call() throws Exception {
+                    return found(session.load().key(Key.create(clazz, id)));
+                }
+            });
+        } finally {
+            afterOperation();
+        }
+    }
+
+    private T found(LoadResult<T> result) {
+        T value = result.now();
+        if (value == null) {
+            throw new NotFoundException();
+        }
+        return preReturnHook.apply(value);
+    }
+
+    @Override
+    public ListenableFuture<Map<String, T>> findByIdsAsync(@Nonnull final Iterable<String> ids) {
+        checkNotNull(ids);
+        beforeOperation();
+        try {
+            final Objectify session = asyncOfy();
+            final Map<String, T> started = session.load().type(clazz).ids(ids);
+            return complete(new Callable<Map<String, T>>() {
+                @Override
+                public Map<String, T> call() throws Exception {
+                    applyPreReturnHook(started.values());
+                    return started;
+                }
+            }, new Callable<Map<String, T>>() {
+                @Override
+                public Map<String, T> call() throws Exception {
+                    Map<String, T> result = session.load().type(clazz).ids(ids);
+                    applyPreReturnHook(result.values());
+                    return result;
+                }
+            });
+        } finally {
+            afterOperation();
+        }
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public <R extends T> ListenableFuture<Key<R>> saveAsync(@Nonnull final R entity) {
+        checkNotNull(entity);
+        beforeOperation();
+        try {
+            final Objectify session = asyncOfy();
+            //Only retry saves if the entity has a key or the key is
+            //deterministic to try and avoid dupes.
+            boolean retry = KeyGenerator.hasKey(entity);
+            final Result<Key<R>> started = session.save().entity((R) preSaveHook.apply(KeyGenerator.key(entity)));
+            return complete(new Callable<Key<R>>() {
+                @Override
+                public Key<R> call() throws Exception {
+                    return started.now();
+                }
+            }, !retry ? null : new Callable<Key<R>>() {
+                @Override
+                public Key<R> call() throws Exception {
+                    return saveImpl(session, entity);
+                }
+            });
+        } finally {
+            afterOperation();
+        }
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public <R extends T> ListenableFuture<Map<Key<R>, R>> saveAsync(@Nonnull final Iterable<R> entities) {
+        checkNotNull(entities);
+        beforeOperation();
+        try {
+            final Objectify session = asyncOfy();
+            boolean retry = KeyGenerator.haveKeys(entities);
+            Iterable<R> values = (Iterable<R>) transform(KeyGenerator.keyAll(entities), preSaveHook);
+            final Result<Map<Key<R>, R>> started = session.save().entities(values);
+            return complete(new Callable<Map<Key<R>, R>>() {
+                @Override
+                public Map<Key<R>, R> call() throws Exception {
+                    return started.now();
+                }
+            }, !retry ? null : new Callable<Map<Key<R>, R>>() {
+                @Override
+                public Map<Key<R>, R> call() throws Exception {
+                    return saveAllImpl(session, entities);
+                }
+            });
+        } finally {
+            afterOperation();
+        }
+    }
+
+    @Override
+    public ListenableFuture<Void> deleteAsync(@Nonnull final String id) {
+        checkNotNull(id);
+        beforeOperation();
+        try {
+            final Objectify session = asyncOfy();
+            final Result<Void> started = session.delete().type(clazz).id(id);
+            return complete(new Callable<Void>() {
+                @Override
+                public Void call() throws Exception {
+                    return started.now();
+                }
+            }, new Callable<Void>() {
+                @Override
+                public Void call() throws Exception {
+                    return session.delete().type(clazz).id(id).now();
+                }
+            });
+        } finally {
+            afterOperation();
+        }
+    }
+
+    @Override
+    public ListenableFuture<Void> deleteAllAsync(@Nonnull Iterable<T> entities) {
+        checkNotNull(entities);
+        beforeOperation();
+        try {
+            final Objectify session = asyncOfy();
+            @SuppressWarnings("unchecked")
+            Iterable<T> keyed = transform(entities, (Function<? super T, ? extends T>) KeyGenerator.KEYING_FUNCTION);
+            final List<T> values = Lists.newArrayList(transform(keyed, preSaveHook));
+            final Result<Void> started = session.delete().entities(values);
+            return complete(new Callable<Void>() {
+                @Override
+                public Void call() throws Exception {
+                    return started.now();
+                }
+            }, new Callable<Void>() {
+                @Override
+                public Void call() throws Exception {
+                    return session.delete().entities(values).now();
+                }
+            });
+        } finally {
+            afterOperation();
+        }
+    }
+
+    @Override
+    public List<T> findAcrossShards(@Nonnull final String from, @Nonnull final String to, final int limit) {
+        checkNotNull(from);
+        checkNotNull(to);
+        final List<String> prefixes = KeyGenerator.shardPrefixes(clazz);
+        checkArgument(!prefixes.isEmpty(), "The key strategy of %s doesn't start with a SHARD segment", clazz.getCanonicalName());
+        beforeOperation();
+        try {
+            return this.retryHandler.executeRuntime(new Callable<List<T>>() {
+                @Override
+                public List<T> call() throws Exception {
+                    List<Iterator<T>> shards = new ArrayList<>(prefixes.size());
+                    for(String prefix : prefixes){
+                        // Creating each iterator starts its query, so the shards are
+                        // fetched concurrently rather than one after another.
+                        shards.add(ofy().load().type(clazz)
+                                .filterKey(">=", Key.create(clazz, prefix + from))
+                                .filterKey("<", Key.create(clazz, prefix + to))
+                                .limit(limit)
+                                .iterator());
+                    }
+                    final int prefixLength = prefixes.get(0).length();
+                    Iterator<T> merged = Iterators.mergeSorted(shards, new Comparator<T>() {
+                        @Override
+                        public int compare(T o1, T o2) {
+                            return Key.create(o1).getName().substring(prefixLength)
+                                    .compareTo(Key.create(o2).getName().substring(prefixLength));
+                        }
+                    });
+                    ArrayList<T> result = new ArrayList<>(limit);
+                    Iterators.addAll(result, Iterators.transform(Iterators.limit(merged, limit), preReturnHook));
+                    return result;
+                }
+            });
+        } finally {
+            afterOperation();
+        }
+    }
+
+    @Override
+    public List<T> findAcrossShards(@Nonnull String prefix, int limit) {
+        checkNotNull(prefix);
+        return findAcrossShards(prefix, prefix + LAST_UNICODE_CHARACTER, limit);
+    }
+
+    @Override
+    public Page<T> findByKeyPrefix(final int pageSize, @Nullable final String cursor, Object... leadingValues) {
+        checkArgument(pageSize > 0, "pageSize must be positive: %s", pageSize);
+        final String[] range = prefixRange(leadingValues);
+        beforeOperation();
+        try {
+            return this.retryHandler.executeRuntime(new Callable<Page<T>>() {
+                @Override
+                public Page<T> call() throws Exception {
+                    return fetchPage(keyRange(range[0], range[1]), pageSize, cursor);
+                }
+            });
+        } finally {
+            afterOperation();
+        }
+    }
+
+    @Override
+    public Page<Key<T>> findKeysByKeyPrefix(final int pageSize, @Nullable final String cursor, Object... leadingValues) {
+        checkArgument(pageSize > 0, "pageSize must be positive: %s", pageSize);
+        final String[] range = prefixRange(leadingValues);
+        beforeOperation();
+        try {
+            return this.retryHandler.executeRuntime(new Callable<Page<Key<T>>>() {
+                @Override
+                public Page<Key<T>> call() throws Exception {
+                    return fetchKeyPage(keyRange(range[0], range[1]), pageSize, cursor);
+                }
+            });
         } finally {
             afterOperation();
         }
     }
+
+    /**
+     * The key range of the leading values: every key starting with their prefix, or only
+     * the key itself when the values cover the whole key, so "Robert", "Smith" doesn't
+     * also find "Robert:Smithers".
+     */
+    private String[] prefixRange(Object[] leadingValues){
+        String[] range = KeyGenerator.prefixRange(clazz, leadingValues);
+        if(range[1] == null){
+            range[1] = range[0] + LAST_UNICODE_CHARACTER;
+        }
+        return range;
+    }
+
+    @Override
+    public Page<T> findByTimeRange(@Nonnull Object[] prefixValues, long from, long to, final int pageSize,
+                                   @Nullable final String cursor) {
+        checkNotNull(prefixValues);
+        checkArgument(pageSize > 0, "pageSize must be positive: %s", pageSize);
+        String[] range = KeyGenerator.timeRange(clazz, from, to, prefixValues);
+        final String low = range[0];
+        final String high = range[1] == null ? KeyGenerator.keyPrefix(clazz, prefixValues) + LAST_UNICODE_CHARACTER : range[1];
+        beforeOperation();
+        try {
+            return this.retryHandler.executeRuntime(new Callable<Page<T>>() {
+                @Override
+                public Page<T> call() throws Exception {
+                    return fetchPage(keyRange(low, high), pageSize, cursor);
+                }
+            });
+        } finally {
+            afterOperation();
+        }
+    }
+
+    /**
+     * A query for the entities with keys from from (inclusive) to to (exclusive).
+     */
+    protected Query<T> keyRange(@Nonnull String from, @Nonnull String to){
+        Query<T> query = ofy().load().type(clazz);
+        if(!from.isEmpty()){
+            query = query.filterKey(">=", Key.create(clazz, from));
+        }
+        return query.filterKey("<", Key.create(clazz, to));
+    }
 }
@@ -0,0 +1,63 @@
+/**
+ *    Copyright 2013 Robert Cooper
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package com.totsp.keying.dao;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A snapshot of the KeyGenerator's generator cache counters.
+ */
+public class GeneratorStats {
+    private final long hits;
+    private final long misses;
+    private final long buildNanos;
+
+    GeneratorStats(long hits, long misses, long buildNanos) {
+        this.hits = hits;
+        this.misses = misses;
+        this.buildNanos = buildNanos;
+    }
+
+    /**
+     * @return lookups that found an existing generator.
+     */
+    public long getHits() {
+        return hits;
+    }
+
+    /**
+     * @return lookups that had to build a generator, including failed builds.
+     */
+    public long getMisses() {
+        return misses;
+    }
+
+    /**
+     * @return total time spent building generators.
+     */
+    public long getBuildTime(TimeUnit unit) {
+        return unit.convert(buildNanos, TimeUnit.NANOSECONDS);
+    }
+
+    @Override
+    public String toString() {
+        return "GeneratorStats{" +
+                "hits=" + hits +
+                ", misses=" + misses +
+                ", buildMillis=" + getBuildTime(TimeUnit.MILLISECONDS) +
+                '}';
+    }
+}
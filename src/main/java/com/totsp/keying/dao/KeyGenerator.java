@@ -16,10 +16,18 @@
 package com.totsp.keying.dao;
 
 import com.google.common.base.Function;
+import com.google.common.collect.Lists;
 import com.totsp.keying.definition.KeySegment;
+import com.totsp.keying.definition.KeyStrategy;
+import com.totsp.keying.definition.PropertyEncoding;
+import com.totsp.keying.definition.TimeEncoding;
+import com.totsp.keying.definition.UUIDEncoding;
+import com.totsp.keying.impl.CompiledGenerator;
 import com.totsp.keying.impl.Component;
 import com.totsp.keying.impl.Generator;
+import com.totsp.keying.impl.ParsedKey;
 import com.totsp.keying.impl.PropertyComponent;
+import com.totsp.keying.impl.ShardComponent;
 import com.totsp.keying.impl.TimeComponent;
 import com.totsp.keying.impl.UUIDComponent;
 import com.totsp.keying.reflect.KeyException;
@@ -28,11 +36,21 @@ import com.totsp.keying.reflect.Setter;
 
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
+import java.io.IOException;
 import java.io.Serializable;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
 
 import static com.google.common.base.Preconditions.checkNotNull;
 
@@ -41,7 +59,25 @@ import static com.google.common.base.Preconditions.checkNotNull;
  */
 public class KeyGenerator {
 
-    private static final Map<Class, Generator> GENERATORS = new ConcurrentHashMap<>();
+    /**
+     * When the "com.totsp.keying.compiled" system property is true, generators are compiled
+     * into method handle chains rather than walking their components reflectively.
+     */
+    public static final boolean COMPILED = Boolean.getBoolean("com.totsp.keying.compiled");
+
+    /**
+     * One slot per class, stored with the class itself so a redeployed application's
+     * classes (and their generators) can be collected.
+     */
+    private static final ClassValue<Slot> GENERATORS = new ClassValue<Slot>() {
+        @Override
+        protected Slot computeValue(Class<?> type) {
+            return new Slot(type);
+        }
+    };
+    private static final AtomicLong HITS = new AtomicLong();
+    private static final AtomicLong MISSES = new AtomicLong();
+    private static final AtomicLong BUILD_NANOS = new AtomicLong();
 
     /**
      * A function implementation to key a value.
@@ -54,6 +90,12 @@ public class KeyGenerator {
         }
     };
 
+    /**
+     * Batches at least this large are keyed in parallel by keyAll(). Set the
+     * "com.totsp.keying.parallelThreshold" system property to change it.
+     */
+    public static final int PARALLEL_THRESHOLD = Integer.getInteger("com.totsp.keying.parallelThreshold", 4096);
+
     /**
      * Gets or constructs a Generator implementation for the type of o
      * @param o Object to inspect.
@@ -62,37 +104,81 @@ public class KeyGenerator {
      */
     @SuppressWarnings("unchecked")
     private static <T> Generator<T> get(T o){
-        Generator<T> generator = GENERATORS.get(o.getClass());
+        return get((Class<T>) o.getClass());
+    }
+
+    /**
+     * Gets or constructs a Generator implementation for the type.
+     * @param type Type to lookup.
+     * @param <T> Type to lookup.
+     * @return a Generator implementation for type T.
+     */
+    @SuppressWarnings("unchecked")
+    private static <T> Generator<T> get(Class<T> type){
+        return (Generator<T>) GENERATORS.get(type).get();
+    }
+
+    /**
+     * Constructs a Generator, either the keyer generated at compile time or one built
+     * reflectively from the KeyStrategy.
+     */
+    @SuppressWarnings("unchecked")
+    private static <T> Generator<T> create(Class<T> type){
+        Generator<T> generator = KeyerRegistry.find(type);
         if(generator == null){
-            Setter<T> t = new Setter<>((Class<T>) o.getClass());
+            Setter<T> t = new Setter<>(type);
+            if(t.strategy.lowerCase() && t.strategy.timeEncoding() == TimeEncoding.BASE64){
+                throw new KeyException(type.getCanonicalName()+" cannot lower case a BASE64 time.");
+            }
+            if(t.strategy.encodings().length != 0 && t.strategy.encodings().length != t.strategy.properties().length){
+                throw new KeyException("Expected "+t.strategy.properties().length+" encodings but found "
+                        + Arrays.asList(t.strategy.encodings()));
+            }
             ArrayList<Component<T>> components = new ArrayList<>(t.strategy.value().length);
             int propertyIndex = 0;
-            Class<T> type = (Class<T>) o.getClass();
+            boolean sharded = false;
             for(KeySegment segment : t.strategy.value()){
                 switch(segment){
+                    case SHARD:
+                        if(sharded){
+                            throw new KeyException(type.getCanonicalName()+" cannot have more than one SHARD segment.");
+                        }
+                        if(t.strategy.shards() < 1){
+                            throw new KeyException(type.getCanonicalName()+" must have at least one shard.");
+                        }
+                        sharded = true;
+                        components.add(t.strategy.shardProperty().isEmpty()
+                                ? new ShardComponent<T>(t.strategy.shards())
+                                : new ShardComponent<>(t.strategy.shards(), new PropertyComponent<>(new Reader<>(type, t.strategy.shardProperty().trim()))));
+                        break;
                     case PROPERTY:
                         if(t.strategy.properties().length < propertyIndex){
                             throw new KeyException("Expected "+(propertyIndex + 1)+" properties but found only "+ Arrays.asList(t.strategy.properties()));
                         }
-                        components.add(new PropertyComponent<>(new Reader<>(type, t.strategy.properties()[propertyIndex])));
+                        PropertyEncoding encoding = t.strategy.encodings().length == 0
+                                ? PropertyEncoding.DEFAULT : t.strategy.encodings()[propertyIndex];
+                        components.add(new PropertyComponent<>(new Reader<>(type, t.strategy.properties()[propertyIndex]), encoding));
                         propertyIndex++;
                         if(t.strategy.properties().length < propertyIndex){
                             throw new KeyException("Expected "+ (propertyIndex +1) +" properties but found an extra "+(t.strategy.properties().length -1 -propertyIndex)+" "+ Arrays.asList(t.strategy.properties()));
                         }
                         break;
                     case UUID:
-                        components.add(new UUIDComponent<T>());
+                        if(t.strategy.lowerCase() && t.strategy.uuidEncoding() == UUIDEncoding.BASE64){
+                            throw new KeyException(type.getCanonicalName()+" cannot lower case a BASE64 UUID.");
+                        }
+                        components.add(new UUIDComponent<T>(t.strategy.uuidEncoding()));
                         break;
                     case TIME:
-                        components.add(new TimeComponent<T>(false));
+                        components.add(new TimeComponent<T>(false, t.strategy.monotonicTime(), t.strategy.timeEncoding()));
                         if(t.strategy.value().length == 1){
-                            throw new KeyException(o.getClass().getCanonicalName()+" cannot a a key value of only a time.");
+                            throw new KeyException(type.getCanonicalName()+" cannot a a key value of only a time.");
                         }
                         break;
                     case INVERSE_TIME:
-                        components.add(new TimeComponent<T>(true));
+                        components.add(new TimeComponent<T>(true, t.strategy.monotonicTime(), t.strategy.timeEncoding()));
                         if(t.strategy.value().length == 1){
-                            throw new KeyException(o.getClass().getCanonicalName()+" cannot a a key value of only a time.");
+                            throw new KeyException(type.getCanonicalName()+" cannot a a key value of only a time.");
                         }
                         break;
                     default:
@@ -100,11 +186,118 @@ public class KeyGenerator {
                 }
             }
             generator = new Generator<>(components.toArray(new Component[components.size()]), t, t.strategy.lowerCase());
-            GENERATORS.put(o.getClass(), generator);
+            if(COMPILED){
+                generator = CompiledGenerator.compile(generator);
+            }
         }
         return generator;
     }
 
+    /**
+     * @return the generator cache counters since the class was loaded.
+     */
+    public static GeneratorStats stats(){
+        return new GeneratorStats(HITS.get(), MISSES.get(), BUILD_NANOS.get());
+    }
+
+    /**
+     * Builds the generators for the types in parallel, so their strategies are validated
+     * and the reflection is done up front rather than on the first save.
+     * @param types Types to prepare.
+     * @return the time taken to prepare each type.
+     * @throws KeyException listing every type that couldn't be prepared. Each failure is
+     * attached as a suppressed exception.
+     */
+    public static PreloadReport preload(@Nonnull Class<?>... types){
+        checkNotNull(types);
+        return preload(Arrays.asList(types), new ArrayList<String>(), new ArrayList<Throwable>());
+    }
+
+    /**
+     * Preloads every class listed in the ofy-classes resources (the ones OfyService
+     * registers) that has a KeyStrategy.
+     * @see #preload(Class[])
+     * @return the time taken to prepare each type.
+     * @throws KeyException listing every class that couldn't be found or prepared.
+     */
+    public static PreloadReport preloadFromOfyClasses(){
+        ClassLoader loader = KeyGenerator.class.getClassLoader();
+        List<Class<?>> types = new ArrayList<>();
+        List<String> messages = new ArrayList<>();
+        List<Throwable> failures = new ArrayList<>();
+        try {
+            for(String name : OfyClasses.names(loader)){
+                try {
+                    Class<?> type = Class.forName(name, false, loader);
+                    if(hasStrategy(type)){
+                        types.add(type);
+                    }
+                } catch (ClassNotFoundException e) {
+                    messages.add(name+": class not found");
+                    failures.add(e);
+                }
+            }
+        } catch (IOException e) {
+            throw new KeyException("Failed to read "+OfyClasses.RESOURCE, e);
+        }
+        return preload(types, messages, failures);
+    }
+
+    private static PreloadReport preload(List<Class<?>> types, List<String> messages, List<Throwable> failures){
+        long start = System.nanoTime();
+        List<Callable<Long>> tasks = new ArrayList<>(types.size());
+        for(final Class<?> type : types){
+            checkNotNull(type);
+            tasks.add(new Callable<Long>() {
+                @Override
+                public Long call() throws Exception {
+                    long begin = System.nanoTime();
+                    get(type);
+                    return System.nanoTime() - begin;
+                }
+            });
+        }
+        Map<Class<?>, Long> nanos = new LinkedHashMap<>();
+        List<Future<Long>> results = PoolHolder.POOL.invokeAll(tasks);
+        for(int i = 0; i < results.size(); i++){
+            try {
+                nanos.put(types.get(i), results.get(i).get());
+            } catch (ExecutionException e) {
+                messages.add(types.get(i).getName()+": "+e.getCause().getMessage());
+                failures.add(e.getCause());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new KeyException("Interrupted while preloading generators", e);
+            }
+        }
+        if(!failures.isEmpty()){
+            StringBuilder message = new StringBuilder("Failed to prepare ").append(failures.size()).append(" generator(s):");
+            for(String m : messages){
+                message.append("\n    ").append(m);
+            }
+            KeyException exception = new KeyException(message.toString());
+            for(Throwable failure : failures){
+                exception.addSuppressed(failure);
+            }
+            throw exception;
+        }
+        return new PreloadReport(nanos, System.nanoTime() - start);
+    }
+
+    private static boolean hasStrategy(Class<?> type){
+        for(Field field : type.getDeclaredFields()){
+            if(field.isAnnotationPresent(KeyStrategy.class)){
+                return true;
+            }
+        }
+        for(Method method : type.getMethods()){
+            if(method.isAnnotationPresent(KeyStrategy.class)){
+                return true;
+            }
+        }
+        return false;
+    }
+
     /**
      * Appplies a key to the object if unkeyed and returns it.
      * @param o Object to key
@@ -115,11 +308,56 @@ public class KeyGenerator {
         checkNotNull(o);
         Generator<T> gen = get(o);
         if(!gen.keyed(o)){
-            get(o).key(o);
+            gen.key(o);
         }
         return o;
     }
 
+    /**
+     * Applies keys to all the unkeyed objects. Objects are grouped by class so each
+     * generator is looked up once, time segments are read once per class (see
+     * Generator.keyAll()), and groups of at least PARALLEL_THRESHOLD objects are keyed
+     * in parallel on a shared fork-join pool.
+     * @param values Objects to key. Null values are skipped.
+     * @param <T> Type being keyed
+     * @return a list of the values, in iteration order.
+     */
+    @SuppressWarnings("unchecked")
+    public static <T> List<T> keyAll(@Nonnull Iterable<T> values){
+        checkNotNull(values);
+        ArrayList<T> list = Lists.newArrayList(values);
+        Map<Class<?>, List<T>> byClass = new LinkedHashMap<>();
+        for(T value : list){
+            if(value == null){
+                continue;
+            }
+            List<T> group = byClass.get(value.getClass());
+            if(group == null){
+                group = new ArrayList<>();
+                byClass.put(value.getClass(), group);
+            }
+            group.add(value);
+        }
+        for(Map.Entry<Class<?>, List<T>> entry : byClass.entrySet()){
+            List<T> group = entry.getValue();
+            get((Class<T>) entry.getKey()).keyAll(group, group.size() >= PARALLEL_THRESHOLD ? PoolHolder.POOL : null);
+        }
+        return list;
+    }
+
+    /**
+     * Applies keys to all the unkeyed objects.
+     * @see #keyAll(Iterable)
+     * @param values Objects to key.
+     * @param <T> Type being keyed
+     * @return the array passed in.
+     */
+    public static <T> T[] keyAll(@Nonnull T[] values){
+        checkNotNull(values);
+        keyAll(Arrays.asList(values));
+        return values;
+    }
+
     /**
      * Determines if the object either has a key, or has a deterministic key.
      * This indicates that a save is an idempotent operation.
@@ -162,4 +400,152 @@ public class KeyGenerator {
        generator.checkDeterministic();
        return generator.compute(o);
     }
+
+    /**
+     * Computes the key an object of the type would have, from the values of its key
+     * properties, without creating the object.
+     * @param type Type to key.
+     * @param values one value per PROPERTY segment, in the order of the strategy's properties.
+     * @param <T> Type to key.
+     * @return the key compute() would return for an object with those values.
+     * @throws KeyException if the type doesn't have a deterministic key, or the values don't match it.
+     */
+    public static <T> String idFor(@Nonnull Class<T> type, Object... values){
+        checkNotNull(type);
+        return get(type).computeFrom(values);
+    }
+
+    /**
+     * Computes keys from rows of property values, as idFor() does for each row.
+     * @param type Type to key.
+     * @param rows the values of each key, as idFor() takes them.
+     * @param <T> Type to key.
+     * @return the keys, in the order of the rows.
+     * @throws KeyException if the type doesn't have a deterministic key, or a row doesn't match it.
+     */
+    public static <T> List<String> idsFor(@Nonnull Class<T> type, @Nonnull Iterable<Object[]> rows){
+        checkNotNull(type);
+        checkNotNull(rows);
+        Generator<T> generator = get(type);
+        generator.checkDeterministic();
+        List<String> ids = rows instanceof Collection ? new ArrayList<String>(((Collection<?>) rows).size()) : new ArrayList<String>();
+        for(Object[] row : rows){
+            ids.add(generator.computeFrom(row));
+        }
+        return ids;
+    }
+
+    /**
+     * Computes the start of every key of the type whose leading PROPERTY segments have
+     * these values, including the following separator.
+     * @param type Type to key.
+     * @param values values for the first properties of the strategy, in order.
+     * @param <T> Type to key.
+     * @return the key prefix.
+     * @throws KeyException if the leading segments aren't PROPERTY segments.
+     */
+    public static <T> String keyPrefix(@Nonnull Class<T> type, Object... values){
+        checkNotNull(type);
+        return get(type).keyPrefix(values);
+    }
+
+    /**
+     * Computes the key range of the keys of the type with these leading PROPERTY values.
+     * @param type Type to key.
+     * @param values values for the first properties of the strategy, in order.
+     * @param <T> Type to key.
+     * @return the key prefix as the lowest key (inclusive) and the highest key (exclusive),
+     * which is null if the range runs to the end of the prefix. If the values cover the
+     * whole key, the range holds only that key.
+     * @throws KeyException if the leading segments aren't PROPERTY segments.
+     */
+    public static <T> String[] prefixRange(@Nonnull Class<T> type, Object... values){
+        checkNotNull(type);
+        return get(type).prefixRange(values);
+    }
+
+    /**
+     * Computes the key range of the keys of the type with these leading PROPERTY values
+     * and a time in [from, to) in the next segment.
+     * @param type Type to key.
+     * @param from the earliest time in milliseconds, inclusive.
+     * @param to the latest time in milliseconds, exclusive.
+     * @param values values for the first properties of the strategy, in order.
+     * @param <T> Type to key.
+     * @return the lowest key (inclusive) and highest key (exclusive), which is null if the
+     * range runs to the end of the prefix.
+     * @throws KeyException if the segment after the values isn't TIME or INVERSE_TIME.
+     */
+    public static <T> String[] timeRange(@Nonnull Class<T> type, long from, long to, Object... values){
+        checkNotNull(type);
+        return get(type).timeRange(from, to, values);
+    }
+
+    /**
+     * Splits a key of the type back into its segments, so property values and times can
+     * be read from the key without loading the entity.
+     * @param type Type the key belongs to.
+     * @param key Key to parse.
+     * @param <T> Type the key belongs to.
+     * @return the parsed key.
+     * @throws KeyException if the key doesn't match the type's strategy.
+     */
+    public static <T> ParsedKey parse(@Nonnull Class<T> type, @Nonnull String key){
+        checkNotNull(type);
+        return get(type).parser().parse(key);
+    }
+
+    /**
+     * Lists the key prefix of every shard, for types whose key strategy starts with a
+     * SHARD segment.
+     * @param type Type to inspect.
+     * @return the shard segments followed by the separator, or an empty list.
+     */
+    public static List<String> shardPrefixes(@Nonnull Class<?> type){
+        checkNotNull(type);
+        return get(type).shardPrefixes();
+    }
+
+    /**
+     * Holds the generator for one class. The first thread to ask builds it while any
+     * others wait, so a burst of first requests builds each generator once. A failed
+     * build isn't cached, and is retried (and fails again) on the next call.
+     */
+    private static class Slot {
+        private final Class<?> type;
+        private volatile Generator<?> generator;
+
+        Slot(Class<?> type) {
+            this.type = type;
+        }
+
+        Generator<?> get(){
+            Generator<?> result = generator;
+            if(result != null){
+                HITS.incrementAndGet();
+                return result;
+            }
+            synchronized (this){
+                if(generator == null){
+                    MISSES.incrementAndGet();
+                    long start = System.nanoTime();
+                    try {
+                        generator = create(type);
+                    } finally {
+                        BUILD_NANOS.addAndGet(System.nanoTime() - start);
+                    }
+                } else {
+                    HITS.incrementAndGet();
+                }
+                return generator;
+            }
+        }
+    }
+
+    /**
+     * Lazily creates the pool used to key large batches.
+     */
+    private static class PoolHolder {
+        private static final ForkJoinPool POOL = new ForkJoinPool();
+    }
 }
@@ -0,0 +1,102 @@
+/**
+ *    Copyright 2013 Robert Cooper
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package com.totsp.keying.dao;
+
+import com.totsp.keying.impl.Generator;
+import com.totsp.keying.processor.KeyingProcessor;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.lang.reflect.InvocationTargetException;
+import java.net.URL;
+import java.nio.charset.Charset;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Finds the keyers generated by the KeyingProcessor, listed in the META-INF/keying-keyers
+ * resources visible to each entity's class loader.
+ */
+final class KeyerRegistry {
+    private static final Logger LOGGER = Logger.getLogger(KeyerRegistry.class.getCanonicalName());
+    private static final Map<ClassLoader, Map<String, String>> KEYERS = new WeakHashMap<>();
+
+    private KeyerRegistry() {
+    }
+
+    /**
+     * Instantiates the generated keyer for the type.
+     * @param type Type to key.
+     * @param <T> Type to key.
+     * @return the generated keyer, or null if there isn't one (or it can't be loaded).
+     */
+    @SuppressWarnings("unchecked")
+    static <T> Generator<T> find(Class<T> type){
+        ClassLoader loader = type.getClassLoader();
+        if(loader == null){
+            return null;
+        }
+        String keyer = keyers(loader).get(type.getName());
+        if(keyer == null){
+            return null;
+        }
+        try {
+            return (Generator<T>) Class.forName(keyer, true, loader).getDeclaredConstructor().newInstance();
+        } catch (InvocationTargetException e) {
+            LOGGER.log(Level.WARNING, "The generated keyer "+keyer+" failed to initialize, falling back to reflection.", e.getCause());
+            return null;
+        } catch (ReflectiveOperationException | ClassCastException | LinkageError e) {
+            LOGGER.log(Level.WARNING, "Failed to load the generated keyer "+keyer+", falling back to reflection.", e);
+            return null;
+        }
+    }
+
+    private static synchronized Map<String, String> keyers(ClassLoader loader){
+        Map<String, String> keyers = KEYERS.get(loader);
+        if(keyers == null){
+            keyers = read(loader);
+            KEYERS.put(loader, keyers);
+        }
+        return keyers;
+    }
+
+    private static Map<String, String> read(ClassLoader loader){
+        Map<String, String> keyers = new HashMap<>();
+        try {
+            Enumeration<URL> enu = loader.getResources(KeyingProcessor.REGISTRY);
+            while(enu.hasMoreElements()){
+                URL url = enu.nextElement();
+                try(BufferedReader reader = new BufferedReader(new InputStreamReader(url.openStream(), Charset.forName("utf-8"))) ){
+                    for(String line = reader.readLine(); line != null ; line = reader.readLine() ){
+                        int split = line.indexOf('=');
+                        if(split > 0){
+                            keyers.put(line.substring(0, split).trim(), line.substring(split + 1).trim());
+                        }
+                    }
+                }
+            }
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Failed to read "+KeyingProcessor.REGISTRY, e);
+        }
+        return keyers.isEmpty() ? Collections.<String, String>emptyMap() : keyers;
+    }
+}
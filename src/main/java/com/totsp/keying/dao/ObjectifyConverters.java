@@ -0,0 +1,75 @@
+/**
+ *    Copyright 2013 Robert Cooper
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package com.totsp.keying.dao;
+
+import com.googlecode.objectify.Key;
+import com.googlecode.objectify.Ref;
+import com.totsp.keying.impl.ValueConverter;
+import com.totsp.keying.impl.ValueConverters;
+
+/**
+ * ValueConverters for Objectify Key and Ref properties, which write a key as
+ * kind/name (or kind/id), preceded by its parents, rather than Key.toString().
+ */
+public final class ObjectifyConverters {
+
+    /**
+     * The number of distinct keys each registered converter remembers.
+     */
+    public static final int CACHE_SIZE = 4096;
+
+    /**
+     * Writes a Key as kind/name or kind/id, with any parents first: Parent/1/Child/name.
+     */
+    public static final ValueConverter<Key<?>> KEY = new ValueConverter<Key<?>>() {
+        @Override
+        public void append(StringBuilder sb, Key<?> value) {
+            if(value.getParent() != null){
+                append(sb, value.getParent());
+                sb.append('/');
+            }
+            sb.append(value.getKind()).append('/');
+            if(value.getName() != null){
+                sb.append(value.getName());
+            } else {
+                sb.append(value.getId());
+            }
+        }
+    };
+
+    /**
+     * Writes the key of a Ref as KEY does.
+     */
+    public static final ValueConverter<Ref<?>> REF = new ValueConverter<Ref<?>>() {
+        @Override
+        public void append(StringBuilder sb, Ref<?> value) {
+            KEY.append(sb, value.key());
+        }
+    };
+
+    private ObjectifyConverters() {
+    }
+
+    /**
+     * Registers memoized KEY and REF converters for Key and Ref properties. This changes
+     * the keys of existing entities with such properties, so only call it for new kinds.
+     */
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    public static void register(){
+        ValueConverters.register((Class) Key.class, ValueConverters.memoize(KEY, CACHE_SIZE));
+        ValueConverters.register((Class) Ref.class, REF);
+    }
+}
@@ -0,0 +1,61 @@
+/**
+ *    Copyright 2013 Robert Cooper
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package com.totsp.keying.dao;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.URL;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.List;
+
+/**
+ * Reads the entity class names listed in the ofy-classes resources.
+ */
+final class OfyClasses {
+
+    /**
+     * The resource listing entity classes, one binary class name per line.
+     */
+    static final String RESOURCE = "ofy-classes";
+
+    private OfyClasses() {
+    }
+
+    /**
+     * @param loader Class loader to search.
+     * @return the class names in every ofy-classes resource visible to the loader, in order.
+     * @throws IOException if a resource can't be read.
+     */
+    static List<String> names(ClassLoader loader) throws IOException {
+        List<String> names = new ArrayList<>();
+        Enumeration<URL> enu = loader.getResources(RESOURCE);
+        while(enu.hasMoreElements()){
+            URL url = enu.nextElement();
+            try(BufferedReader reader = new BufferedReader(new InputStreamReader(url.openStream(), Charset.forName("utf-8"))) ){
+                for(String line = reader.readLine(); line != null ; line = reader.readLine() ){
+                    line = line.trim();
+                    if(!line.isEmpty()){
+                        names.add(line);
+                    }
+                }
+            }
+        }
+        return names;
+    }
+}
@@ -0,0 +1,68 @@
+/**
+ *    Copyright 2013 Robert Cooper
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package com.totsp.keying.dao;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The classes prepared by KeyGenerator.preload(), and how long each took.
+ */
+public class PreloadReport {
+    private final Map<Class<?>, Long> nanos;
+    private final long elapsedNanos;
+
+    PreloadReport(Map<Class<?>, Long> nanos, long elapsedNanos) {
+        this.nanos = Collections.unmodifiableMap(nanos);
+        this.elapsedNanos = elapsedNanos;
+    }
+
+    /**
+     * @return the classes whose generators were prepared, in the order they were given.
+     */
+    public Set<Class<?>> getClasses() {
+        return nanos.keySet();
+    }
+
+    /**
+     * @return the time taken to prepare the class's generator (close to zero if it was
+     * already built), or -1 if the class wasn't preloaded.
+     */
+    public long getPreparationTime(Class<?> type, TimeUnit unit) {
+        Long time = nanos.get(type);
+        return time == null ? -1 : unit.convert(time, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * @return the wall clock time of the whole preload.
+     */
+    public long getElapsedTime(TimeUnit unit) {
+        return unit.convert(elapsedNanos, TimeUnit.NANOSECONDS);
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder("PreloadReport{elapsedMillis=")
+                .append(getElapsedTime(TimeUnit.MILLISECONDS));
+        for(Map.Entry<Class<?>, Long> entry : nanos.entrySet()){
+            sb.append(", ").append(entry.getKey().getName()).append('=')
+                    .append(TimeUnit.NANOSECONDS.toMicros(entry.getValue())).append("us");
+        }
+        return sb.append('}').toString();
+    }
+}
@@ -15,10 +15,136 @@
  */
 package com.totsp.keying.dao;
 
+import com.google.common.util.concurrent.ListenableFuture;
+import com.googlecode.objectify.Key;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
 import java.io.Serializable;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
 
 /**
  *  A base interface for DAOs for Stirng keyed entities.
  */
 public interface StringKeyedDao<T extends Serializable> extends KeyedDao<T, String> {
+
+    /**
+     * For types whose key strategy starts with a SHARD segment, finds the entities whose
+     * keys, less the shard, are in a range. Every shard is queried and the results are
+     * merged into the order of the unsharded keys.
+     *
+     * @param from the lowest key (without the shard segment) to return, inclusive.
+     * @param to the highest key (without the shard segment) to return, exclusive.
+     * @param limit the maximum number of entities to return.
+     * @return the entities, in order.
+     */
+    public List<T> findAcrossShards(@Nonnull String from, @Nonnull String to, int limit);
+
+    /**
+     * For types whose key strategy starts with a SHARD segment, finds the entities whose
+     * keys, less the shard, start with the prefix, in order.
+     *
+     * @param prefix the start of the key after the shard segment.
+     * @param limit the maximum number of entities to return.
+     * @return the entities, in order.
+     */
+    public List<T> findAcrossShards(@Nonnull String prefix, int limit);
+
+    /**
+     * Finds a page of the entities whose keys start with the given values for the leading
+     * PROPERTY segments of the key strategy, in key order. This is a query on the key, so
+     * it needs no index on the properties. Values for every segment find only that key.
+     *
+     * @param pageSize the maximum number of entities to return.
+     * @param cursor the cursor from the previous page, or null for the first.
+     * @param leadingValues values for the first properties of the key strategy, in order.
+     * @return the page.
+     */
+    public Page<T> findByKeyPrefix(int pageSize, @Nullable String cursor, Object... leadingValues);
+
+    /**
+     * As findByKeyPrefix(), but returns only the keys.
+     *
+     * @param pageSize the maximum number of keys to return.
+     * @param cursor the cursor from the previous page, or null for the first.
+     * @param leadingValues values for the first properties of the key strategy, in order.
+     * @return the page.
+     */
+    public Page<Key<T>> findKeysByKeyPrefix(int pageSize, @Nullable String cursor, Object... leadingValues);
+
+    /**
+     * Finds a page of the entities with the given values for the leading PROPERTY segments
+     * of the key strategy and a TIME or INVERSE_TIME segment, following them, from the
+     * window [from, to). This is a query on the key, so it needs no index on a date
+     * property. Results are in key order, so INVERSE_TIME keys are returned newest first.
+     *
+     * @param prefixValues values for the properties before the time segment, in order.
+     * @param from the earliest time in milliseconds, inclusive.
+     * @param to the latest time in milliseconds, exclusive.
+     * @param pageSize the maximum number of entities to return.
+     * @param cursor the cursor from the previous page, or null for the first.
+     * @return the page.
+     */
+    public Page<T> findByTimeRange(@Nonnull Object[] prefixValues, long from, long to, int pageSize, @Nullable String cursor);
+
+    /**
+     * Loads the entities with the given ids a batch at a time, reading the ids as they are
+     * needed, so only a few batches are held in memory however many ids there are. Ids
+     * with no entity are skipped.
+     *
+     * @param ids the ids of the entities to find.
+     * @return the entities found, mapped by id, in the order of the ids.
+     */
+    public Iterator<Map.Entry<String, T>> iterateByIds(@Nonnull Iterable<String> ids);
+
+    /**
+     * Starts loading an entity. The returned future fails with a NotFoundException if
+     * there is no entity with the id.
+     *
+     * @param id Name of the entity to find.
+     * @return a future for the entity, after the preReturnHook.
+     */
+    public ListenableFuture<T> findByIdAsync(@Nonnull String id);
+
+    /**
+     * Starts loading the entities with the ids. Missing entities are left out of the map.
+     *
+     * @param ids the names of the entities to find.
+     * @return a future for the entities, after the preReturnHook.
+     */
+    public ListenableFuture<Map<String, T>> findByIdsAsync(@Nonnull Iterable<String> ids);
+
+    /**
+     * Keys the entity if needed, and starts saving it.
+     *
+     * @param entity the entity to save.
+     * @return a future for the key of the saved entity.
+     */
+    public <R extends T> ListenableFuture<Key<R>> saveAsync(@Nonnull R entity);
+
+    /**
+     * Keys the entities if needed, and starts saving them.
+     *
+     * @param entities the entities to save.
+     * @return a future for the saved entities mapped to their keys.
+     */
+    public <R extends T> ListenableFuture<Map<Key<R>, R>> saveAsync(@Nonnull Iterable<R> entities);
+
+    /**
+     * Starts deleting the entity with the id.
+     *
+     * @param id Name of the entity to delete.
+     * @return a future that completes when the entity is deleted.
+     */
+    public ListenableFuture<Void> deleteAsync(@Nonnull String id);
+
+    /**
+     * Starts deleting the entities.
+     *
+     * @param entities the entities to delete.
+     * @return a future that completes when the entities are deleted.
+     */
+    public ListenableFuture<Void> deleteAllAsync(@Nonnull Iterable<T> entities);
 }
@@ -19,5 +19,10 @@ package com.totsp.keying.definition;
  *
  */
 public enum KeySegment {
-    TIME, INVERSE_TIME, PROPERTY, UUID;
+    TIME, INVERSE_TIME, PROPERTY, UUID,
+    /**
+     * A hash of the shardProperty (or, if there isn't one, of the rest of the key) modulo
+     * the strategy's number of shards, as fixed width hex.
+     */
+    SHARD;
 }
@@ -28,6 +28,12 @@ import java.lang.annotation.Target;
 public @interface KeyStrategy {
     KeySegment[] value();
     String[] properties() default {};
+    PropertyEncoding[] encodings() default {};
     String separator() default ":";
     boolean lowerCase() default false;
+    boolean monotonicTime() default false;
+    UUIDEncoding uuidEncoding() default UUIDEncoding.STANDARD;
+    TimeEncoding timeEncoding() default TimeEncoding.HEX;
+    int shards() default 16;
+    String shardProperty() default "";
 }
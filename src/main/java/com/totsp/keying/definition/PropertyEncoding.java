@@ -0,0 +1,43 @@
+/**
+ *    Copyright 2013 Robert Cooper
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package com.totsp.keying.definition;
+
+/**
+ * How a PROPERTY segment is written. Apart from DEFAULT, every encoding writes a fixed
+ * width value that sorts in the same order as the property, and fails on null values.
+ */
+public enum PropertyEncoding {
+    /**
+     * String.valueOf(value).
+     */
+    DEFAULT,
+    /**
+     * Zero padded decimal: 10 digits for int, short and byte properties, 19 for long.
+     * Negative values are an error.
+     */
+    PADDED,
+    /**
+     * Hex of the value with its sign bit flipped (8 digits for int, 16 for long), so
+     * negative values sort before positive ones. Floating point values are written as
+     * 16 digits of their sortable IEEE 754 bits.
+     */
+    SORTABLE_HEX,
+    /**
+     * An ISO 8601 UTC timestamp, yyyy-MM-ddTHH:mm:ss.SSSZ, of a Date, a Calendar or a
+     * long of epoch milliseconds. Years must be between 0 and 9999.
+     */
+    ISO_DATE
+}
@@ -0,0 +1,36 @@
+/**
+ *    Copyright 2013 Robert Cooper
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package com.totsp.keying.definition;
+
+/**
+ * How TIME and INVERSE_TIME segments are written. Every encoding sorts in time order,
+ * but keys written with different encodings don't sort against each other.
+ */
+public enum TimeEncoding {
+    /**
+     * 16 lower case hex digits of the 64 bit value.
+     */
+    HEX,
+    /**
+     * 10 lower case Crockford base32 characters of a 50 bit value.
+     */
+    BASE32,
+    /**
+     * 8 characters of a 48 bit value, in a base64 alphabet ordered by ASCII value
+     * ("-", digits, upper case, "_", lower case). Can't be combined with lowerCase.
+     */
+    BASE64
+}
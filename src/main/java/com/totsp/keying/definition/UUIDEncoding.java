@@ -0,0 +1,36 @@
+/**
+ *    Copyright 2013 Robert Cooper
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package com.totsp.keying.definition;
+
+/**
+ * How UUID segments are generated and written.
+ */
+public enum UUIDEncoding {
+    /**
+     * UUID.randomUUID() in the 36 character 8-4-4-4-12 hex form.
+     */
+    STANDARD,
+    /**
+     * A random (version 4) UUID from per-thread randomness, as 22 URL safe base64 characters.
+     * Can't be combined with lowerCase.
+     */
+    BASE64,
+    /**
+     * A random (version 4) UUID from per-thread randomness, as 26 lower case Crockford
+     * base32 characters.
+     */
+    BASE32
+}
@@ -0,0 +1,30 @@
+/**
+ *    Copyright 2013 Robert Cooper
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package com.totsp.keying.impl;
+
+/**
+ * A component that can write its value straight into the key being built, rather than
+ * returning an intermediate String.
+ */
+public interface AppendingComponent<T> extends Component<T> {
+
+    /**
+     * Appends this component's value for the object to the key buffer.
+     * @param object Object being keyed.
+     * @param sb buffer holding the key computed so far.
+     */
+    void append(T object, StringBuilder sb);
+}
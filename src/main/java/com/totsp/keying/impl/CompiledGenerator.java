@@ -0,0 +1,135 @@
+/**
+ *    Copyright 2013 Robert Cooper
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package com.totsp.keying.impl;
+
+import com.totsp.keying.reflect.KeyException;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A Generator that compiles its components into a single method handle chain of the
+ * type (StringBuilder, Object)StringBuilder. Property segments read their member
+ * directly (without boxing primitives) and the separator is appended inline, so computing a key makes no
+ * reflective calls and no per-component dispatch through the Component array.
+ */
+public class CompiledGenerator<T> extends Generator<T> {
+    private static final Logger LOGGER = Logger.getLogger(CompiledGenerator.class.getCanonicalName());
+    private static final MethodType KEYER_TYPE = MethodType.methodType(StringBuilder.class, StringBuilder.class, Object.class);
+    private static final MethodHandle APPEND_STRING;
+    private static final MethodHandle GET_COMPONENT;
+    private static final MethodHandle APPEND_COMPONENT;
+    private static final MethodHandle RETURN_BUILDER = MethodHandles.dropArguments(
+            MethodHandles.identity(StringBuilder.class), 1, Object.class);
+
+    static {
+        MethodHandles.Lookup lookup = MethodHandles.lookup();
+        try {
+            APPEND_STRING = lookup.findVirtual(StringBuilder.class, "append",
+                    MethodType.methodType(StringBuilder.class, String.class));
+            GET_COMPONENT = lookup.findVirtual(Component.class, "getComponent",
+                    MethodType.methodType(String.class, Object.class));
+            APPEND_COMPONENT = MethodHandles.permuteArguments(
+                    lookup.findVirtual(AppendingComponent.class, "append",
+                            MethodType.methodType(void.class, Object.class, StringBuilder.class)),
+                    MethodType.methodType(void.class, AppendingComponent.class, StringBuilder.class, Object.class),
+                    0, 2, 1);
+        } catch (NoSuchMethodException | IllegalAccessException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    private final MethodHandle keyer;
+
+    private CompiledGenerator(Generator<T> source, MethodHandle keyer) {
+        super(source.components, source.setter, source.lowerCase);
+        this.keyer = keyer;
+    }
+
+    /**
+     * Compiles the generator into a method handle chain. If the chain can't be built
+     * (for instance, if the security manager refuses access to the members) the source
+     * generator is returned and keys are computed with the regular Generator.compute().
+     * The same is true for strategies with a shard of the whole key.
+     * @param source The generator to compile.
+     * @param <T> Type being keyed.
+     * @return a compiled generator, or the source generator.
+     */
+    public static <T> Generator<T> compile(Generator<T> source){
+        if(source.hasKeyShard()){
+            // The shard is inserted once the rest of the key is built.
+            return source;
+        }
+        try {
+            return new CompiledGenerator<>(source, link(source));
+        } catch (RuntimeException e) {
+            LOGGER.log(Level.WARNING, "Failed to compile a generator, falling back to reflection.", e);
+            return source;
+        }
+    }
+
+    private static <T> MethodHandle link(Generator<T> source){
+        MethodHandle chain = RETURN_BUILDER;
+        MethodHandle separator = MethodHandles.insertArguments(APPEND_STRING, 1, source.setter.strategy.separator());
+        for(int i = 0; i < source.components.length; i++){
+            MethodHandle segment = segment(source.components[i]);
+            if(i != 0){
+                segment = MethodHandles.filterArguments(segment, 0, separator);
+            }
+            // chain'(sb, o) = segment(chain(sb, o), o)
+            chain = MethodHandles.foldArguments(MethodHandles.dropArguments(segment, 1, StringBuilder.class), chain);
+        }
+        return chain.asType(KEYER_TYPE);
+    }
+
+    private static <T> MethodHandle segment(Component<T> component){
+        if(component instanceof PropertyComponent){
+            return ((PropertyComponent<T>) component).toMethodHandle();
+        }
+        if(component instanceof AppendingComponent){
+            // (sb, o) -> { component.append(o, sb); return sb; }
+            return MethodHandles.foldArguments(RETURN_BUILDER, APPEND_COMPONENT.bindTo(component));
+        }
+        return MethodHandles.filterArguments(APPEND_STRING, 1, GET_COMPONENT.bindTo(component));
+    }
+
+    @Override
+    public String compute(T object) {
+        StringBuilder sb = acquireBuffer();
+        try {
+            sb = (StringBuilder) keyer.invokeExact(sb, (Object) object);
+        } catch (KeyException | Error e) {
+            discardBuffer(sb);
+            throw e;
+        } catch (Throwable t) {
+            discardBuffer(sb);
+            throw new KeyException("Failed to compute a key for "+object, t);
+        }
+        return releaseBuffer(sb);
+    }
+
+    /**
+     * Uses the compiled chain unless the batch has reserved times, which the chain can't
+     * take: time segments in the chain read their own clock.
+     */
+    @Override
+    protected String compute(T object, long[] times, int sequence) {
+        return times == null ? compute(object) : super.compute(object, times, sequence);
+    }
+}
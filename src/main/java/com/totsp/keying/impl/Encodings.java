@@ -0,0 +1,105 @@
+/**
+ *    Copyright 2013 Robert Cooper
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package com.totsp.keying.impl;
+
+/**
+ * Alphabets and writers for the compact segment encodings.
+ */
+final class Encodings {
+    /**
+     * RFC 4648 URL safe base64.
+     */
+    static final char[] BASE64_URL = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789-_".toCharArray();
+    /**
+     * Crockford base32, lower case.
+     */
+    static final char[] CROCKFORD32 = "0123456789abcdefghjkmnpqrstvwxyz".toCharArray();
+    /**
+     * Base64 with the alphabet in ASCII order, so encoded values sort like the numbers.
+     */
+    static final char[] SORTABLE64 = "-0123456789ABCDEFGHIJKLMNOPQRSTUVWXYZ_abcdefghijklmnopqrstuvwxyz".toCharArray();
+
+    private Encodings() {
+    }
+
+    /**
+     * Appends a 128 bit value, most significant bits first, using one character of the
+     * alphabet per group of bits. The final group is padded with zero bits.
+     * @param sb buffer to append to.
+     * @param hi the most significant 64 bits.
+     * @param lo the least significant 64 bits.
+     * @param bits bits per character (5 for base32, 6 for base64).
+     * @param alphabet the alphabet, of size 2^bits.
+     */
+    static void append128(StringBuilder sb, long hi, long lo, int bits, char[] alphabet){
+        int mask = (1 << bits) - 1;
+        for(int pos = 0; pos < 128; pos += bits){
+            long chunk;
+            if(pos + bits <= 64){
+                chunk = hi >>> (64 - pos - bits);
+            } else if(pos >= 64){
+                int p = pos - 64;
+                chunk = p + bits <= 64 ? lo >>> (64 - p - bits) : lo << (p + bits - 64);
+            } else {
+                int fromLo = pos + bits - 64;
+                chunk = (hi << fromLo) | (lo >>> (64 - fromLo));
+            }
+            sb.append(alphabet[(int) chunk & mask]);
+        }
+    }
+
+    /**
+     * Appends the low order digits*bits bits of a value, most significant first.
+     * @param sb buffer to append to.
+     * @param value value to write.
+     * @param digits number of characters to write.
+     * @param bits bits per character.
+     * @param alphabet the alphabet, of size 2^bits.
+     */
+    static void append(StringBuilder sb, long value, int digits, int bits, char[] alphabet){
+        int mask = (1 << bits) - 1;
+        for(int shift = (digits - 1) * bits; shift >= 0; shift -= bits){
+            sb.append(alphabet[(int) (value >>> shift) & mask]);
+        }
+    }
+
+    /**
+     * Reads a value written by append().
+     * @param cs sequence to read.
+     * @param start index of the first character.
+     * @param digits number of characters.
+     * @param bits bits per character.
+     * @param alphabet the alphabet, of size 2^bits.
+     * @return the value.
+     * @throws NumberFormatException if a character isn't in the alphabet.
+     */
+    static long parse(CharSequence cs, int start, int digits, int bits, char[] alphabet){
+        long value = 0;
+        for(int i = start; i < start + digits; i++){
+            value = (value << bits) | indexOf(alphabet, cs.charAt(i));
+        }
+        return value;
+    }
+
+    private static int indexOf(char[] alphabet, char c){
+        for(int i = 0; i < alphabet.length; i++){
+            if(alphabet[i] == c){
+                return i;
+            }
+        }
+        throw new NumberFormatException("Unexpected character '"+c+"'");
+    }
+}
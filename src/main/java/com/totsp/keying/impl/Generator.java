@@ -18,7 +18,12 @@ package com.totsp.keying.impl;
 import com.totsp.keying.reflect.KeyException;
 import com.totsp.keying.reflect.Setter;
 
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
 
 /**
  *
@@ -26,13 +31,40 @@ import java.util.Arrays;
 public class Generator<T> {
 
     public final Component<T>[] components;
-    private final Setter<T> setter;
-    private final boolean lowerCase;
+    protected final Setter<T> setter;
+    protected final boolean lowerCase;
+    private final AppendingComponent<T>[] appenders;
+    private final String separator;
+    /** The index of a shard segment that hashes the rest of the key, or -1. */
+    private final int keyShard;
+    /** The first component that isn't deterministic, or null. */
+    private final Component<T> nonDeterministic;
+    /**
+     * The longest key computed so far, used to pre-size the key buffer.
+     * Racy updates are harmless.
+     */
+    private int expectedLength = 16;
+    private volatile KeyParser parser;
 
     public Generator(Component<T>[] components, Setter<T> setter, boolean lowerCase) {
         this.components = Arrays.copyOf(components, components.length);
         this.setter = setter;
         this.lowerCase = lowerCase;
+        this.separator = setter.strategy.separator();
+        this.appenders = newAppenders(components.length);
+        int keyShard = -1;
+        Component<T> nonDeterministic = null;
+        for(int i = 0; i < components.length; i++){
+            this.appenders[i] = appending(components[i]);
+            if(components[i] instanceof ShardComponent && ((ShardComponent<T>) components[i]).hashesKey()){
+                keyShard = i;
+            }
+            if(nonDeterministic == null && components[i] instanceof NonDeterministicComponent){
+                nonDeterministic = components[i];
+            }
+        }
+        this.keyShard = keyShard;
+        this.nonDeterministic = nonDeterministic;
     }
 
     public void key(T object){
@@ -43,30 +75,394 @@ public class Generator<T> {
         return setter.keyed(object);
     }
     public String compute(T object){
-        StringBuilder sb = new StringBuilder();
-        for(int i =0; i < components.length; i++){
-            if(i != 0){
-                sb = sb.append(setter.strategy.separator());
+        return compute(object, null, 0);
+    }
+
+    /**
+     * @return a parser for the keys this generator computes.
+     */
+    public KeyParser parser(){
+        KeyParser result = parser;
+        if(result == null){
+            parser = result = new KeyParser(setter.strategy);
+        }
+        return result;
+    }
+
+    /**
+     * Keys every unkeyed object in the list. Each time component reads the clock once for
+     * the whole batch. A monotonic one reserves a run of consecutive ticks and gives the
+     * n-th unkeyed object the n-th, so keys within the batch never collide on their time
+     * segment; otherwise every object gets the same wall clock time, and keys that must be
+     * unique need monotonicTime or a UUID segment.
+     * @param objects objects of this generator's type.
+     * @param pool if not null, the keys are computed as fork-join tasks in this pool.
+     */
+    public void keyAll(List<T> objects, ForkJoinPool pool){
+        ArrayList<T> unkeyed = new ArrayList<>(objects.size());
+        for(T object : objects){
+            if(!keyed(object)){
+                unkeyed.add(object);
+            }
+        }
+        if(unkeyed.isEmpty()){
+            return;
+        }
+        long[] times = null;
+        for(int i = 0; i < components.length; i++){
+            if(components[i] instanceof TimeComponent){
+                if(times == null){
+                    times = new long[components.length];
+                }
+                times[i] = ((TimeComponent<T>) components[i]).reserve(unkeyed.size());
             }
-            sb = sb.append(components[i].getComponent(object));
         }
-        return lowerCase ? sb.toString().toLowerCase() : sb.toString();
+        if(pool == null){
+            keyRange(unkeyed, times, 0, unkeyed.size());
+        } else {
+            pool.invoke(new KeyAllTask<>(this, unkeyed, times, 0, unkeyed.size()));
+        }
     }
 
-    public void checkDeterministic(){
-        for(Component<T> component: components){
-            if(component instanceof NonDeterministicComponent){
-                throw new KeyException(component.getClass().getCanonicalName() +" isn't a deterministic component.");
+    private void keyRange(List<T> unkeyed, long[] times, int from, int to){
+        for(int i = from; i < to; i++){
+            T object = unkeyed.get(i);
+            setter.setId(object, compute(object, times, i));
+        }
+    }
+
+    /**
+     * Computes the key of a member of a batch, taking the time segments from the reserved
+     * batch times when given.
+     * @param object the object.
+     * @param times the first time of the batch for each time component, or null.
+     * @param sequence index of the object within the batch.
+     * @return the key.
+     */
+    protected String compute(T object, long[] times, int sequence){
+        StringBuilder sb = acquireBuffer();
+        boolean released = false;
+        try {
+            int shardOffset = -1;
+            for(int i =0; i < appenders.length; i++){
+                if(i != 0){
+                    sb.append(separator);
+                }
+                if(i == keyShard){
+                    shardOffset = sb.length();
+                } else if(times != null && components[i] instanceof TimeComponent){
+                    ((TimeComponent<T>) components[i]).append(sb, times[i], sequence);
+                } else {
+                    appenders[i].append(object, sb);
+                }
+            }
+            if(shardOffset >= 0){
+                ((ShardComponent<T>) components[keyShard]).insert(sb, shardOffset, lowerCase);
+            }
+            String key = releaseBuffer(sb);
+            released = true;
+            return key;
+        } finally {
+            // Errors too, or the thread's buffer would stay marked in use.
+            if(!released){
+                discardBuffer(sb);
             }
         }
     }
 
-    public boolean isDeterministic(){
-        for(Component<T> component: components){
-            if(component instanceof NonDeterministicComponent){
-               return false;
+    /**
+     * Computes the key of a deterministic strategy from the property values, without an
+     * instance of the type. The key is the same as compute() returns for an object with
+     * those values.
+     * @param values one value per PROPERTY segment, in the order of the strategy's properties.
+     * Primitive properties take their boxed values.
+     * @return the key.
+     * @throws KeyException if the strategy isn't deterministic, or the values don't match it.
+     */
+    public String computeFrom(Object... values){
+        checkDeterministic();
+        String[] properties = setter.strategy.properties();
+        if(values.length != properties.length){
+            throw new KeyException("Expected "+properties.length+" values for "+Arrays.asList(properties)
+                    +" but found "+values.length);
+        }
+        return build(values, components.length);
+    }
+
+    /**
+     * Computes the start shared by every key whose leading PROPERTY segments have these
+     * values, including the separator after them, for key range queries. If the values
+     * cover every segment, this is the whole key, with no separator.
+     * @param values values for the first PROPERTY segments, in the order of the strategy's
+     * properties.
+     * @return the key prefix.
+     * @throws KeyException if a segment before the last of those properties isn't a
+     * PROPERTY, or a shard of one of them.
+     */
+    public String keyPrefix(Object... values){
+        return build(values, prefixSegments(values));
+    }
+
+    /**
+     * Computes the key range of the keys whose leading PROPERTY segments have these values.
+     * @param values values for the first PROPERTY segments, as keyPrefix() takes them.
+     * @return the prefix as the lowest key of the range (inclusive), and the highest
+     * (exclusive), which is null if the range runs to the last key with the prefix. When
+     * the values cover every segment the prefix is the whole key, so the range holds just it.
+     * @throws KeyException as keyPrefix() does.
+     */
+    public String[] prefixRange(Object... values){
+        int segments = prefixSegments(values);
+        String prefix = build(values, segments);
+        return new String[]{ prefix, segments == components.length ? prefix + '\u0000' : null };
+    }
+
+    /**
+     * Computes the key range of the keys with these leading PROPERTY values whose next
+     * segment is a time in [from, to).
+     * @param from the earliest time, inclusive.
+     * @param to the latest time, exclusive.
+     * @param values values for the first PROPERTY segments, as keyPrefix() takes them.
+     * @return the lowest key of the range (inclusive) and the highest (exclusive), or null
+     * as the highest if the range runs to the last key with the prefix.
+     * @throws KeyException if the segment after the values isn't a time.
+     */
+    public String[] timeRange(long from, long to, Object... values){
+        if(from >= to){
+            throw new IllegalArgumentException("The range ["+from+", "+to+") is empty.");
+        }
+        int segments = prefixSegments(values);
+        if(segments >= components.length || !(components[segments] instanceof TimeComponent)){
+            throw new KeyException("Segment "+segments+" of "+Arrays.asList(setter.strategy.value())
+                    +" isn't TIME or INVERSE_TIME.");
+        }
+        TimeComponent<T> time = (TimeComponent<T>) components[segments];
+        String prefix = build(values, segments);
+        long first = Math.max(from, 0);
+        long last = Math.min(to - 1, time.getMaxTime());
+        if(first > last){
+            throw new IllegalArgumentException("The range ["+from+", "+to+") is outside the range of the time segment.");
+        }
+        String low;
+        String high;
+        if(time.isInverse()){
+            low = time.format(last);
+            high = first == 0 ? null : time.format(first - 1);
+        } else {
+            low = time.format(first);
+            high = last == time.getMaxTime() ? null : time.format(last + 1);
+        }
+        return new String[]{ prefix + timeCase(low), high == null ? null : prefix + timeCase(high) };
+    }
+
+    private String timeCase(String segment){
+        return lowerCase ? segment.toLowerCase() : segment;
+    }
+
+    /**
+     * @return the number of segments taken by the leading values.
+     */
+    private int prefixSegments(Object[] values){
+        String[] properties = setter.strategy.properties();
+        if(values.length > properties.length){
+            throw new KeyException("Expected at most "+properties.length+" values for "+Arrays.asList(properties)
+                    +" but found "+values.length);
+        }
+        int segments = 0;
+        for(int property = 0; property < values.length; segments++){
+            Component<T> component = components[segments];
+            if(component instanceof NonDeterministicComponent || segments == keyShard){
+                throw new KeyException("A key prefix can only contain PROPERTY segments, not segment "+segments
+                        +" of "+Arrays.asList(setter.strategy.value()));
+            }
+            if(!(component instanceof ShardComponent)){
+                property++;
+            }
+        }
+        return segments;
+    }
+
+    /**
+     * Builds the first count segments of a key from property values.
+     */
+    private String build(Object[] values, int count){
+        String[] properties = setter.strategy.properties();
+        StringBuilder sb = acquireBuffer();
+        boolean released = false;
+        try {
+            int shardOffset = -1;
+            int property = 0;
+            for(int i = 0; i < count; i++){
+                if(i != 0){
+                    sb.append(separator);
+                }
+                if(i == keyShard){
+                    shardOffset = sb.length();
+                } else if(components[i] instanceof ShardComponent){
+                    ShardComponent<T> shard = (ShardComponent<T>) components[i];
+                    int index = shardValue(properties);
+                    if(index >= values.length){
+                        throw new KeyException("The shard property "+properties[index].trim()+" must be one of the values.");
+                    }
+                    StringBuilder value = new StringBuilder();
+                    appendValue(shard.getSource(), value, values[index]);
+                    shard.appendShard(sb, value);
+                } else {
+                    appendValue(components[i], sb, values[property++]);
+                }
+            }
+            if(count > 0 && count < components.length){
+                sb.append(separator);
+            }
+            if(shardOffset >= 0){
+                ((ShardComponent<T>) components[keyShard]).insert(sb, shardOffset, lowerCase);
+            }
+            String key = releaseBuffer(sb);
+            released = true;
+            return key;
+        } finally {
+            // Errors too, or the thread's buffer would stay marked in use.
+            if(!released){
+                discardBuffer(sb);
             }
         }
-        return true;
+    }
+
+    private int shardValue(String[] properties){
+        String shardProperty = setter.strategy.shardProperty().trim();
+        for(int i = 0; i < properties.length; i++){
+            if(properties[i].trim().equals(shardProperty)){
+                return i;
+            }
+        }
+        throw new KeyException("The shard property "+shardProperty+" isn't one of the key properties "
+                + Arrays.asList(properties)+", so the key can't be computed from their values.");
+    }
+
+    /**
+     * Appends a property value the way the component writes the property, so the converter
+     * is the one for the declared type rather than the value's class.
+     */
+    private static void appendValue(Component<?> component, StringBuilder sb, Object value){
+        if(!(component instanceof ValueAppendingComponent)){
+            throw new KeyException("The component "+component+" doesn't take property values, so the key can't be"
+                    + " computed from them.");
+        }
+        ((ValueAppendingComponent<?>) component).appendValue(sb, value);
+    }
+
+    /**
+     * @return true if a shard segment hashes the rest of the key, so the key can't be
+     * built in a single pass.
+     */
+    public boolean hasKeyShard(){
+        return keyShard >= 0;
+    }
+
+    /**
+     * Lists the key prefixes of every shard, for strategies that start with a SHARD
+     * segment.
+     * @return the shard segments followed by the separator, or an empty list if the
+     * key doesn't start with a shard.
+     */
+    public List<String> shardPrefixes(){
+        if(components.length == 0 || !(components[0] instanceof ShardComponent)){
+            return Collections.emptyList();
+        }
+        ShardComponent<T> shard = (ShardComponent<T>) components[0];
+        List<String> prefixes = new ArrayList<>(shard.getShards());
+        for(int i = 0; i < shard.getShards(); i++){
+            prefixes.add(components.length == 1 ? shard.format(i) : shard.format(i) + separator);
+        }
+        return prefixes;
+    }
+
+    /**
+     * Gets the thread's key buffer, pre-sized for the keys this generator has produced.
+     * @return an empty buffer.
+     */
+    protected StringBuilder acquireBuffer(){
+        return KeyBuffer.acquire(expectedLength);
+    }
+
+    /**
+     * Converts a buffer from acquireBuffer() into the key, applying lower casing.
+     * @param sb the buffer
+     * @return the key.
+     */
+    protected String releaseBuffer(StringBuilder sb){
+        if(sb.length() > expectedLength){
+            expectedLength = sb.length();
+        }
+        return KeyBuffer.release(sb, lowerCase);
+    }
+
+    /**
+     * Returns a buffer from acquireBuffer() without building a key, after a failure.
+     * @param sb the buffer
+     */
+    protected void discardBuffer(StringBuilder sb){
+        KeyBuffer.release(sb, false);
+    }
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private static <T> AppendingComponent<T>[] newAppenders(int length){
+        return new AppendingComponent[length];
+    }
+
+    private static <T> AppendingComponent<T> appending(final Component<T> component){
+        if(component instanceof AppendingComponent){
+            return (AppendingComponent<T>) component;
+        }
+        return new AppendingComponent<T>() {
+            @Override
+            public void append(T object, StringBuilder sb) {
+                sb.append(component.getComponent(object));
+            }
+
+            @Override
+            public String getComponent(T object) {
+                return component.getComponent(object);
+            }
+        };
+    }
+
+    private static class KeyAllTask<T> extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+        private static final int SPLIT_SIZE = 256;
+        private final Generator<T> generator;
+        private final List<T> unkeyed;
+        private final long[] times;
+        private final int from;
+        private final int to;
+
+        private KeyAllTask(Generator<T> generator, List<T> unkeyed, long[] times, int from, int to) {
+            this.generator = generator;
+            this.unkeyed = unkeyed;
+            this.times = times;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if(to - from <= SPLIT_SIZE){
+                generator.keyRange(unkeyed, times, from, to);
+            } else {
+                int middle = (from + to) >>> 1;
+                invokeAll(new KeyAllTask<>(generator, unkeyed, times, from, middle),
+                        new KeyAllTask<>(generator, unkeyed, times, middle, to));
+            }
+        }
+    }
+
+    public void checkDeterministic(){
+        if(nonDeterministic != null){
+            throw new KeyException(nonDeterministic.getClass().getCanonicalName() +" isn't a deterministic component.");
+        }
+    }
+
+    public boolean isDeterministic(){
+        return nonDeterministic == null;
     }
 }
@@ -0,0 +1,58 @@
+/**
+ *    Copyright 2013 Robert Cooper
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package com.totsp.keying.impl;
+
+/**
+ * Writes lower case hex digits straight into a buffer, and reads them back.
+ */
+final class Hex {
+    private static final char[] DIGITS = "0123456789abcdef".toCharArray();
+
+    private Hex() {
+    }
+
+    /**
+     * Appends the low order digits of value, zero padded to the given width.
+     * @param sb buffer to append to.
+     * @param value value to write.
+     * @param digits number of hex digits to write.
+     */
+    static void append(StringBuilder sb, long value, int digits){
+        for(int shift = (digits - 1) * 4; shift >= 0; shift -= 4){
+            sb.append(DIGITS[(int) (value >>> shift) & 0xf]);
+        }
+    }
+
+    /**
+     * Reads the hex digits in a range of the sequence.
+     * @param cs sequence to read.
+     * @param start index of the first digit.
+     * @param end index after the last digit.
+     * @return the value, taking the digits as unsigned.
+     * @throws NumberFormatException if the range holds a character that isn't a hex digit.
+     */
+    static long parse(CharSequence cs, int start, int end){
+        long value = 0;
+        for(int i = start; i < end; i++){
+            int digit = Character.digit(cs.charAt(i), 16);
+            if(digit < 0){
+                throw new NumberFormatException("Not a hex digit: '"+cs.charAt(i)+"'");
+            }
+            value = (value << 4) | digit;
+        }
+        return value;
+    }
+}
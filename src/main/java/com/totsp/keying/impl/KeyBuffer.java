@@ -0,0 +1,96 @@
+/**
+ *    Copyright 2013 Robert Cooper
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package com.totsp.keying.impl;
+
+import java.util.Locale;
+
+/**
+ * A per-thread StringBuilder that keys are assembled in, so computing a key only
+ * allocates the final String. If a key is computed while the buffer is already in use
+ * on the thread (a getter that keys another entity, for instance) a fresh builder is
+ * handed out instead.
+ */
+final class KeyBuffer {
+    /**
+     * Buffers that grew beyond this are dropped rather than retained by the thread.
+     */
+    private static final int MAX_RETAINED = 1024;
+
+    private static final ThreadLocal<KeyBuffer> BUFFERS = new ThreadLocal<KeyBuffer>(){
+        @Override
+        protected KeyBuffer initialValue() {
+            return new KeyBuffer();
+        }
+    };
+
+    private StringBuilder builder = new StringBuilder(64);
+    private boolean inUse;
+
+    private KeyBuffer() {
+    }
+
+    /**
+     * Gets an empty builder with at least the expected capacity.
+     * @param expectedLength the expected length of the key.
+     * @return an empty builder.
+     */
+    static StringBuilder acquire(int expectedLength){
+        KeyBuffer buffer = BUFFERS.get();
+        if(buffer.inUse){
+            return new StringBuilder(expectedLength);
+        }
+        buffer.inUse = true;
+        StringBuilder sb = buffer.builder;
+        sb.setLength(0);
+        sb.ensureCapacity(expectedLength);
+        return sb;
+    }
+
+    /**
+     * Builds the final key from the builder and returns the builder to the pool.
+     * @param sb the builder handed out by acquire()
+     * @param lowerCase whether to lower case the key.
+     * @return the key.
+     */
+    static String release(StringBuilder sb, boolean lowerCase){
+        String result = lowerCase ? toLowerCase(sb) : sb.toString();
+        KeyBuffer buffer = BUFFERS.get();
+        if(buffer.builder == sb){
+            if(sb.capacity() > MAX_RETAINED){
+                buffer.builder = new StringBuilder(64);
+            }
+            buffer.inUse = false;
+        }
+        return result;
+    }
+
+    /**
+     * Lower cases the builder in place when it is all ASCII, falling back to
+     * String.toLowerCase(Locale.ROOT) otherwise.
+     */
+    static String toLowerCase(StringBuilder sb){
+        for(int i = 0; i < sb.length(); i++){
+            char c = sb.charAt(i);
+            if(c >= 0x80){
+                return sb.toString().toLowerCase(Locale.ROOT);
+            }
+            if(c >= 'A' && c <= 'Z'){
+                sb.setCharAt(i, (char) (c + ('a' - 'A')));
+            }
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,117 @@
+/**
+ *    Copyright 2013 Robert Cooper
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package com.totsp.keying.impl;
+
+import com.totsp.keying.definition.KeySegment;
+import com.totsp.keying.definition.KeyStrategy;
+import com.totsp.keying.reflect.KeyException;
+
+import javax.annotation.Nonnull;
+import java.util.Arrays;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * Splits keys built from a KeyStrategy back into their segments.
+ *
+ * Time, UUID and shard segments have a fixed width, so they are found by position. A property
+ * segment ends at the next separator, except for the last property in the key, which
+ * takes everything up to the fixed width segments after it; so a single property (the
+ * usual case) may itself contain the separator.
+ */
+public class KeyParser {
+    private static final int VARIABLE = -1;
+
+    final KeyStrategy strategy;
+    private final String separator;
+    private final int[] widths;
+    private final int lastVariable;
+    private final int tail;
+
+    public KeyParser(@Nonnull KeyStrategy strategy) {
+        this.strategy = checkNotNull(strategy);
+        this.separator = strategy.separator();
+        KeySegment[] segments = strategy.value();
+        this.widths = new int[segments.length];
+        int lastVariable = -1;
+        for(int i = 0; i < segments.length; i++){
+            switch(segments[i]){
+                case TIME:
+                case INVERSE_TIME:
+                    widths[i] = TimeComponent.width(strategy.timeEncoding());
+                    break;
+                case UUID:
+                    widths[i] = UUIDComponent.width(strategy.uuidEncoding());
+                    break;
+                case SHARD:
+                    widths[i] = ShardComponent.width(strategy.shards());
+                    break;
+                default:
+                    widths[i] = VARIABLE;
+                    lastVariable = i;
+            }
+        }
+        int tail = 0;
+        for(int i = lastVariable + 1; i < segments.length && lastVariable >= 0; i++){
+            tail += separator.length() + widths[i];
+        }
+        this.lastVariable = lastVariable;
+        this.tail = tail;
+    }
+
+    /**
+     * Finds the segments of a key. No characters are copied; the ParsedKey refers to
+     * ranges of the key.
+     * @param key a key built with this parser's strategy.
+     * @return the parsed key.
+     * @throws KeyException if the key doesn't have the shape of the strategy.
+     */
+    public ParsedKey parse(@Nonnull String key){
+        checkNotNull(key);
+        int[] bounds = new int[widths.length * 2];
+        int position = 0;
+        for(int i = 0; i < widths.length; i++){
+            if(i != 0){
+                if(!key.startsWith(separator, position)){
+                    throw mismatch(key);
+                }
+                position += separator.length();
+            }
+            int end;
+            if(widths[i] != VARIABLE){
+                end = position + widths[i];
+            } else if(i == lastVariable){
+                end = key.length() - tail;
+            } else {
+                end = key.indexOf(separator, position);
+            }
+            if(end < position || end > key.length()){
+                throw mismatch(key);
+            }
+            bounds[i * 2] = position;
+            bounds[i * 2 + 1] = end;
+            position = end;
+        }
+        if(position != key.length()){
+            throw mismatch(key);
+        }
+        return new ParsedKey(this, key, bounds);
+    }
+
+    private KeyException mismatch(String key){
+        return new KeyException("\""+key+"\" doesn't match the key strategy "+Arrays.toString(strategy.value()));
+    }
+}
@@ -0,0 +1,59 @@
+/**
+ *    Copyright 2013 Robert Cooper
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package com.totsp.keying.impl;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A hybrid logical clock in milliseconds. Each tick is the wall clock time, unless that
+ * has already been handed out (or the wall clock went backwards), in which case it is
+ * one more than the last tick. Ticks are strictly increasing across threads and only
+ * run ahead of the wall clock while more than one tick per millisecond is requested.
+ */
+public class MonotonicClock {
+    private final AtomicLong last = new AtomicLong();
+
+    /**
+     * Returns the next tick.
+     * @return a value greater than any previously returned by this clock.
+     */
+    public long next(){
+        while(true){
+            long now = System.currentTimeMillis();
+            long previous = last.get();
+            long next = now > previous ? now : previous + 1;
+            if(last.compareAndSet(previous, next)){
+                return next;
+            }
+        }
+    }
+
+    /**
+     * Reserves a run of consecutive ticks, for keying a batch with one clock read.
+     * @param count number of ticks to reserve.
+     * @return the first tick; the run is first to first + count - 1.
+     */
+    public long reserve(int count){
+        while(true){
+            long now = System.currentTimeMillis();
+            long previous = last.get();
+            long first = now > previous ? now : previous + 1;
+            if(last.compareAndSet(previous, first + count - 1)){
+                return first;
+            }
+        }
+    }
+}
@@ -0,0 +1,137 @@
+/**
+ *    Copyright 2013 Robert Cooper
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package com.totsp.keying.impl;
+
+import com.totsp.keying.definition.KeySegment;
+import com.totsp.keying.reflect.KeyException;
+
+import java.nio.CharBuffer;
+
+/**
+ * A key split into its segments by a KeyParser. Segment values are views of the key;
+ * times are decoded when asked for.
+ */
+public class ParsedKey {
+    private final KeyParser parser;
+    private final String key;
+    private final int[] bounds;
+
+    ParsedKey(KeyParser parser, String key, int[] bounds) {
+        this.parser = parser;
+        this.key = key;
+        this.bounds = bounds;
+    }
+
+    /**
+     * @return the key that was parsed.
+     */
+    public String getKey() {
+        return key;
+    }
+
+    /**
+     * @return the number of segments.
+     */
+    public int size() {
+        return bounds.length / 2;
+    }
+
+    /**
+     * @return the type of the segment at the index.
+     */
+    public KeySegment getSegment(int index) {
+        return parser.strategy.value()[index];
+    }
+
+    /**
+     * @return a read only view of the segment at the index.
+     */
+    public CharSequence get(int index) {
+        return CharBuffer.wrap(key, bounds[index * 2], bounds[index * 2 + 1]);
+    }
+
+    /**
+     * @param index index of a TIME or INVERSE_TIME segment.
+     * @return the time in milliseconds.
+     */
+    public long getTime(int index) {
+        KeySegment segment = getSegment(index);
+        if(segment != KeySegment.TIME && segment != KeySegment.INVERSE_TIME){
+            throw new KeyException("Segment "+index+" of \""+key+"\" is a "+segment+" segment, not a time.");
+        }
+        try {
+            return TimeComponent.decode(key, bounds[index * 2], segment == KeySegment.INVERSE_TIME, parser.strategy.timeEncoding());
+        } catch (NumberFormatException e) {
+            throw new KeyException("Segment "+index+" of \""+key+"\" is not a time.", e);
+        }
+    }
+
+    /**
+     * @return the time of the first TIME or INVERSE_TIME segment.
+     */
+    public long getTime() {
+        for(int i = 0; i < size(); i++){
+            KeySegment segment = getSegment(i);
+            if(segment == KeySegment.TIME || segment == KeySegment.INVERSE_TIME){
+                return getTime(i);
+            }
+        }
+        throw new KeyException("The key strategy for \""+key+"\" has no time segment.");
+    }
+
+    /**
+     * @return the shard number of the SHARD segment.
+     */
+    public int getShard() {
+        for(int i = 0; i < size(); i++){
+            if(getSegment(i) == KeySegment.SHARD){
+                try {
+                    return (int) Hex.parse(key, bounds[i * 2], bounds[i * 2 + 1]);
+                } catch (NumberFormatException e) {
+                    throw new KeyException("Segment "+i+" of \""+key+"\" is not a shard.", e);
+                }
+            }
+        }
+        throw new KeyException("The key strategy for \""+key+"\" has no shard segment.");
+    }
+
+    /**
+     * @param name property name, as given in the strategy's properties.
+     * @return a read only view of the property's segment.
+     */
+    public CharSequence getProperty(String name) {
+        String[] properties = parser.strategy.properties();
+        int property = 0;
+        for(int i = 0; i < size(); i++){
+            if(getSegment(i) == KeySegment.PROPERTY){
+                if(properties[property].trim().equals(name)){
+                    return get(i);
+                }
+                property++;
+            }
+        }
+        throw new KeyException("The key strategy for \""+key+"\" has no property "+name);
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder("ParsedKey{");
+        for(int i = 0; i < size(); i++){
+            sb.append(i == 0 ? "" : ", ").append(getSegment(i)).append('=').append(get(i));
+        }
+        return sb.append('}').toString();
+    }
+}
@@ -15,20 +15,245 @@
  */
 package com.totsp.keying.impl;
 
+import com.google.common.primitives.Primitives;
+import com.totsp.keying.definition.PropertyEncoding;
+import com.totsp.keying.reflect.KeyException;
 import com.totsp.keying.reflect.Reader;
 
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.Calendar;
+import java.util.Date;
+
 /**
- *
+ * A component that reads a field or property from the object. The value is appended by
+ * a handle chosen for the property's declared type when the component is built, so
+ * primitive and boxed numeric values are written as digits without boxing or an
+ * intermediate String. With the DEFAULT encoding, output is identical to
+ * String.valueOf(value) unless a ValueConverter is registered for the type; the other
+ * PropertyEncodings are checked against the type here.
  */
-public class PropertyComponent<T> implements Component<T> {
+public class PropertyComponent<T> implements ValueAppendingComponent<T> {
+    private static final MethodType APPENDER_TYPE = MethodType.methodType(StringBuilder.class, StringBuilder.class, Object.class);
+    private static final MethodHandle CONVERT;
+    private static final MethodHandle REQUIRE;
+    private static final MethodHandle PADDED;
+    private static final MethodHandle SORTABLE;
+    private static final MethodHandle SORTABLE_DOUBLE;
+    private static final MethodHandle ISO_MILLIS;
+    private static final MethodHandle ISO_DATE;
+    private static final MethodHandle ISO_CALENDAR;
+
+    static {
+        MethodHandles.Lookup lookup = MethodHandles.lookup();
+        try {
+            CONVERT = lookup.findStatic(ValueConverters.class, "append",
+                    MethodType.methodType(StringBuilder.class, ValueConverter.class, StringBuilder.class, Object.class));
+            REQUIRE = lookup.findStatic(PropertyEncodings.class, "require", MethodType.methodType(Object.class, Object.class));
+            PADDED = lookup.findStatic(PropertyEncodings.class, "appendPadded",
+                    MethodType.methodType(StringBuilder.class, StringBuilder.class, long.class, int.class));
+            SORTABLE = lookup.findStatic(PropertyEncodings.class, "appendSortable",
+                    MethodType.methodType(StringBuilder.class, StringBuilder.class, long.class, int.class));
+            SORTABLE_DOUBLE = lookup.findStatic(PropertyEncodings.class, "appendSortable",
+                    MethodType.methodType(StringBuilder.class, StringBuilder.class, double.class));
+            ISO_MILLIS = lookup.findStatic(PropertyEncodings.class, "appendIsoDate",
+                    MethodType.methodType(StringBuilder.class, StringBuilder.class, long.class));
+            ISO_DATE = lookup.findStatic(PropertyEncodings.class, "appendIsoDate",
+                    MethodType.methodType(StringBuilder.class, StringBuilder.class, Date.class));
+            ISO_CALENDAR = lookup.findStatic(PropertyEncodings.class, "appendIsoDate",
+                    MethodType.methodType(StringBuilder.class, StringBuilder.class, Calendar.class));
+        } catch (NoSuchMethodException | IllegalAccessException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
     private final Reader<T> reader;
+    private final MethodHandle appender;
+    private final MethodHandle valueAppender;
 
     public PropertyComponent(Reader<T> reader) {
+        this(reader, PropertyEncoding.DEFAULT);
+    }
+
+    /**
+     * @param reader reader for the property.
+     * @param encoding how to write the value.
+     * @throws KeyException if the encoding can't be used for the property's type.
+     */
+    public PropertyComponent(Reader<T> reader, PropertyEncoding encoding) {
         this.reader = reader;
+        Class<?> type = reader.getType();
+        MethodHandle write;
+        if(encoding != PropertyEncoding.DEFAULT){
+            write = encoder(reader, encoding);
+        } else {
+            ValueConverter<Object> converter = ValueConverters.find(type);
+            write = converter == null
+                    ? writer(type)
+                    : MethodHandles.insertArguments(CONVERT, 0, converter)
+                            .asType(MethodType.methodType(StringBuilder.class, StringBuilder.class, type));
+        }
+        this.appender = MethodHandles.filterArguments(write, 1, reader.toTypedMethodHandle()).asType(APPENDER_TYPE);
+        this.valueAppender = write.asType(APPENDER_TYPE);
     }
 
     @Override
     public String getComponent(T object) {
-        return this.reader.read(object);
+        StringBuilder sb = new StringBuilder();
+        append(object, sb);
+        return sb.toString();
+    }
+
+    @Override
+    public void append(T object, StringBuilder sb) {
+        try {
+            sb = (StringBuilder) appender.invokeExact(sb, (Object) object);
+        } catch (KeyException | Error e) {
+            throw e;
+        } catch (Throwable t) {
+            throw new KeyException("Could not read "+reader+" from "+object, t);
+        }
+    }
+
+    @Override
+    public void appendValue(StringBuilder sb, Object value) {
+        try {
+            sb = (StringBuilder) valueAppender.invokeExact(sb, value);
+        } catch (KeyException | Error e) {
+            throw e;
+        } catch (ClassCastException e) {
+            throw new KeyException("Can't write "+value.getClass().getName()+" "+value+" as "+reader+" of type "
+                    +reader.getType().getName(), e);
+        } catch (Throwable t) {
+            throw new KeyException("Could not write "+value+" as "+reader, t);
+        }
+    }
+
+    /**
+     * The reader this component pulls its value from.
+     * @return the reader.
+     */
+    public Reader<T> getReader() {
+        return reader;
+    }
+
+    /**
+     * A handle of the type (StringBuilder, Object)StringBuilder that reads this
+     * component's value from the object and appends it.
+     * @return the append handle.
+     */
+    public MethodHandle toMethodHandle() {
+        return appender;
+    }
+
+    /**
+     * A handle of the type (StringBuilder, type)StringBuilder writing values as String.valueOf().
+     */
+    private static MethodHandle writer(Class<?> type) {
+        MethodType writeType = MethodType.methodType(StringBuilder.class, StringBuilder.class, type);
+        Class<?> appended;
+        if(type == int.class || type == short.class || type == byte.class){
+            appended = int.class;
+        } else if(type == long.class || type == double.class || type == float.class
+                || type == boolean.class || type == char.class){
+            appended = type;
+        } else if(type == Integer.class || type == Long.class || type == Short.class || type == Byte.class
+                || type == Double.class || type == Float.class){
+            return find(type, "appendBoxed");
+        } else {
+            appended = Object.class;
+        }
+        try {
+            return MethodHandles.lookup().findVirtual(StringBuilder.class, "append",
+                    MethodType.methodType(StringBuilder.class, appended)).asType(writeType);
+        } catch (NoSuchMethodException | IllegalAccessException e) {
+            throw new KeyException("Unable to find StringBuilder.append("+appended+")", e);
+        }
+    }
+
+    private static MethodHandle encoder(Reader<?> reader, PropertyEncoding encoding) {
+        Class<?> type = reader.getType();
+        Class<?> primitive = Primitives.unwrap(type);
+        MethodHandle write = null;
+        switch(encoding){
+            case PADDED:
+                if(primitive == long.class){
+                    write = MethodHandles.insertArguments(PADDED, 2, 19);
+                } else if(primitive == int.class || primitive == short.class || primitive == byte.class){
+                    write = MethodHandles.insertArguments(PADDED, 2, 10);
+                }
+                break;
+            case SORTABLE_HEX:
+                if(primitive == long.class || primitive == int.class || primitive == short.class || primitive == byte.class){
+                    write = MethodHandles.insertArguments(SORTABLE, 2, bits(primitive));
+                } else if(primitive == double.class || primitive == float.class){
+                    write = SORTABLE_DOUBLE;
+                }
+                break;
+            case ISO_DATE:
+                if(primitive == long.class){
+                    write = ISO_MILLIS;
+                } else if(Date.class.isAssignableFrom(type)){
+                    write = ISO_DATE;
+                } else if(Calendar.class.isAssignableFrom(type)){
+                    write = ISO_CALENDAR;
+                }
+                break;
+            default:
+                break;
+        }
+        if(write == null){
+            throw new KeyException(encoding+" can't be used for "+reader+" of type "+type.getName());
+        }
+        write = write.asType(MethodType.methodType(StringBuilder.class, StringBuilder.class, type));
+        if(!type.isPrimitive()){
+            write = MethodHandles.filterArguments(write, 1, REQUIRE.asType(MethodType.methodType(type, type)));
+        }
+        return write;
+    }
+
+    private static int bits(Class<?> primitive) {
+        if(primitive == long.class){
+            return 64;
+        } else if(primitive == int.class){
+            return 32;
+        } else if(primitive == short.class){
+            return 16;
+        }
+        return 8;
+    }
+
+    private static MethodHandle find(Class<?> boxed, String name) {
+        try {
+            return MethodHandles.lookup().findStatic(PropertyComponent.class, name,
+                    MethodType.methodType(StringBuilder.class, StringBuilder.class, boxed));
+        } catch (NoSuchMethodException | IllegalAccessException e) {
+            throw new KeyException("Unable to find "+name+"("+boxed+")", e);
+        }
+    }
+
+    private static StringBuilder appendBoxed(StringBuilder sb, Integer value) {
+        return value == null ? sb.append("null") : sb.append(value.intValue());
+    }
+
+    private static StringBuilder appendBoxed(StringBuilder sb, Long value) {
+        return value == null ? sb.append("null") : sb.append(value.longValue());
+    }
+
+    private static StringBuilder appendBoxed(StringBuilder sb, Short value) {
+        return value == null ? sb.append("null") : sb.append(value.intValue());
+    }
+
+    private static StringBuilder appendBoxed(StringBuilder sb, Byte value) {
+        return value == null ? sb.append("null") : sb.append(value.intValue());
+    }
+
+    private static StringBuilder appendBoxed(StringBuilder sb, Double value) {
+        return value == null ? sb.append("null") : sb.append(value.doubleValue());
+    }
+
+    private static StringBuilder appendBoxed(StringBuilder sb, Float value) {
+        return value == null ? sb.append("null") : sb.append(value.floatValue());
     }
 }
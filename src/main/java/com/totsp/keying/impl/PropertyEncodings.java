@@ -0,0 +1,156 @@
+/**
+ *    Copyright 2013 Robert Cooper
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package com.totsp.keying.impl;
+
+import com.totsp.keying.reflect.KeyException;
+
+import java.util.Calendar;
+import java.util.Date;
+
+/**
+ * The writers behind the order preserving PropertyEncodings, used by PropertyComponent
+ * and called directly by generated keyers.
+ */
+public final class PropertyEncodings {
+    private static final long MILLIS_PER_DAY = 86400000L;
+    /** 0000-01-01T00:00:00.000Z */
+    private static final long MIN_DATE = -62167219200000L;
+    /** 9999-12-31T23:59:59.999Z */
+    private static final long MAX_DATE = 253402300799999L;
+
+    private PropertyEncodings() {
+    }
+
+    /**
+     * Fails on null values, which have no place in an ordered encoding.
+     */
+    public static <V> V require(V value) {
+        if(value == null){
+            throw new KeyException("A null value can't be written with an order preserving encoding.");
+        }
+        return value;
+    }
+
+    /**
+     * Fails on null values and on values that aren't of the property's type.
+     */
+    public static <V> V require(Object value, Class<V> type) {
+        if(!type.isInstance(require(value))){
+            throw new KeyException("Can't write "+value.getClass().getName()+" "+value+" as a property of type "+type.getName());
+        }
+        return type.cast(value);
+    }
+
+    /**
+     * Fails on values that aren't of the property's type. Nulls are allowed, as the DEFAULT
+     * encoding writes them.
+     */
+    public static <V> V cast(Object value, Class<V> type) {
+        if(value != null && !type.isInstance(value)){
+            throw new KeyException("Can't write "+value.getClass().getName()+" "+value+" as a property of type "+type.getName());
+        }
+        return type.cast(value);
+    }
+
+    /**
+     * Writes a non-negative value as zero padded decimal.
+     */
+    public static StringBuilder appendPadded(StringBuilder sb, long value, int width) {
+        if(value < 0){
+            throw new KeyException("A negative value ("+value+") can't be written as PADDED.");
+        }
+        int length = 1;
+        for(long rest = value / 10; rest > 0; rest /= 10){
+            length++;
+        }
+        for(int i = length; i < width; i++){
+            sb.append('0');
+        }
+        return sb.append(value);
+    }
+
+    private static long pow10(int exponent) {
+        long result = 1;
+        for(int i = 0; i < exponent; i++){
+            result *= 10;
+        }
+        return result;
+    }
+
+    /**
+     * Writes an integral value of the given width as hex, with its sign bit flipped.
+     */
+    public static StringBuilder appendSortable(StringBuilder sb, long value, int bits) {
+        Hex.append(sb, value ^ (1L << (bits - 1)), bits / 4);
+        return sb;
+    }
+
+    /**
+     * Writes the sortable IEEE 754 bits of a floating point value as hex.
+     */
+    public static StringBuilder appendSortable(StringBuilder sb, double value) {
+        long bits = Double.doubleToLongBits(value);
+        // Negative values sort in reverse, so flip all their bits; flip only the sign of the rest.
+        Hex.append(sb, bits < 0 ? ~bits : bits ^ Long.MIN_VALUE, 16);
+        return sb;
+    }
+
+    /**
+     * Writes an ISO 8601 UTC timestamp.
+     */
+    public static StringBuilder appendIsoDate(StringBuilder sb, Date value) {
+        return appendIsoDate(sb, value.getTime());
+    }
+
+    public static StringBuilder appendIsoDate(StringBuilder sb, Calendar value) {
+        return appendIsoDate(sb, value.getTimeInMillis());
+    }
+
+    public static StringBuilder appendIsoDate(StringBuilder sb, long millis) {
+        if(millis < MIN_DATE || millis > MAX_DATE){
+            throw new KeyException(millis+" is outside the years an ISO_DATE can hold.");
+        }
+        long days = millis / MILLIS_PER_DAY;
+        if(millis % MILLIS_PER_DAY < 0){
+            days--;
+        }
+        int time = (int) (millis - days * MILLIS_PER_DAY);
+        // Days to the civil date, from Howard Hinnant's "chrono-Compatible Low-Level Date Algorithms".
+        long z = days + 719468;
+        long era = (z >= 0 ? z : z - 146096) / 146097;
+        int dayOfEra = (int) (z - era * 146097);
+        int yearOfEra = (dayOfEra - dayOfEra / 1460 + dayOfEra / 36524 - dayOfEra / 146096) / 365;
+        int dayOfYear = dayOfEra - (365 * yearOfEra + yearOfEra / 4 - yearOfEra / 100);
+        int mp = (5 * dayOfYear + 2) / 153;
+        int day = dayOfYear - (153 * mp + 2) / 5 + 1;
+        int month = mp < 10 ? mp + 3 : mp - 9;
+        long year = yearOfEra + era * 400 + (month <= 2 ? 1 : 0);
+        digits(sb, (int) year, 4).append('-');
+        digits(sb, month, 2).append('-');
+        digits(sb, day, 2).append('T');
+        digits(sb, time / 3600000, 2).append(':');
+        digits(sb, time / 60000 % 60, 2).append(':');
+        digits(sb, time / 1000 % 60, 2).append('.');
+        return digits(sb, time % 1000, 3).append('Z');
+    }
+
+    private static StringBuilder digits(StringBuilder sb, int value, int width) {
+        for(int divisor = (int) pow10(width - 1); divisor > 0; divisor /= 10){
+            sb.append((char) ('0' + value / divisor % 10));
+        }
+        return sb;
+    }
+}
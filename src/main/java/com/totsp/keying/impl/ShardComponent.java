@@ -0,0 +1,154 @@
+/**
+ *    Copyright 2013 Robert Cooper
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package com.totsp.keying.impl;
+
+/**
+ * Writes a shard number: a hash of either a property or the rest of the key, modulo the
+ * number of shards, as fixed width hex. A shard segment at the start of the key spreads
+ * keys that would otherwise be written in order (such as TIME keys) across the key space.
+ *
+ * When the shard hashes the rest of the key, the Generator leaves a gap for it, builds
+ * the rest of the key, and then calls insert().
+ */
+public class ShardComponent<T> implements AppendingComponent<T> {
+    private static final int FNV_OFFSET = 0x811c9dc5;
+    private static final int FNV_PRIME = 0x01000193;
+
+    private final int shards;
+    private final int width;
+    private final Component<T> source;
+
+    /**
+     * A shard of the rest of the key.
+     * @param shards number of shards.
+     */
+    public ShardComponent(int shards) {
+        this(shards, null);
+    }
+
+    /**
+     * A shard of a value.
+     * @param shards number of shards.
+     * @param source the component whose value is hashed, or null to hash the rest of the key.
+     */
+    public ShardComponent(int shards, Component<T> source) {
+        if(shards < 1){
+            throw new IllegalArgumentException("At least one shard is required, not "+shards);
+        }
+        this.shards = shards;
+        this.width = width(shards);
+        this.source = source;
+    }
+
+    /**
+     * @return true if the shard is a hash of the rest of the key.
+     */
+    public boolean hashesKey() {
+        return source == null;
+    }
+
+    @Override
+    public String getComponent(T object) {
+        StringBuilder sb = new StringBuilder(width);
+        append(object, sb);
+        return sb.toString();
+    }
+
+    @Override
+    public void append(T object, StringBuilder sb) {
+        if(source == null){
+            throw new IllegalStateException("A shard of the whole key is inserted by the Generator.");
+        }
+        appendShard(sb, source.getComponent(object));
+    }
+
+    /**
+     * Appends the shard of a value already rendered as the source component would.
+     * @param sb buffer to append to.
+     * @param value the source component's value.
+     */
+    public void appendShard(StringBuilder sb, CharSequence value) {
+        Hex.append(sb, shard(hash(value, 0, value.length(), false)), width);
+    }
+
+    /**
+     * Inserts the shard of the key built so far.
+     * @param sb the key, with a gap for the shard.
+     * @param offset the position of the gap.
+     * @param lowerCase whether the key will be lower cased, so the hash matches the final key.
+     */
+    public void insert(StringBuilder sb, int offset, boolean lowerCase) {
+        int shard = shard(hash(sb, 0, sb.length(), lowerCase));
+        char[] digits = new char[width];
+        for(int i = width - 1; i >= 0; i--, shard >>>= 4){
+            digits[i] = Character.forDigit(shard & 0xf, 16);
+        }
+        sb.insert(offset, digits);
+    }
+
+    /**
+     * @param shard a shard number.
+     * @return the shard segment for it.
+     */
+    public String format(int shard) {
+        StringBuilder sb = new StringBuilder(width);
+        Hex.append(sb, shard, width);
+        return sb.toString();
+    }
+
+    /**
+     * @return the component whose value is hashed, or null if the shard is a hash of the key.
+     */
+    public Component<T> getSource() {
+        return source;
+    }
+
+    public int getShards() {
+        return shards;
+    }
+
+    private int shard(int hash) {
+        return (hash & 0x7fffffff) % shards;
+    }
+
+    /**
+     * @return the number of hex digits needed for the largest shard number.
+     */
+    static int width(int shards) {
+        int width = 1;
+        for(int max = shards - 1; max > 0xf; max >>>= 4){
+            width++;
+        }
+        return width;
+    }
+
+    /**
+     * 32 bit FNV-1a over the UTF-16 code units, which spreads short, similar keys better
+     * than String.hashCode().
+     */
+    static int hash(CharSequence cs, int start, int end, boolean lowerCase) {
+        int hash = FNV_OFFSET;
+        for(int i = start; i < end; i++){
+            char c = cs.charAt(i);
+            if(lowerCase){
+                c = Character.toLowerCase(c);
+            }
+            hash = (hash ^ (c & 0xff)) * FNV_PRIME;
+            hash = (hash ^ (c >>> 8)) * FNV_PRIME;
+        }
+        return hash;
+    }
+}
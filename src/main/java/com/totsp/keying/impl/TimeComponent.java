@@ -15,25 +15,156 @@
  */
 package com.totsp.keying.impl;
 
+import com.totsp.keying.definition.TimeEncoding;
+
 /**
- *
+ * Writes the current time in milliseconds (or the largest value of the encoding less
+ * the time, when inverse) as 16 hex digits, or in one of the compact TimeEncodings.
+ * In monotonic mode the time comes from a MonotonicClock
+ * owned by the component, so every value it writes is unique and strictly increasing
+ * (or decreasing, when inverse) while still sorting against plain millisecond values.
  */
-public class TimeComponent<T> implements NonDeterministicComponent<T> {
+public class TimeComponent<T> implements NonDeterministicComponent<T>, AppendingComponent<T> {
+
+    /** The largest 50 bit value, which inverse BASE32 times count down from. */
+    private static final long BASE32_MAX = (1L << 50) - 1;
+    /** The largest 48 bit value, which inverse BASE64 times count down from. */
+    private static final long BASE64_MAX = (1L << 48) - 1;
 
     private final boolean inverse;
+    private final MonotonicClock clock;
+    private final TimeEncoding encoding;
 
     public TimeComponent(boolean inverse) {
+        this(inverse, false);
+    }
+
+    public TimeComponent(boolean inverse, boolean monotonic) {
+        this(inverse, monotonic, TimeEncoding.HEX);
+    }
+
+    public TimeComponent(boolean inverse, boolean monotonic, TimeEncoding encoding) {
         this.inverse = inverse;
+        this.clock = monotonic ? new MonotonicClock() : null;
+        this.encoding = encoding;
     }
 
     @Override
     public String getComponent(T object) {
-        String s;
-        if(inverse){
-            s = Long.toHexString(Long.MAX_VALUE - System.currentTimeMillis());
-        } else{
-            s = Long.toHexString(System.currentTimeMillis());
+        StringBuilder sb = new StringBuilder(width(encoding));
+        append(object, sb);
+        return sb.toString();
+    }
+
+    @Override
+    public void append(T object, StringBuilder sb) {
+        append(sb, clock == null ? System.currentTimeMillis() : clock.next());
+    }
+
+    /**
+     * Reads the clock once for a batch. In monotonic mode this reserves a run of
+     * consecutive ticks from the component's clock, and the n-th member of the batch gets
+     * the first plus n, so the batch's times are unique like any others the clock hands
+     * out. Otherwise the whole batch gets the wall clock time, as keys computed in the same
+     * millisecond one at a time would.
+     * @param count size of the batch.
+     * @return the first time of the batch.
+     */
+    public long reserve(int count) {
+        return clock == null ? System.currentTimeMillis() : clock.reserve(count);
+    }
+
+    /**
+     * Appends the time for the n-th member of a batch.
+     * @param sb buffer to append to.
+     * @param batchTime time returned by reserve().
+     * @param sequence index within the batch.
+     */
+    public void append(StringBuilder sb, long batchTime, int sequence) {
+        append(sb, clock == null ? batchTime : batchTime + sequence);
+    }
+
+    private void append(StringBuilder sb, long time) {
+        switch(encoding){
+            case BASE32:
+                Encodings.append(sb, inverse ? BASE32_MAX - time : time, 10, 5, Encodings.CROCKFORD32);
+                break;
+            case BASE64:
+                Encodings.append(sb, inverse ? BASE64_MAX - time : time, 8, 6, Encodings.SORTABLE64);
+                break;
+            default:
+                Hex.append(sb, inverse ? Long.MAX_VALUE - time : time, 16);
+        }
+    }
+
+    /**
+     * Writes a time as this component would, for building key ranges.
+     * @param time time in milliseconds, which must be between 0 and getMaxTime().
+     * @return the time segment.
+     */
+    public String format(long time) {
+        if(time < 0 || time > getMaxTime()){
+            throw new IllegalArgumentException(time+" is outside the range of "+encoding+" times");
+        }
+        StringBuilder sb = new StringBuilder(width(encoding));
+        append(sb, time);
+        return sb.toString();
+    }
+
+    /**
+     * @return the largest time the encoding can write.
+     */
+    public long getMaxTime() {
+        switch(encoding){
+            case BASE32:
+                return BASE32_MAX;
+            case BASE64:
+                return BASE64_MAX;
+            default:
+                return Long.MAX_VALUE;
+        }
+    }
+
+    /**
+     * @return true if later times sort first.
+     */
+    public boolean isInverse() {
+        return inverse;
+    }
+
+    /**
+     * @return the number of characters a time segment takes in a key.
+     */
+    static int width(TimeEncoding encoding) {
+        switch(encoding){
+            case BASE32:
+                return 10;
+            case BASE64:
+                return 8;
+            default:
+                return 16;
+        }
+    }
+
+    /**
+     * Reads back a time segment written by a time component.
+     * @param key the key.
+     * @param start index of the segment in the key.
+     * @param inverse whether the segment was written by an INVERSE_TIME component.
+     * @param encoding the strategy's time encoding.
+     * @return the time in milliseconds.
+     */
+    static long decode(CharSequence key, int start, boolean inverse, TimeEncoding encoding) {
+        switch(encoding){
+            case BASE32:
+                long base32 = Encodings.parse(key, start, 10, 5, Encodings.CROCKFORD32);
+                return inverse ? BASE32_MAX - base32 : base32;
+            case BASE64:
+                long base64 = Encodings.parse(key, start, 8, 6, Encodings.SORTABLE64);
+                return inverse ? BASE64_MAX - base64 : base64;
+            default:
+                long hex = Hex.parse(key, start, start + 16);
+                return inverse ? Long.MAX_VALUE - hex : hex;
         }
-        return "00000000".substring(s.length() - 8) + s;
     }
 }
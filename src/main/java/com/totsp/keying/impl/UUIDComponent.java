@@ -15,15 +15,109 @@
  */
 package com.totsp.keying.impl;
 
+import com.totsp.keying.definition.UUIDEncoding;
+
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
 import java.util.UUID;
 
 /**
- *
+ * Writes a random UUID. The STANDARD encoding uses UUID.randomUUID(); the compact
+ * encodings draw their 122 random bits from a SHA1PRNG per thread, seeded once from
+ * the shared SecureRandom. The default SecureRandom on Linux (NativePRNG) locks one
+ * global pool on every call however many instances there are, so only the seeding
+ * contends.
  */
-public class UUIDComponent<T> implements NonDeterministicComponent<T> {
+public class UUIDComponent<T> implements NonDeterministicComponent<T>, AppendingComponent<T> {
+
+    private static final SecureRandom SEEDS = new SecureRandom();
+    private static final ThreadLocal<SecureRandom> RANDOM = new ThreadLocal<SecureRandom>() {
+        @Override
+        protected SecureRandom initialValue() {
+            byte[] seed = new byte[32];
+            SEEDS.nextBytes(seed);
+            try {
+                // Seeding before the first use replaces the PRNG's own self-seeding.
+                SecureRandom random = SecureRandom.getInstance("SHA1PRNG");
+                random.setSeed(seed);
+                return random;
+            } catch (NoSuchAlgorithmException e) {
+                return new SecureRandom(seed);
+            }
+        }
+    };
+
+    private final UUIDEncoding encoding;
+
+    public UUIDComponent() {
+        this(UUIDEncoding.STANDARD);
+    }
+
+    public UUIDComponent(UUIDEncoding encoding) {
+        this.encoding = encoding;
+    }
 
     @Override
     public String getComponent(T object) {
-        return UUID.randomUUID().toString();
+        if(encoding == UUIDEncoding.STANDARD){
+            return UUID.randomUUID().toString();
+        }
+        StringBuilder sb = new StringBuilder(26);
+        append(object, sb);
+        return sb.toString();
+    }
+
+    /**
+     * Writes the same 8-4-4-4-12 form as UUID.toString() without the intermediate String,
+     * or the compact form for the other encodings.
+     */
+    @Override
+    public void append(T object, StringBuilder sb) {
+        switch(encoding){
+            case BASE64:
+                appendRandom(sb, 6, Encodings.BASE64_URL);
+                break;
+            case BASE32:
+                appendRandom(sb, 5, Encodings.CROCKFORD32);
+                break;
+            default:
+                appendStandard(sb, UUID.randomUUID());
+        }
+    }
+
+    /**
+     * @return the number of characters a UUID segment takes in a key.
+     */
+    static int width(UUIDEncoding encoding){
+        switch(encoding){
+            case BASE64:
+                return 22;
+            case BASE32:
+                return 26;
+            default:
+                return 36;
+        }
+    }
+
+    private static void appendRandom(StringBuilder sb, int bits, char[] alphabet){
+        SecureRandom random = RANDOM.get();
+        // Version 4, IETF variant, as UUID.randomUUID() would produce.
+        long msb = (random.nextLong() & 0xffffffffffff0fffL) | 0x0000000000004000L;
+        long lsb = (random.nextLong() & 0x3fffffffffffffffL) | 0x8000000000000000L;
+        Encodings.append128(sb, msb, lsb, bits, alphabet);
+    }
+
+    private static void appendStandard(StringBuilder sb, UUID uuid) {
+        long msb = uuid.getMostSignificantBits();
+        long lsb = uuid.getLeastSignificantBits();
+        Hex.append(sb, msb >>> 32, 8);
+        sb.append('-');
+        Hex.append(sb, msb >>> 16, 4);
+        sb.append('-');
+        Hex.append(sb, msb, 4);
+        sb.append('-');
+        Hex.append(sb, lsb >>> 48, 4);
+        sb.append('-');
+        Hex.append(sb, lsb, 12);
     }
 }
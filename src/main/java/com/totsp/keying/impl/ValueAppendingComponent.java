@@ -0,0 +1,31 @@
+/**
+ *    Copyright 2013 Robert Cooper
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package com.totsp.keying.impl;
+
+/**
+ * A property component that can also write a value passed to it in place of the
+ * property, encoded the same way, as idFor() and keyPrefix() need.
+ */
+public interface ValueAppendingComponent<T> extends AppendingComponent<T> {
+
+    /**
+     * Appends a value as if it had been read from the property.
+     * @param sb buffer to append to.
+     * @param value a value of the property's type (boxed, for primitive properties).
+     * @throws com.totsp.keying.reflect.KeyException if the value isn't of the property's type, or can't be encoded.
+     */
+    void appendValue(StringBuilder sb, Object value);
+}
@@ -0,0 +1,31 @@
+/**
+ *    Copyright 2013 Robert Cooper
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package com.totsp.keying.impl;
+
+/**
+ * Writes a property value into a key. Converters are registered with ValueConverters
+ * and chosen by the property's declared type when a PropertyComponent is created.
+ *
+ * @param <V> the type converted.
+ */
+public interface ValueConverter<V> {
+
+    /**
+     * @param sb buffer to append to.
+     * @param value a non-null value.
+     */
+    void append(StringBuilder sb, V value);
+}
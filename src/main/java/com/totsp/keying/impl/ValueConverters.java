@@ -0,0 +1,198 @@
+/**
+ *    Copyright 2013 Robert Cooper
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package com.totsp.keying.impl;
+
+import com.google.common.base.Throwables;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.LoadingCache;
+import com.google.common.primitives.Primitives;
+import com.google.common.util.concurrent.UncheckedExecutionException;
+
+import javax.annotation.Nonnull;
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.Date;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * The registry of ValueConverters. A property uses the converter registered for its
+ * declared type, or failing that for the nearest superclass or interface; properties
+ * without one are written with String.valueOf(), as are Strings, primitives and their
+ * boxes. Generators look their converters up
+ * once, when they are built, so register converters before keying the entities that
+ * use them.
+ *
+ * The ENUM converter is registered by default. It writes the same toString() value,
+ * so it doesn't change any keys. Others change how existing values are written, so
+ * they must be registered explicitly.
+ */
+public final class ValueConverters {
+
+    /**
+     * Writes enum constants with toString(), computed once per constant.
+     */
+    public static final ValueConverter<Enum<?>> ENUM = new ValueConverter<Enum<?>>() {
+        private final ClassValue<String[]> names = new ClassValue<String[]>() {
+            @Override
+            protected String[] computeValue(Class<?> type) {
+                Object[] constants = type.getEnumConstants();
+                String[] names = new String[constants.length];
+                for(int i = 0; i < constants.length; i++){
+                    names[i] = constants[i].toString();
+                }
+                return names;
+            }
+        };
+
+        @Override
+        public void append(StringBuilder sb, Enum<?> value) {
+            sb.append(names.get(value.getDeclaringClass())[value.ordinal()]);
+        }
+    };
+
+    /**
+     * Writes a Date as yyyy-MM-ddTHH:mm:ss.SSSZ in UTC, instead of the time zone dependent
+     * (and unordered) Date.toString().
+     */
+    public static final ValueConverter<Date> DATE = new ValueConverter<Date>() {
+        @Override
+        public void append(StringBuilder sb, Date value) {
+            PropertyEncodings.appendIsoDate(sb, value);
+        }
+    };
+
+    private static final ConcurrentMap<Class<?>, ValueConverter<?>> CONVERTERS = new ConcurrentHashMap<>();
+
+    static {
+        CONVERTERS.put(Enum.class, ENUM);
+    }
+
+    private ValueConverters() {
+    }
+
+    /**
+     * Registers (or replaces) the converter for a type and its subtypes.
+     * @param type the declared property type.
+     * @param converter the converter to use.
+     * @param <V> the type.
+     */
+    public static <V> void register(@Nonnull Class<V> type, @Nonnull ValueConverter<? super V> converter) {
+        checkNotNull(type, "type");
+        checkNotNull(converter, "converter");
+        checkArgument(!type.isPrimitive() && type != String.class && !Primitives.isWrapperType(type),
+                "%s is always written as is", type);
+        CONVERTERS.put(type, converter);
+    }
+
+    /**
+     * Removes the converter registered for exactly this type.
+     * @return true if there was one.
+     */
+    public static boolean unregister(@Nonnull Class<?> type) {
+        return CONVERTERS.remove(checkNotNull(type, "type")) != null;
+    }
+
+    /**
+     * Finds the converter for a declared type: the one registered for the type, then
+     * for its superclasses, then for its interfaces.
+     * @param type the declared property type.
+     * @return the converter, or null if values should be written with String.valueOf().
+     */
+    @SuppressWarnings("unchecked")
+    public static ValueConverter<Object> find(@Nonnull Class<?> type) {
+        checkNotNull(type, "type");
+        if(type.isPrimitive() || type == String.class || Primitives.isWrapperType(type)){
+            return null;
+        }
+        for(Class<?> c = type; c != null; c = c.getSuperclass()){
+            ValueConverter<?> converter = CONVERTERS.get(c);
+            if(converter != null){
+                return (ValueConverter<Object>) converter;
+            }
+        }
+        Set<Class<?>> seen = new HashSet<>();
+        Deque<Class<?>> interfaces = new ArrayDeque<>();
+        for(Class<?> c = type; c != null; c = c.getSuperclass()){
+            Collections.addAll(interfaces, c.getInterfaces());
+        }
+        while(!interfaces.isEmpty()){
+            Class<?> c = interfaces.removeFirst();
+            if(seen.add(c)){
+                ValueConverter<?> converter = CONVERTERS.get(c);
+                if(converter != null){
+                    return (ValueConverter<Object>) converter;
+                }
+                Collections.addAll(interfaces, c.getInterfaces());
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Appends a value with the converter, or with String.valueOf() if the converter or the
+     * value is null.
+     * @return the buffer.
+     */
+    public static StringBuilder append(ValueConverter<Object> converter, StringBuilder sb, Object value) {
+        if(converter == null || value == null){
+            return sb.append(value);
+        }
+        converter.append(sb, value);
+        return sb;
+    }
+
+    /**
+     * Wraps a converter of immutable values so the last maximumSize distinct values are
+     * converted only once.
+     * @param converter the converter to wrap. Equal values must convert to equal strings.
+     * @param maximumSize the number of values to remember.
+     * @param <V> the type converted.
+     * @return the memoizing converter.
+     */
+    public static <V> ValueConverter<V> memoize(@Nonnull final ValueConverter<V> converter, int maximumSize) {
+        checkNotNull(converter, "converter");
+        checkArgument(maximumSize > 0, "maximumSize must be positive: %s", maximumSize);
+        final LoadingCache<V, String> cache = CacheBuilder.newBuilder()
+                .maximumSize(maximumSize)
+                .build(new CacheLoader<V, String>() {
+                    @Override
+                    public String load(V value) {
+                        StringBuilder sb = new StringBuilder();
+                        converter.append(sb, value);
+                        return sb.toString();
+                    }
+                });
+        return new ValueConverter<V>() {
+            @Override
+            public void append(StringBuilder sb, V value) {
+                try {
+                    sb.append(cache.getUnchecked(value));
+                } catch (UncheckedExecutionException e) {
+                    Throwables.propagateIfPossible(e.getCause());
+                    throw e;
+                }
+            }
+        };
+    }
+}
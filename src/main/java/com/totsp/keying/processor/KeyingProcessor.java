@@ -0,0 +1,697 @@
+/**
+ *    Copyright 2013 Robert Cooper
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package com.totsp.keying.processor;
+
+import com.totsp.keying.definition.KeySegment;
+import com.totsp.keying.definition.KeyStrategy;
+import com.totsp.keying.definition.PropertyEncoding;
+import com.totsp.keying.definition.TimeEncoding;
+import com.totsp.keying.definition.UUIDEncoding;
+
+import javax.annotation.processing.AbstractProcessor;
+import javax.annotation.processing.RoundEnvironment;
+import javax.annotation.processing.SupportedAnnotationTypes;
+import javax.lang.model.SourceVersion;
+import javax.lang.model.element.Element;
+import javax.lang.model.element.ElementKind;
+import javax.lang.model.element.ExecutableElement;
+import javax.lang.model.element.Modifier;
+import javax.lang.model.element.NestingKind;
+import javax.lang.model.element.PackageElement;
+import javax.lang.model.element.TypeElement;
+import javax.lang.model.element.VariableElement;
+import javax.lang.model.type.PrimitiveType;
+import javax.lang.model.type.TypeKind;
+import javax.lang.model.type.TypeMirror;
+import javax.lang.model.util.ElementFilter;
+import javax.lang.model.util.Elements;
+import javax.lang.model.util.Types;
+import javax.tools.Diagnostic;
+import javax.tools.FileObject;
+import javax.tools.JavaFileObject;
+import javax.tools.StandardLocation;
+import java.beans.Introspector;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+/**
+ * An annotation processor that validates every @KeyStrategy at compile time and
+ * generates a plain Java Generator (named Entity_Keyer, in the entity's package) for
+ * each entity whose id and key properties are accessible from its package. The
+ * generated keyers are listed in the META-INF/keying-keyers resource, which
+ * KeyGenerator reads so those entities are keyed without any introspection.
+ *
+ * Strategies that would throw a KeyException at runtime are reported as compile errors.
+ * Entities that can't be generated (private members, generic or local types) are
+ * reported as notes and keep using reflection.
+ */
+@SupportedAnnotationTypes("com.totsp.keying.definition.KeyStrategy")
+public class KeyingProcessor extends AbstractProcessor {
+
+    /**
+     * The registry resource: one entity=keyer pair of binary class names per line.
+     */
+    public static final String REGISTRY = "META-INF/keying-keyers";
+
+    private static final String SUFFIX = "_Keyer";
+    private static final Charset UTF8 = Charset.forName("utf-8");
+
+    private final Map<String, String> registry = new TreeMap<>();
+
+    @Override
+    public SourceVersion getSupportedSourceVersion() {
+        return SourceVersion.latestSupported();
+    }
+
+    @Override
+    public boolean process(Set<? extends TypeElement> annotations, RoundEnvironment roundEnv) {
+        for(Element annotated : roundEnv.getElementsAnnotatedWith(KeyStrategy.class)){
+            TypeElement type = (TypeElement) annotated.getEnclosingElement();
+            Entity entity = analyze(type, annotated, annotated.getAnnotation(KeyStrategy.class));
+            if(entity != null){
+                try {
+                    write(entity);
+                    registry.put(processingEnv.getElementUtils().getBinaryName(type).toString(), entity.keyerName());
+                } catch (IOException e) {
+                    processingEnv.getMessager().printMessage(Diagnostic.Kind.ERROR,
+                            "Failed to write keyer for "+type.getQualifiedName()+": "+e, annotated);
+                }
+            }
+        }
+        if(roundEnv.processingOver() && !registry.isEmpty()){
+            writeRegistry();
+        }
+        return false;
+    }
+
+    private Entity analyze(TypeElement type, Element annotated, KeyStrategy strategy){
+        boolean valid = true;
+        int propertyCount = 0;
+        int shardCount = 0;
+        boolean onlyTime = strategy.value().length == 1;
+        for(KeySegment segment : strategy.value()){
+            if(segment == KeySegment.PROPERTY){
+                propertyCount++;
+            } else if(segment == KeySegment.SHARD){
+                shardCount++;
+            }
+            onlyTime &= segment == KeySegment.TIME || segment == KeySegment.INVERSE_TIME;
+        }
+        if(strategy.value().length == 0){
+            valid = error(annotated, type.getQualifiedName()+" has a KeyStrategy with no segments.");
+        }
+        if(propertyCount > strategy.properties().length){
+            valid = error(annotated, "Expected "+propertyCount+" properties but found "+strategy.properties().length+" on "+type.getQualifiedName());
+        } else if(propertyCount < strategy.properties().length){
+            // The KeyGenerator ignores the extra properties, so they aren't an error.
+            processingEnv.getMessager().printMessage(Diagnostic.Kind.WARNING, "Expected "+propertyCount+" properties but found "
+                    +strategy.properties().length+" on "+type.getQualifiedName()+"; the extra ones are ignored.", annotated);
+        }
+        if(onlyTime){
+            valid = error(annotated, type.getQualifiedName()+" cannot have a key value of only a time.");
+        }
+        if(strategy.lowerCase() && strategy.uuidEncoding() == UUIDEncoding.BASE64){
+            valid = error(annotated, type.getQualifiedName()+" cannot lower case a BASE64 UUID.");
+        }
+        if(strategy.encodings().length != 0 && strategy.encodings().length != strategy.properties().length){
+            valid = error(annotated, "Expected "+strategy.properties().length+" encodings but found "+strategy.encodings().length+" on "+type.getQualifiedName());
+        }
+        if(strategy.lowerCase() && strategy.timeEncoding() == TimeEncoding.BASE64){
+            valid = error(annotated, type.getQualifiedName()+" cannot lower case a BASE64 time.");
+        }
+        if(shardCount > 1){
+            valid = error(annotated, type.getQualifiedName()+" cannot have more than one SHARD segment.");
+        }
+        if(shardCount > 0 && strategy.shards() < 1){
+            valid = error(annotated, type.getQualifiedName()+" must have at least one shard.");
+        }
+        Property shard = null;
+        if(shardCount > 0 && !strategy.shardProperty().trim().isEmpty()){
+            shard = findProperty(type, strategy.shardProperty().trim());
+            if(shard == null){
+                valid = error(annotated, "Failed to find a readable field or property for "+strategy.shardProperty()+" on "+type.getQualifiedName());
+            }
+        }
+        List<Property> properties = new ArrayList<>();
+        for(int i = 0; i < Math.min(propertyCount, strategy.properties().length); i++){
+            String name = strategy.properties()[i];
+            Property property = findProperty(type, name.trim());
+            PropertyEncoding encoding = encoding(strategy, i);
+            if(property == null){
+                valid = error(annotated, "Failed to find a readable field or property for "+name+" on "+type.getQualifiedName());
+            } else if(!encodable(property.type, encoding)){
+                valid = error(annotated, encoding+" can't be used for "+name+" of type "+property.type+" on "+type.getQualifiedName());
+            }
+            properties.add(property);
+        }
+        Id id = findId(type, annotated);
+        if(id == null){
+            valid = error(annotated, "A KeyStrategy must be on a non-final String field, or on the getter of a read/write String property of "+type.getQualifiedName());
+        }
+        if(!valid){
+            return null;
+        }
+        List<Property> accessed = new ArrayList<>(properties);
+        if(shard != null){
+            accessed.add(shard);
+        }
+        String reason = inaccessible(type, id, accessed);
+        if(reason != null){
+            processingEnv.getMessager().printMessage(Diagnostic.Kind.NOTE,
+                    "Not generating a keyer for "+type.getQualifiedName()+" ("+reason+"); it will be keyed reflectively.", annotated);
+            return null;
+        }
+        return new Entity(type, strategy, properties, shard, id);
+    }
+
+    private static PropertyEncoding encoding(KeyStrategy strategy, int index){
+        return index < strategy.encodings().length ? strategy.encodings()[index] : PropertyEncoding.DEFAULT;
+    }
+
+    /**
+     * Whether PropertyComponent accepts the encoding for a property of the type.
+     */
+    private boolean encodable(TypeMirror type, PropertyEncoding encoding){
+        if(encoding == PropertyEncoding.DEFAULT){
+            return true;
+        }
+        TypeKind kind = kind(type);
+        boolean integral = kind == TypeKind.LONG || kind == TypeKind.INT || kind == TypeKind.SHORT || kind == TypeKind.BYTE;
+        switch(encoding){
+            case PADDED:
+                return integral;
+            case SORTABLE_HEX:
+                return integral || kind == TypeKind.DOUBLE || kind == TypeKind.FLOAT;
+            case ISO_DATE:
+                return kind == TypeKind.LONG || assignable(type, Date.class) || assignable(type, Calendar.class);
+            default:
+                return false;
+        }
+    }
+
+    private boolean assignable(TypeMirror type, Class<?> to){
+        TypeElement element = processingEnv.getElementUtils().getTypeElement(to.getName());
+        Types types = processingEnv.getTypeUtils();
+        return element != null && types.isAssignable(types.erasure(type), types.erasure(element.asType()));
+    }
+
+    private boolean error(Element element, String message){
+        processingEnv.getMessager().printMessage(Diagnostic.Kind.ERROR, message, element);
+        return false;
+    }
+
+    /**
+     * Resolves a property the way Reader does: a public bean getter first, then a field
+     * declared on the type itself.
+     */
+    private Property findProperty(TypeElement type, String name){
+        for(ExecutableElement method : ElementFilter.methodsIn(processingEnv.getElementUtils().getAllMembers(type))){
+            if(name.equals(propertyName(method))){
+                return new Property(method.getSimpleName()+"()", method.getReturnType(), method);
+            }
+        }
+        for(VariableElement field : ElementFilter.fieldsIn(type.getEnclosedElements())){
+            if(field.getSimpleName().contentEquals(name)){
+                return new Property(name, field.asType(), field);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * The bean property name of a public getter, or null if the method isn't one.
+     */
+    private static String propertyName(ExecutableElement method){
+        if(!method.getModifiers().contains(Modifier.PUBLIC) || method.getModifiers().contains(Modifier.STATIC)
+                || !method.getParameters().isEmpty() || method.getReturnType().getKind() == TypeKind.VOID){
+            return null;
+        }
+        String name = method.getSimpleName().toString();
+        if(name.startsWith("get") && name.length() > 3){
+            return Introspector.decapitalize(name.substring(3));
+        }
+        if(name.startsWith("is") && name.length() > 2 && method.getReturnType().getKind() == TypeKind.BOOLEAN){
+            return Introspector.decapitalize(name.substring(2));
+        }
+        return null;
+    }
+
+    /**
+     * Resolves the id the way Setter does: the annotated field, or the annotated getter of
+     * a property with a matching setter.
+     */
+    private Id findId(TypeElement type, Element annotated){
+        if(annotated.getKind() == ElementKind.FIELD){
+            if(annotated.getModifiers().contains(Modifier.FINAL) || annotated.getModifiers().contains(Modifier.STATIC)
+                    || !annotated.asType().toString().equals(String.class.getName())){
+                return null;
+            }
+            String name = annotated.getSimpleName().toString();
+            return new Id("target."+name+" = id", "target."+name+" != null", annotated);
+        }
+        if(annotated.getKind() != ElementKind.METHOD){
+            return null;
+        }
+        ExecutableElement getter = (ExecutableElement) annotated;
+        String property = propertyName(getter);
+        if(property == null){
+            return null;
+        }
+        for(ExecutableElement method : ElementFilter.methodsIn(processingEnv.getElementUtils().getAllMembers(type))){
+            String name = method.getSimpleName().toString();
+            if(name.startsWith("set") && name.length() > 3 && property.equals(Introspector.decapitalize(name.substring(3)))
+                    && method.getModifiers().contains(Modifier.PUBLIC) && method.getParameters().size() == 1
+                    && method.getParameters().get(0).asType().toString().equals(String.class.getName())){
+                return new Id("target."+name+"(id)", "target."+getter.getSimpleName()+"() != null", getter);
+            }
+        }
+        return null;
+    }
+
+    private static String inaccessible(TypeElement type, Id id, List<Property> properties){
+        if(!type.getTypeParameters().isEmpty()){
+            return "it is generic";
+        }
+        for(Element e = type; e instanceof TypeElement; e = e.getEnclosingElement()){
+            TypeElement t = (TypeElement) e;
+            if(t.getModifiers().contains(Modifier.PRIVATE)){
+                return t.getSimpleName()+" is private";
+            }
+            if(t.getNestingKind() == NestingKind.LOCAL || t.getNestingKind() == NestingKind.ANONYMOUS
+                    || (t.getNestingKind() == NestingKind.MEMBER && !t.getModifiers().contains(Modifier.STATIC))){
+                return t.getSimpleName()+" is not a top level or static member class";
+            }
+        }
+        if(id.element.getModifiers().contains(Modifier.PRIVATE)){
+            return "its id "+id.element.getSimpleName()+" is private";
+        }
+        for(Property property : properties){
+            if(property.element.getModifiers().contains(Modifier.PRIVATE)){
+                return property.element.getSimpleName()+" is private";
+            }
+        }
+        return null;
+    }
+
+    private void write(Entity entity) throws IOException {
+        JavaFileObject file = processingEnv.getFiler().createSourceFile(entity.keyerName(), entity.type);
+        String t = entity.type.getQualifiedName().toString();
+        KeyStrategy strategy = entity.strategy;
+        try(Writer w = file.openWriter()){
+            if(!entity.packageName().isEmpty()){
+                w.write("package "+entity.packageName()+";\n\n");
+            }
+            w.write("import com.totsp.keying.definition.KeySegment;\n");
+            w.write("import com.totsp.keying.definition.KeyStrategy;\n");
+            w.write("import com.totsp.keying.definition.PropertyEncoding;\n");
+            w.write("import com.totsp.keying.definition.TimeEncoding;\n");
+            w.write("import com.totsp.keying.definition.UUIDEncoding;\n");
+            w.write("import com.totsp.keying.impl.Component;\n");
+            w.write("import com.totsp.keying.impl.Generator;\n");
+            w.write("import com.totsp.keying.impl.PropertyEncodings;\n");
+            w.write("import com.totsp.keying.impl.ShardComponent;\n");
+            w.write("import com.totsp.keying.impl.TimeComponent;\n");
+            w.write("import com.totsp.keying.impl.UUIDComponent;\n");
+            w.write("import com.totsp.keying.impl.ValueAppendingComponent;\n");
+            w.write("import com.totsp.keying.impl.ValueConverter;\n");
+            w.write("import com.totsp.keying.impl.ValueConverters;\n");
+            w.write("import com.totsp.keying.reflect.Setter;\n\n");
+            w.write("import java.lang.annotation.Annotation;\n\n");
+            w.write("/**\n * Generated by "+KeyingProcessor.class.getName()+" from the KeyStrategy on "+t+".\n */\n");
+            w.write("public final class "+entity.simpleKeyerName()+" extends Generator<"+t+"> {\n\n");
+
+            w.write("    private static final KeyStrategy STRATEGY = new KeyStrategy() {\n");
+            w.write("        @Override\n        public Class<? extends Annotation> annotationType() {\n            return KeyStrategy.class;\n        }\n\n");
+            w.write("        @Override\n        public KeySegment[] value() {\n            return new KeySegment[]{");
+            for(int i = 0; i < strategy.value().length; i++){
+                w.write((i == 0 ? "" : ", ")+"KeySegment."+strategy.value()[i].name());
+            }
+            w.write("};\n        }\n\n");
+            w.write("        @Override\n        public String[] properties() {\n            return new String[]{");
+            for(int i = 0; i < strategy.properties().length; i++){
+                w.write((i == 0 ? "" : ", ")+literal(strategy.properties()[i]));
+            }
+            w.write("};\n        }\n\n");
+            w.write("        @Override\n        public PropertyEncoding[] encodings() {\n            return new PropertyEncoding[]{");
+            for(int i = 0; i < strategy.encodings().length; i++){
+                w.write((i == 0 ? "" : ", ")+"PropertyEncoding."+strategy.encodings()[i].name());
+            }
+            w.write("};\n        }\n\n");
+            w.write("        @Override\n        public String separator() {\n            return "+literal(strategy.separator())+";\n        }\n\n");
+            w.write("        @Override\n        public boolean lowerCase() {\n            return "+strategy.lowerCase()+";\n        }\n\n");
+            w.write("        @Override\n        public boolean monotonicTime() {\n            return "+strategy.monotonicTime()+";\n        }\n\n");
+            w.write("        @Override\n        public UUIDEncoding uuidEncoding() {\n            return UUIDEncoding."+strategy.uuidEncoding().name()+";\n        }\n\n");
+            w.write("        @Override\n        public TimeEncoding timeEncoding() {\n            return TimeEncoding."+strategy.timeEncoding().name()+";\n        }\n\n");
+            w.write("        @Override\n        public int shards() {\n            return "+strategy.shards()+";\n        }\n\n");
+            w.write("        @Override\n        public String shardProperty() {\n            return "+literal(strategy.shardProperty())+";\n        }\n");
+            w.write("    };\n\n");
+
+            w.write("    public "+entity.simpleKeyerName()+"() {\n");
+            w.write("        super(components(), setter(), STRATEGY.lowerCase());\n");
+            w.write("    }\n\n");
+
+            w.write("    @SuppressWarnings(\"unchecked\")\n");
+            w.write("    private static Component<"+t+">[] components() {\n");
+            w.write("        return new Component[]{\n");
+            int propertyIndex = 0;
+            for(KeySegment segment : strategy.value()){
+                switch(segment){
+                    case PROPERTY:
+                        PropertyEncoding encoding = encoding(strategy, propertyIndex);
+                        if(encoding == PropertyEncoding.DEFAULT){
+                            w.write("                ");
+                            writeProperty(w, t, entity.properties.get(propertyIndex), "                ");
+                            w.write(",\n");
+                        } else {
+                            w.write("                ");
+                            writeEncoded(w, t, entity.properties.get(propertyIndex), encoding, "                ");
+                            w.write(",\n");
+                        }
+                        propertyIndex++;
+                        break;
+                    case SHARD:
+                        if(entity.shard == null){
+                            w.write("                new ShardComponent<"+t+">(STRATEGY.shards()),\n");
+                        } else {
+                            w.write("                new ShardComponent<"+t+">(STRATEGY.shards(), ");
+                            writeProperty(w, t, entity.shard, "                ");
+                            w.write("),\n");
+                        }
+                        break;
+                    case TIME:
+                    case INVERSE_TIME:
+                        w.write("                new TimeComponent<"+t+">("+(segment == KeySegment.INVERSE_TIME)+", STRATEGY.monotonicTime(), STRATEGY.timeEncoding()),\n");
+                        break;
+                    case UUID:
+                        w.write("                new UUIDComponent<"+t+">(STRATEGY.uuidEncoding()),\n");
+                        break;
+                    default:
+                        throw new IllegalStateException("Unknown segment type "+segment);
+                }
+            }
+            w.write("        };\n");
+            w.write("    }\n\n");
+
+            w.write("    private static Setter<"+t+"> setter() {\n");
+            w.write("        return new Setter<"+t+">(STRATEGY) {\n");
+            w.write("            @Override\n");
+            w.write("            public void setId("+t+" target, String id) {\n");
+            w.write("                "+entity.id.assign+";\n");
+            w.write("            }\n\n");
+            w.write("            @Override\n");
+            w.write("            public boolean keyed("+t+" target) {\n");
+            w.write("                return "+entity.id.keyed+";\n");
+            w.write("            }\n");
+            w.write("        };\n");
+            w.write("    }\n");
+            w.write("}\n");
+        }
+    }
+
+    /**
+     * Writes a ValueAppendingComponent reading the property directly. Properties that may
+     * have a ValueConverter look it up for the declared type when the keyer is constructed,
+     * and values passed to appendValue() are checked against that type, as the reflective
+     * PropertyComponent does.
+     */
+    private void writeProperty(Writer w, String t, Property property, String indent) throws IOException {
+        Types types = processingEnv.getTypeUtils();
+        String read = "object."+property.access;
+        String value = property.type.getKind().isPrimitive()
+                ? "PropertyEncodings.require(value, "+types.boxedClass((PrimitiveType) property.type).getQualifiedName()+".class)"
+                : "PropertyEncodings.cast(value, "+types.erasure(property.type)+".class)";
+        w.write("new ValueAppendingComponent<"+t+">() {\n");
+        if(convertible(property.type)){
+            String type = types.erasure(property.type).toString();
+            w.write(indent+"    private final ValueConverter<Object> converter = ValueConverters.find("+type+".class);\n\n");
+            w.write(indent+"    @Override\n");
+            w.write(indent+"    public void append("+t+" object, StringBuilder sb) {\n");
+            w.write(indent+"        ValueConverters.append(converter, sb, "+read+");\n");
+            w.write(indent+"    }\n\n");
+            w.write(indent+"    @Override\n");
+            w.write(indent+"    public void appendValue(StringBuilder sb, Object value) {\n");
+            w.write(indent+"        ValueConverters.append(converter, sb, "+value+");\n");
+            w.write(indent+"    }\n\n");
+            w.write(indent+"    @Override\n");
+            w.write(indent+"    public String getComponent("+t+" object) {\n");
+            w.write(indent+"        return ValueConverters.append(converter, new StringBuilder(), "+read+").toString();\n");
+            w.write(indent+"    }\n");
+        } else {
+            String boxed = property.type.getKind().isPrimitive() ? read : "(Object) "+read;
+            w.write(indent+"    @Override\n");
+            w.write(indent+"    public void append("+t+" object, StringBuilder sb) {\n");
+            w.write(indent+"        sb.append("+boxed+");\n");
+            w.write(indent+"    }\n\n");
+            w.write(indent+"    @Override\n");
+            w.write(indent+"    public void appendValue(StringBuilder sb, Object value) {\n");
+            w.write(indent+"        sb.append((Object) "+value+");\n");
+            w.write(indent+"    }\n\n");
+            w.write(indent+"    @Override\n");
+            w.write(indent+"    public String getComponent("+t+" object) {\n");
+            w.write(indent+"        return String.valueOf("+boxed+");\n");
+            w.write(indent+"    }\n");
+        }
+        w.write(indent+"}");
+    }
+
+    /**
+     * Writes a ValueAppendingComponent passing the property directly to the PropertyEncodings
+     * writer for the encoding, which encodable() has already checked.
+     */
+    private void writeEncoded(Writer w, String t, Property property, PropertyEncoding encoding, String indent) throws IOException {
+        Types types = processingEnv.getTypeUtils();
+        String read = "object."+property.access;
+        if(!property.type.getKind().isPrimitive()){
+            read = "PropertyEncodings.require("+read+")";
+        }
+        String boxed = property.type.getKind().isPrimitive()
+                ? types.boxedClass((PrimitiveType) property.type).getQualifiedName().toString()
+                : types.erasure(property.type).toString();
+        w.write("new ValueAppendingComponent<"+t+">() {\n");
+        w.write(indent+"    @Override\n");
+        w.write(indent+"    public void append("+t+" object, StringBuilder sb) {\n");
+        w.write(indent+"        "+encode(property, encoding, read)+";\n");
+        w.write(indent+"    }\n\n");
+        w.write(indent+"    @Override\n");
+        w.write(indent+"    public void appendValue(StringBuilder sb, Object value) {\n");
+        w.write(indent+"        "+encode(property, encoding, "PropertyEncodings.require(value, "+boxed+".class)")+";\n");
+        w.write(indent+"    }\n\n");
+        w.write(indent+"    @Override\n");
+        w.write(indent+"    public String getComponent("+t+" object) {\n");
+        w.write(indent+"        StringBuilder sb = new StringBuilder();\n");
+        w.write(indent+"        return "+encode(property, encoding, read)+".toString();\n");
+        w.write(indent+"    }\n");
+        w.write(indent+"}");
+    }
+
+    /**
+     * The PropertyEncodings call that appends the value to sb.
+     */
+    private String encode(Property property, PropertyEncoding encoding, String value){
+        TypeKind kind = kind(property.type);
+        switch(encoding){
+            case PADDED:
+                return "PropertyEncodings.appendPadded(sb, "+value+", "+(kind == TypeKind.LONG ? 19 : 10)+")";
+            case SORTABLE_HEX:
+                switch(kind){
+                    case LONG:
+                        return "PropertyEncodings.appendSortable(sb, "+value+", 64)";
+                    case INT:
+                        return "PropertyEncodings.appendSortable(sb, "+value+", 32)";
+                    case SHORT:
+                        return "PropertyEncodings.appendSortable(sb, "+value+", 16)";
+                    case BYTE:
+                        return "PropertyEncodings.appendSortable(sb, "+value+", 8)";
+                    default:
+                        return "PropertyEncodings.appendSortable(sb, "+value+")";
+                }
+            case ISO_DATE:
+                return "PropertyEncodings.appendIsoDate(sb, "+value+")";
+            default:
+                throw new IllegalStateException("Unknown encoding "+encoding);
+        }
+    }
+
+    /**
+     * The kind of a primitive type, or of the primitive a boxed type unboxes to.
+     */
+    private TypeKind kind(TypeMirror type){
+        if(type.getKind() == TypeKind.DECLARED){
+            try {
+                return processingEnv.getTypeUtils().unboxedType(type).getKind();
+            } catch (IllegalArgumentException e) {
+                // Not a boxed primitive.
+            }
+        }
+        return type.getKind();
+    }
+
+    /**
+     * Whether a ValueConverter could apply: anything but primitives, Strings and boxed numbers.
+     */
+    private boolean convertible(TypeMirror type){
+        if(type.getKind().isPrimitive()){
+            return false;
+        }
+        if(type.getKind() == TypeKind.DECLARED){
+            String name = processingEnv.getTypeUtils().erasure(type).toString();
+            if(name.equals(String.class.getName())){
+                return false;
+            }
+            try {
+                processingEnv.getTypeUtils().unboxedType(type);
+                return false;
+            } catch (IllegalArgumentException e) {
+                // Not a boxed primitive.
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Writes the registry, keeping entries from earlier (incremental) compilations.
+     */
+    private void writeRegistry(){
+        Map<String, String> entries = new TreeMap<>();
+        try {
+            FileObject existing = processingEnv.getFiler().getResource(StandardLocation.CLASS_OUTPUT, "", REGISTRY);
+            try(BufferedReader reader = new BufferedReader(new InputStreamReader(existing.openInputStream(), UTF8))){
+                for(String line = reader.readLine(); line != null; line = reader.readLine()){
+                    int split = line.indexOf('=');
+                    if(split > 0){
+                        entries.put(line.substring(0, split).trim(), line.substring(split + 1).trim());
+                    }
+                }
+            }
+        } catch (IOException e) {
+            // No registry from a previous compilation.
+        }
+        // Entries from an earlier build survive only while their entity is still keyed and
+        // its keyer still exists, so deleted or renamed entities drop out.
+        for(Iterator<Map.Entry<String, String>> it = entries.entrySet().iterator(); it.hasNext();){
+            Map.Entry<String, String> entry = it.next();
+            if(!registry.containsKey(entry.getKey()) && !stillKeyed(entry.getKey(), entry.getValue())){
+                it.remove();
+            }
+        }
+        entries.putAll(registry);
+        try {
+            FileObject file = processingEnv.getFiler().createResource(StandardLocation.CLASS_OUTPUT, "", REGISTRY);
+            try(Writer w = file.openWriter()){
+                for(Map.Entry<String, String> entry : entries.entrySet()){
+                    w.write(entry.getKey()+"="+entry.getValue()+"\n");
+                }
+            }
+        } catch (IOException e) {
+            processingEnv.getMessager().printMessage(Diagnostic.Kind.ERROR, "Failed to write "+REGISTRY+": "+e);
+        }
+    }
+
+    private boolean stillKeyed(String entity, String keyer){
+        Elements elements = processingEnv.getElementUtils();
+        TypeElement type = elements.getTypeElement(entity.replace('$', '.'));
+        if(type == null || elements.getTypeElement(keyer) == null){
+            return false;
+        }
+        for(Element member : type.getEnclosedElements()){
+            if(member.getAnnotation(KeyStrategy.class) != null){
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static String literal(String value){
+        StringBuilder sb = new StringBuilder("\"");
+        for(char c : value.toCharArray()){
+            if(c == '"' || c == '\\'){
+                sb.append('\\').append(c);
+            } else if(c < 0x20 || c > 0x7e){
+                sb.append(String.format("\\u%04x", (int) c));
+            } else {
+                sb.append(c);
+            }
+        }
+        return sb.append('"').toString();
+    }
+
+    private class Entity {
+        final TypeElement type;
+        final KeyStrategy strategy;
+        final List<Property> properties;
+        final Property shard;
+        final Id id;
+
+        Entity(TypeElement type, KeyStrategy strategy, List<Property> properties, Property shard, Id id) {
+            this.type = type;
+            this.strategy = strategy;
+            this.properties = properties;
+            this.shard = shard;
+            this.id = id;
+        }
+
+        String packageName(){
+            PackageElement pkg = processingEnv.getElementUtils().getPackageOf(type);
+            return pkg.isUnnamed() ? "" : pkg.getQualifiedName().toString();
+        }
+
+        String simpleKeyerName(){
+            String qualified = type.getQualifiedName().toString();
+            String pkg = packageName();
+            return (pkg.isEmpty() ? qualified : qualified.substring(pkg.length() + 1)).replace('.', '_') + SUFFIX;
+        }
+
+        String keyerName(){
+            String pkg = packageName();
+            return pkg.isEmpty() ? simpleKeyerName() : pkg+"."+simpleKeyerName();
+        }
+    }
+
+    private static class Property {
+        final String access;
+        final TypeMirror type;
+        final Element element;
+
+        Property(String access, TypeMirror type, Element element) {
+            this.access = access;
+            this.type = type;
+            this.element = element;
+        }
+    }
+
+    private static class Id {
+        final String assign;
+        final String keyed;
+        final Element element;
+
+        Id(String assign, String keyed, Element element) {
+            this.assign = assign;
+            this.keyed = keyed;
+            this.element = element;
+        }
+    }
+}
@@ -0,0 +1,76 @@
+/**
+ *    Copyright 2013 Robert Cooper
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package com.totsp.keying.reflect;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+
+/**
+ * Resolves fields and bean methods to method handles once, so the Reader and Setter
+ * never go through core reflection (or access checks) when an entity is keyed.
+ */
+final class Handles {
+
+    /** The erased type of every read handle: (Object)Object. */
+    static final MethodType READ_TYPE = MethodType.methodType(Object.class, Object.class);
+    /** The erased type of every write handle: (Object, String)void. */
+    static final MethodType WRITE_TYPE = MethodType.methodType(void.class, Object.class, String.class);
+
+    private Handles() {
+    }
+
+    /**
+     * A handle reading the field, with its declared (possibly primitive) return type.
+     */
+    static MethodHandle getter(Field field) {
+        field.setAccessible(true);
+        try {
+            return MethodHandles.lookup().unreflectGetter(field);
+        } catch (IllegalAccessException e) {
+            throw new KeyException("Unable to access field " + field.getName() + " on "
+                    + field.getDeclaringClass().getCanonicalName(), e);
+        }
+    }
+
+    /**
+     * A handle writing the field, erased to WRITE_TYPE.
+     */
+    static MethodHandle setter(Field field) {
+        field.setAccessible(true);
+        try {
+            return MethodHandles.lookup().unreflectSetter(field).asType(WRITE_TYPE);
+        } catch (IllegalAccessException e) {
+            throw new KeyException("Unable to access field " + field.getName() + " on "
+                    + field.getDeclaringClass().getCanonicalName(), e);
+        }
+    }
+
+    /**
+     * A handle invoking the method, with its declared (possibly primitive) return type.
+     */
+    static MethodHandle invoker(Method method) {
+        method.setAccessible(true);
+        try {
+            return MethodHandles.lookup().unreflect(method);
+        } catch (IllegalAccessException e) {
+            throw new KeyException("Unable to access method " + method.getName() + " on "
+                    + method.getDeclaringClass().getCanonicalName(), e);
+        }
+    }
+}
@@ -17,7 +17,10 @@ package com.totsp.keying.reflect;
 
 import java.beans.Introspector;
 import java.beans.PropertyDescriptor;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodType;
 import java.lang.reflect.Field;
+import java.lang.reflect.Method;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -34,7 +37,6 @@ public class Reader<T> {
         try {
             for(PropertyDescriptor pd : Introspector.getBeanInfo(type).getPropertyDescriptors()){
                 if(pd.getName().equals(name) && pd.getReadMethod() != null){
-                    pd.getReadMethod().setAccessible(true);
                     accessor = new PropertyAccessor<T>(pd, type);
                     break;
                 }
@@ -60,49 +62,108 @@ public class Reader<T> {
         return this.accessor.read(object);
     }
 
-    private static interface Accessor<T> {
-        String read(T target);
+    /**
+     * Reads the value from the object and appends it to the buffer.
+     * @param object Object to read from.
+     * @param sb buffer to append to.
+     */
+    public void read(T object, StringBuilder sb){
+        sb.append(this.accessor.value(object));
     }
 
-    private static class FieldAccesor<T> implements Accessor<T> {
+    /**
+     * The declared type of the field or property.
+     * @return the type read.
+     */
+    public Class<?> getType(){
+        return this.accessor.type;
+    }
+
+    /**
+     * Returns the method handle to the underlying field or read method, adapted to
+     * the type (Object)Object so it can be composed into compiled generators.
+     * @return a method handle reading the raw value from a target.
+     */
+    public MethodHandle toMethodHandle(){
+        return this.accessor.handle;
+    }
+
+    /**
+     * Returns the method handle to the underlying field or read method, adapted to
+     * the type (Object)getType() so primitive values can be read without boxing.
+     * @return a method handle reading the value from a target.
+     */
+    public MethodHandle toTypedMethodHandle(){
+        return this.accessor.typed;
+    }
+
+    @Override
+    public String toString() {
+        return this.accessor.toString();
+    }
+
+    private abstract static class Accessor<T> {
+        /**
+         * The read handle, resolved once at construction.
+         */
+        final MethodHandle handle;
+        final MethodHandle typed;
+        final Class<?> type;
+
+        Accessor(MethodHandle handle) {
+            this.type = handle.type().returnType();
+            this.handle = handle.asType(Handles.READ_TYPE);
+            this.typed = handle.asType(MethodType.methodType(this.type, Object.class));
+        }
+
+        String read(T target){
+            return String.valueOf(value(target));
+        }
+
+        Object value(T target){
+            try {
+                return (Object) handle.invokeExact((Object) target);
+            } catch (Throwable t) {
+                throw new KeyException("Could not read "+this+" from "+target, t);
+            }
+        }
+    }
+
+    private static class FieldAccesor<T> extends Accessor<T> {
 
         private final Field field;
 
         private FieldAccesor(Field field) {
-            field.setAccessible(true);
+            super(Handles.getter(field));
             this.field = field;
         }
 
         @Override
-        public String read(T target) {
-            try {
-                return new StringBuilder().append(this.field.get(target)).toString();
-            } catch (IllegalAccessException e) {
-                throw new KeyException("Failed to read from "+field.getName()+" on "+target, e);
-            }
+        public String toString() {
+            return "field "+field.getName()+" on "+field.getDeclaringClass().getCanonicalName();
         }
     }
 
-    private static class PropertyAccessor<T> implements Accessor<T> {
-        private final PropertyDescriptor descriptor;
-        private final Class<T> type;
+    private static class PropertyAccessor<T> extends Accessor<T> {
+        private final String name;
+        private final Class<T> owner;
 
         private PropertyAccessor(PropertyDescriptor descriptor, Class<T> type) {
-            this.type = type;
+            super(Handles.invoker(readMethod(descriptor, type)));
+            this.owner = type;
+            this.name = descriptor.getName();
+        }
+
+        private static Method readMethod(PropertyDescriptor descriptor, Class<?> type){
             if(descriptor.getReadMethod() == null){
-                throw new KeyException("Cannot write to property "+descriptor.getName()+" on type "+type.getCanonicalName());
+                throw new KeyException("Cannot read property "+descriptor.getName()+" on type "+type.getCanonicalName());
             }
-            descriptor.getWriteMethod().setAccessible(true);
-            this.descriptor = descriptor;
+            return descriptor.getReadMethod();
         }
 
         @Override
-        public String read(T target) {
-            try {
-                return new StringBuilder().append(descriptor.getReadMethod().invoke(target)).toString();
-            } catch (Exception e) {
-                throw new KeyException("Could not read property "+descriptor.getName()+" on "+target, e);
-            }
+        public String toString() {
+            return "property "+name+" on "+owner.getCanonicalName();
         }
     }
 
@@ -21,6 +21,7 @@ import javax.annotation.Nonnull;
 import java.beans.IntrospectionException;
 import java.beans.Introspector;
 import java.beans.PropertyDescriptor;
+import java.lang.invoke.MethodHandle;
 import java.lang.reflect.Field;
 
 import static com.google.common.base.Preconditions.checkNotNull;
@@ -66,6 +67,17 @@ public class Setter<T> {
         this.strategy = strategy;
     }
 
+    /**
+     * Constructor for generated keyers, which override setId() and keyed() to access
+     * the id directly.
+     * @param strategy the strategy declared on the id.
+     */
+    protected Setter(@Nonnull KeyStrategy strategy){
+        checkNotNull(strategy);
+        this.mutator = null;
+        this.strategy = strategy;
+    }
+
     public void setId(T target, String id){
         this.mutator.set(target, id);
     }
@@ -81,53 +93,61 @@ public class Setter<T> {
 
     private static class FieldMutator<T> implements Mutator<T>{
         private final Field field;
+        private final MethodHandle getter;
+        private final MethodHandle setter;
 
         private FieldMutator(Field field) {
             this.field = field;
+            this.getter = Handles.getter(field).asType(Handles.READ_TYPE);
+            this.setter = Handles.setter(field);
         }
 
         public void set(T target, String value){
-            this.field.setAccessible(true);
             try {
-                this.field.set(target, value);
-            } catch (IllegalAccessException e) {
-                throw new KeyException("Unable to key on field "+this.field.getName(), e);
+                this.setter.invokeExact((Object) target, value);
+            } catch (Throwable t) {
+                throw new KeyException("Unable to key on field "+this.field.getName(), t);
             }
         }
 
         @Override
         public boolean keyed(T target) {
             try {
-                return field.get(target) != null;
-            } catch (IllegalAccessException e) {
-                throw new KeyException("Couldn't read field "+field.getName()+" on "+field.getDeclaringClass().getCanonicalName());
+                return (Object) getter.invokeExact((Object) target) != null;
+            } catch (Throwable t) {
+                throw new KeyException("Couldn't read field "+field.getName()+" on "+field.getDeclaringClass().getCanonicalName(), t);
             }
         }
     }
 
     private static class PropertyMutator<T> implements Mutator<T> {
-        private final PropertyDescriptor prop;
+        private final String name;
+        private final Class<?> declaringClass;
+        private final MethodHandle reader;
+        private final MethodHandle writer;
 
         private PropertyMutator(PropertyDescriptor prop) {
-            this.prop = prop;
+            this.name = prop.getName();
+            this.declaringClass = prop.getWriteMethod().getDeclaringClass();
+            this.reader = Handles.invoker(prop.getReadMethod()).asType(Handles.READ_TYPE);
+            this.writer = Handles.invoker(prop.getWriteMethod()).asType(Handles.WRITE_TYPE);
         }
 
         @Override
         public void set(T target, String value) {
-            prop.getWriteMethod().setAccessible(true);
             try {
-                this.prop.getWriteMethod().invoke(target, value);
-            } catch (Exception e) {
-                throw new KeyException("Unable set key on property"+prop.getName(), e);
+                this.writer.invokeExact((Object) target, value);
+            } catch (Throwable t) {
+                throw new KeyException("Unable set key on property"+name, t);
             }
         }
 
         @Override
         public boolean keyed(T target) {
             try {
-                return prop.getReadMethod().invoke(target) != null;
-            } catch (Exception e) {
-                throw new KeyException("Unabled to read property "+prop.getName()+" on "+prop.getWriteMethod().getDeclaringClass().getCanonicalName());
+                return (Object) reader.invokeExact((Object) target) != null;
+            } catch (Throwable t) {
+                throw new KeyException("Unabled to read property "+name+" on "+declaringClass.getCanonicalName(), t);
             }
         }
     }
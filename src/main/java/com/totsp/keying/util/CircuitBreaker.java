@@ -0,0 +1,367 @@
+/**
+ *    Copyright 2013 Robert Cooper
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package com.totsp.keying.util;
+
+import javax.annotation.Nonnull;
+import javax.annotation.concurrent.ThreadSafe;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * A circuit breaker for a RetryHandler. It records the outcome of the last calls made
+ * through it; when too many of them failed with a retry-able exception, or were too slow,
+ * it opens and calls fail fast with a CircuitOpenException. After a while it lets a few
+ * probe calls through (half open), and closes again if they all succeed. Probe calls that
+ * haven't finished within the probe timeout stop holding up further probes.
+ *
+ * Share one instance between the handlers of the DAOs that should trip together, for
+ * instance all the DAOs of an entity kind.
+ *
+ *  CircuitBreaker breaker = CircuitBreaker.Builder.named("Pet")
+ *    .failureRate(0.5)
+ *    .slowCalls(2, TimeUnit.SECONDS, 0.8)
+ *    .openFor(30, TimeUnit.SECONDS)
+ *    .build();
+ */
+@ThreadSafe
+public class CircuitBreaker {
+    private static final Logger LOGGER = Logger.getLogger(CircuitBreaker.class.getCanonicalName());
+
+    /**
+     * The states of a circuit breaker.
+     */
+    public static enum State {
+        /** Calls are made and their outcomes recorded. */
+        CLOSED,
+        /** Calls fail fast. */
+        OPEN,
+        /** A limited number of probe calls are made. */
+        HALF_OPEN
+    }
+
+    private final String name;
+    private final double failureRateThreshold;
+    private final long slowCallNanos;
+    private final double slowCallRateThreshold;
+    private final int minimumCalls;
+    private final long openNanos;
+    private final int halfOpenCalls;
+    private final long probeTimeoutNanos;
+    private final CopyOnWriteArrayList<RetryHandler.CircuitListener> listeners =
+            new CopyOnWriteArrayList<RetryHandler.CircuitListener>();
+
+    private State state = State.CLOSED;
+    private final byte[] outcomes;
+    private int index;
+    private int count;
+    private int failures;
+    private int slowCalls;
+    private long openedAt;
+    private int probes;
+    private int probeSuccesses;
+    private long probedAt;
+
+    private CircuitBreaker(Builder builder) {
+        this.name = builder.name;
+        this.failureRateThreshold = builder.failureRateThreshold;
+        this.slowCallNanos = builder.slowCallNanos;
+        this.slowCallRateThreshold = builder.slowCallRateThreshold;
+        this.outcomes = new byte[builder.windowSize];
+        this.minimumCalls = builder.minimumCalls;
+        this.openNanos = builder.openNanos;
+        this.halfOpenCalls = builder.halfOpenCalls;
+        this.probeTimeoutNanos = builder.probeTimeoutNanos;
+    }
+
+    /**
+     * @return the name of the breaker, used in logs and exceptions.
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * @return the current state. An open breaker whose open time has passed reports OPEN
+     * until the next call is attempted.
+     */
+    public synchronized State getState() {
+        return state;
+    }
+
+    /**
+     * @return the fraction of the recorded calls that failed, while closed.
+     */
+    public synchronized double getFailureRate() {
+        return count == 0 ? 0 : failures / (double) count;
+    }
+
+    /**
+     * @return the fraction of the recorded calls that were slow, while closed.
+     */
+    public synchronized double getSlowCallRate() {
+        return count == 0 ? 0 : slowCalls / (double) count;
+    }
+
+    void addListener(RetryHandler.CircuitListener listener) {
+        listeners.addIfAbsent(listener);
+    }
+
+    boolean removeListener(RetryHandler.CircuitListener listener) {
+        return listeners.remove(listener);
+    }
+
+    /**
+     * Asks to make a call.
+     * @return whether the call may be made.
+     */
+    boolean tryAcquire() {
+        boolean permitted = true;
+        boolean halfOpened = false;
+        synchronized (this) {
+            if(state == State.OPEN){
+                if(System.nanoTime() - openedAt < openNanos){
+                    return false;
+                }
+                state = State.HALF_OPEN;
+                probes = 0;
+                probeSuccesses = 0;
+                halfOpened = true;
+            }
+            if(state == State.HALF_OPEN){
+                long now = System.nanoTime();
+                if(probes >= halfOpenCalls && now - probedAt >= probeTimeoutNanos){
+                    LOGGER.fine("Circuit " + name + " timed out waiting for its probe calls.");
+                    probes = probeSuccesses;
+                }
+                permitted = probes < halfOpenCalls;
+                if(permitted){
+                    probes++;
+                    probedAt = now;
+                }
+            }
+        }
+        if(halfOpened){
+            fire(State.OPEN, State.HALF_OPEN);
+        }
+        return permitted;
+    }
+
+    /**
+     * Records the outcome of a permitted call.
+     * @param nanos how long the call took.
+     * @param failed whether it failed with a retry-able exception.
+     */
+    void record(long nanos, boolean failed) {
+        boolean slow = slowCallNanos > 0 && nanos >= slowCallNanos;
+        State from = null;
+        State to = null;
+        synchronized (this) {
+            if(state == State.HALF_OPEN){
+                if(failed || slow){
+                    from = State.HALF_OPEN;
+                    to = open();
+                } else if(++probeSuccesses >= halfOpenCalls){
+                    from = State.HALF_OPEN;
+                    to = close();
+                }
+            } else if(state == State.CLOSED){
+                if(count == outcomes.length){
+                    byte evicted = outcomes[index];
+                    failures -= evicted & 1;
+                    slowCalls -= evicted >> 1;
+                } else {
+                    count++;
+                }
+                outcomes[index] = (byte) ((failed ? 1 : 0) | (slow ? 2 : 0));
+                index = (index + 1) % outcomes.length;
+                if(failed){
+                    failures++;
+                }
+                if(slow){
+                    slowCalls++;
+                }
+                if(count >= minimumCalls && (failures >= failureRateThreshold * count
+                        || (slowCallNanos > 0 && slowCalls >= slowCallRateThreshold * count))){
+                    from = State.CLOSED;
+                    to = open();
+                }
+            }
+        }
+        if(to != null){
+            fire(from, to);
+        }
+    }
+
+    /**
+     * Gives back a permitted call that ended without an outcome to record, such as one
+     * that threw an Error, so it doesn't hold a probe slot.
+     */
+    synchronized void release() {
+        if(state == State.HALF_OPEN && probes > probeSuccesses){
+            probes--;
+        }
+    }
+
+    private State open() {
+        state = State.OPEN;
+        openedAt = System.nanoTime();
+        return state;
+    }
+
+    private State close() {
+        state = State.CLOSED;
+        index = 0;
+        count = 0;
+        failures = 0;
+        slowCalls = 0;
+        return state;
+    }
+
+    private void fire(State from, State to) {
+        LOGGER.info("Circuit " + name + " changed from " + from + " to " + to);
+        for(RetryHandler.CircuitListener listener : listeners){
+            listener.onStateChange(this, from, to);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "CircuitBreaker{name=" + name + ", state=" + getState() + '}';
+    }
+
+    /**
+     * A Builder for CircuitBreakers. Begin with CircuitBreaker.Builder.named()...
+     */
+    public static class Builder {
+        private final String name;
+        private double failureRateThreshold = 0.5;
+        private long slowCallNanos;
+        private double slowCallRateThreshold = 1;
+        private int windowSize = 20;
+        private int minimumCalls = 10;
+        private long openNanos = TimeUnit.SECONDS.toNanos(30);
+        private int halfOpenCalls = 3;
+        private long probeTimeoutNanos = TimeUnit.SECONDS.toNanos(60);
+
+        private Builder(String name) {
+            this.name = name;
+        }
+
+        /**
+         * Begins a builder.
+         * @param name the name of the breaker, such as the entity kind it protects.
+         * @return the builder.
+         */
+        public static Builder named(@Nonnull String name) {
+            checkNotNull(name, "No name provided.");
+            return new Builder(name);
+        }
+
+        /**
+         * Specifies the fraction of failed calls that opens the breaker. The default is 0.5.
+         * @param threshold failure rate, greater than 0 and at most 1.
+         * @return the builder.
+         */
+        public Builder failureRate(double threshold) {
+            checkArgument(threshold > 0 && threshold <= 1, "Invalid failure rate %s", threshold);
+            this.failureRateThreshold = threshold;
+            return this;
+        }
+
+        /**
+         * Specifies the fraction of slow calls that opens the breaker. Calls aren't
+         * considered slow by default.
+         * @param time the time after which a call is slow.
+         * @param units The TimeUnit the long value represents.
+         * @param threshold slow call rate, greater than 0 and at most 1.
+         * @return the builder.
+         */
+        public Builder slowCalls(long time, @Nonnull TimeUnit units, double threshold) {
+            checkNotNull(units, "No TimeUnit provided.");
+            checkArgument(time > 0, "The slow call time must be positive.");
+            checkArgument(threshold > 0 && threshold <= 1, "Invalid slow call rate %s", threshold);
+            this.slowCallNanos = units.toNanos(time);
+            this.slowCallRateThreshold = threshold;
+            return this;
+        }
+
+        /**
+         * Specifies how many of the latest calls the rates are computed over (20 by
+         * default), and how many must be recorded before the breaker can open (10).
+         * @param calls size of the window.
+         * @param minimumCalls calls needed before the rates are checked.
+         * @return the builder.
+         */
+        public Builder window(int calls, int minimumCalls) {
+            checkArgument(calls > 0, "The window must hold at least one call.");
+            checkArgument(minimumCalls > 0 && minimumCalls <= calls, "Invalid minimum calls %s", minimumCalls);
+            this.windowSize = calls;
+            this.minimumCalls = minimumCalls;
+            return this;
+        }
+
+        /**
+         * Specifies how long the breaker stays open before letting probe calls through.
+         * The default is 30 seconds.
+         * @param time long unit of time.
+         * @param units The TimeUnit the long value represents.
+         * @return the builder.
+         */
+        public Builder openFor(long time, @Nonnull TimeUnit units) {
+            checkNotNull(units, "No TimeUnit provided.");
+            checkArgument(time >= 0, "Negative open time %s", time);
+            this.openNanos = units.toNanos(time);
+            return this;
+        }
+
+        /**
+         * Specifies how many probe calls must succeed to close the breaker. The default is 3.
+         * @param calls probe calls.
+         * @return the builder.
+         */
+        public Builder halfOpenCalls(int calls) {
+            checkArgument(calls > 0, "At least one probe call is needed.");
+            this.halfOpenCalls = calls;
+            return this;
+        }
+
+        /**
+         * Specifies how long the breaker waits for its probe calls to finish before letting
+         * others through in their place. The default is 60 seconds.
+         * @param time long unit of time.
+         * @param units The TimeUnit the long value represents.
+         * @return the builder.
+         */
+        public Builder probeTimeout(long time, @Nonnull TimeUnit units) {
+            checkNotNull(units, "No TimeUnit provided.");
+            checkArgument(time > 0, "The probe timeout must be positive.");
+            this.probeTimeoutNanos = units.toNanos(time);
+            return this;
+        }
+
+        /**
+         * Builds a CircuitBreaker.
+         * @return a closed breaker with the desired configuration.
+         */
+        public CircuitBreaker build() {
+            return new CircuitBreaker(this);
+        }
+    }
+}
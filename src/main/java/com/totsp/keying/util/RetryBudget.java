@@ -0,0 +1,70 @@
+/**
+ *    Copyright 2013 Robert Cooper
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package com.totsp.keying.util;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * A token bucket that limits retries to a fraction of calls. Each call deposits ratio of a
+ * token, up to maxTokens, and each retry withdraws a whole token; when the bucket is empty
+ * failures are not retried. The bucket starts full, so a burst of maxTokens retries is
+ * always allowed.
+ */
+final class RetryBudget {
+    private static final long SCALE = 1000;
+    private final long deposit;
+    private final long capacity;
+    private final AtomicLong balance;
+
+    RetryBudget(double ratio, int maxTokens) {
+        checkArgument(ratio >= 0, "Negative retry ratio %s", ratio);
+        checkArgument(maxTokens > 0, "The retry budget must hold at least one token.");
+        this.deposit = Math.round(ratio * SCALE);
+        this.capacity = maxTokens * SCALE;
+        this.balance = new AtomicLong(capacity);
+    }
+
+    void deposit() {
+        while(true){
+            long current = balance.get();
+            long next = Math.min(capacity, current + deposit);
+            if(current == next || balance.compareAndSet(current, next)){
+                return;
+            }
+        }
+    }
+
+    boolean withdraw() {
+        while(true){
+            long current = balance.get();
+            if(current < SCALE){
+                return false;
+            }
+            if(balance.compareAndSet(current, current - SCALE)){
+                return true;
+            }
+        }
+    }
+
+    /**
+     * @return the number of retries currently allowed.
+     */
+    double getTokens() {
+        return balance.get() / (double) SCALE;
+    }
+}
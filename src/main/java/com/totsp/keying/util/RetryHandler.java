@@ -16,6 +16,13 @@
 package com.totsp.keying.util;
 
 import com.google.common.base.Predicate;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ListeningExecutorService;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.SettableFuture;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import com.totsp.keying.util.interfaces.RetryBuilderBuild;
 import com.totsp.keying.util.interfaces.RetryBuilderPredicate;
 import com.totsp.keying.util.interfaces.RetryBuilderStrategy;
@@ -24,8 +31,17 @@ import com.totsp.keying.util.interfaces.RetryBuilderTime;
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
 import javax.annotation.concurrent.ThreadSafe;
-import java.util.ArrayList;
+import javax.management.JMException;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.TreeMap;
 import java.util.concurrent.Callable;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
 import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -61,26 +77,76 @@ public class RetryHandler {
     private final Predicate<Exception> predicate;
     private final int maxTries;
     private final Builder.Strategy strategy;
-    private final ArrayList<RetryListener> listeners = new ArrayList<RetryListener>();
+    private final CopyOnWriteArrayList<RetryListener> listeners = new CopyOnWriteArrayList<RetryListener>();
+    private final ScheduledExecutorService scheduler;
+    private final RetryBudget budget;
+    private final long maxTotalDelay;
+    private final Deadline deadline;
+    private final CircuitBreaker breaker;
+    private final RetryMetrics metrics;
 
     RetryHandler(long time, TimeUnit unit, int maxTries, Builder.Strategy backoffStrategy,  Predicate<? extends Exception> predicate) {
+        this(time, unit, maxTries, backoffStrategy, predicate, null, null, -1, null, null);
+    }
+
+    RetryHandler(long time, TimeUnit unit, int maxTries, Builder.Strategy backoffStrategy,  Predicate<? extends Exception> predicate,
+                 ScheduledExecutorService scheduler, RetryBudget budget, long maxTotalDelay, Deadline deadline,
+                 CircuitBreaker breaker) {
         this.unit = unit;
         this.time = time;
         this.predicate = (Predicate<Exception>) predicate;
         this.maxTries = maxTries;
         this.strategy = backoffStrategy;
+        this.scheduler = scheduler;
+        this.budget = budget;
+        this.maxTotalDelay = maxTotalDelay;
+        this.deadline = deadline;
+        this.breaker = breaker;
+        this.metrics = new RetryMetrics(maxTries);
     }
 
 
     /**
-     * Executes the callable and throws any exceptions that aren't retry-able.
+     * Executes the callable and throws any exceptions that aren't retry-able. If the
+     * handler has a circuit breaker and it is open, throws a CircuitOpenException without
+     * calling the callable.
      * @param callable The callable to execute.
      * @param <T> Return type from the callable.
      * @return the value returned on the first successful call.
      * @throws Exception Any exception thrown from the call.
      */
     public <T> T execute(Callable<T> callable) throws Exception {
-        return execute(1, callable);
+        Retries retries = new Retries();
+        while(true){
+            LOGGER.finest(" executing try " + retries.tryNumber);
+            if(!retries.acquire()){
+                retries.finish(false);
+                if(retries.last instanceof Exception){
+                    throw (Exception) retries.last;
+                }
+                throw new CircuitOpenException(breaker);
+            }
+            long start = System.nanoTime();
+            try {
+                T value = callable.call();
+                retries.record(start, null);
+                retries.finish(true);
+                return value;
+            } catch(Exception e){
+                retries.record(start, e);
+                LOGGER.log(Level.FINE, "Caught during "+callable.getClass().getCanonicalName(), e);
+                long delay = retries.next(e);
+                if(delay < 0){
+                    retries.finish(false);
+                    throw e;
+                }
+                sleepAttempt(delay, callable);
+            } catch(Throwable t){
+                retries.record(start, t);
+                retries.finish(false);
+                throw t;
+            }
+        }
     }
 
     /**
@@ -102,11 +168,130 @@ public class RetryHandler {
     }
 
     /**
-     * Adds a retry listener.
+     * Starts an asynchronous operation, and starts it again each time its future fails
+     * with a retry-able exception. The backoff delays are waited on a timer (a shared
+     * daemon thread, unless the Builder was given a scheduler), so no thread is blocked
+     * between attempts. Re-attempts are started, and RetryListeners called, on the
+     * timer's thread, so the callable should only start the work, not wait for it. A
+     * listener that throws there is logged and skipped. Cancelling the returned future
+     * cancels the attempt in flight.
+     * @param attempt starts an attempt and returns its future.
+     * @param <T> Return type of the operation.
+     * @return a future for the result of the first successful attempt, or the failure of
+     * the last one.
+     */
+    public <T> ListenableFuture<T> executeAsync(@Nonnull Callable<? extends ListenableFuture<T>> attempt) {
+        checkNotNull(attempt);
+        SettableFuture<T> result = SettableFuture.create();
+        attempt(new Retries(), attempt, result);
+        return result;
+    }
+
+    /**
+     * Runs a blocking callable on an executor, retrying as executeAsync() does. Neither the
+     * caller nor the executor's threads wait out the backoff delays.
+     * @param callable The callable to execute.
+     * @param executor The executor to run each attempt on.
+     * @param <T> Return type from the callable.
+     * @return a future for the value returned on the first successful call.
+     */
+    public <T> ListenableFuture<T> executeAsync(@Nonnull final Callable<T> callable, @Nonnull final ListeningExecutorService executor) {
+        checkNotNull(callable);
+        checkNotNull(executor);
+        return executeAsync(new Callable<ListenableFuture<T>>() {
+            @Override
+            public ListenableFuture<T> call() throws Exception {
+                return executor.submit(callable);
+            }
+        });
+    }
+
+    private <T> void attempt(final Retries retries, final Callable<? extends ListenableFuture<T>> attempt, final SettableFuture<T> result) {
+        if(result.isCancelled()){
+            retries.finish(false);
+            return;
+        }
+        LOGGER.finest(" executing async try " + retries.tryNumber);
+        if(!retries.acquire()){
+            retries.finish(false);
+            result.setException(retries.last != null ? retries.last : new CircuitOpenException(breaker));
+            return;
+        }
+        final long start = System.nanoTime();
+        ListenableFuture<T> future;
+        try {
+            future = checkNotNull(attempt.call(), "No future returned by %s", attempt);
+        } catch(Throwable t){
+            future = Futures.immediateFailedFuture(t);
+        }
+        final ListenableFuture<T> inFlight = future;
+        result.addListener(new Runnable() {
+            @Override
+            public void run() {
+                if(result.isCancelled()){
+                    inFlight.cancel(true);
+                }
+            }
+        }, MoreExecutors.sameThreadExecutor());
+        Futures.addCallback(future, new FutureCallback<T>() {
+            @Override
+            public void onSuccess(T value) {
+                retries.record(start, null);
+                retries.finish(true);
+                result.set(value);
+            }
+
+            @Override
+            public void onFailure(Throwable t) {
+                if(result.isCancelled()){
+                    retries.release();
+                    retries.finish(false);
+                    return;
+                }
+                retries.record(start, t);
+                LOGGER.log(Level.FINE, "Caught during "+attempt.getClass().getCanonicalName(), t);
+                final long realTime = retries.next(t);
+                if(realTime >= 0){
+                    try {
+                        scheduler().schedule(new Runnable() {
+                            @Override
+                            public void run() {
+                                for(RetryListener listener: listeners){
+                                    try {
+                                        listener.onRetry(RetryHandler.this, realTime, unit, attempt);
+                                    } catch(RuntimeException e){
+                                        LOGGER.log(Level.WARNING, "RetryListener " + listener + " failed.", e);
+                                    }
+                                }
+                                attempt(retries, attempt, result);
+                            }
+                        }, realTime, unit);
+                    } catch(RejectedExecutionException e){
+                        retries.finish(false);
+                        result.setException(t);
+                    }
+                } else {
+                    retries.finish(false);
+                    result.setException(t);
+                }
+            }
+        });
+    }
+
+    private ScheduledExecutorService scheduler() {
+        return scheduler == null ? TimerHolder.TIMER : scheduler;
+    }
+
+    /**
+     * Adds a retry listener. A CircuitListener is also told when the handler's circuit
+     * breaker changes state.
      * @param listener
      */
     public void addRetryListener(RetryListener listener){
         this.listeners.add(listener);
+        if(breaker != null && listener instanceof CircuitListener){
+            breaker.addListener((CircuitListener) listener);
+        }
     }
 
     /**
@@ -115,26 +300,41 @@ public class RetryHandler {
      * @return the listener was present and removed.
      */
     public boolean removeRetryListener(RetryListener listener){
+        if(breaker != null && listener instanceof CircuitListener){
+            breaker.removeListener((CircuitListener) listener);
+        }
         return this.listeners.remove(listener);
     }
 
-    private <T> T execute(int tryNumber, Callable<T> callable) throws Exception{
-        LOGGER.finest(" executing try " + tryNumber);
-        try {
-            return callable.call();
-        } catch(Exception e){
-        LOGGER.log(Level.FINE, "Caught during "+callable.getClass().getCanonicalName(), e);
-        if(tryNumber < maxTries && predicate.apply(e)){
-            sleepAttempt(tryNumber -1, callable);
-            return execute(++tryNumber, callable);
-        } else {
-            throw e;
-        }
+    /**
+     * @return a snapshot of the handler's counters.
+     */
+    public RetryStats getStats() {
+        return metrics.snapshot();
+    }
+
+    /**
+     * Registers a RetryHandlerMXBean for this handler with the platform MBean server.
+     * @param name name of the handler, such as the DAO it is used by.
+     * @return the name the bean was registered under, to unregister it.
+     * @throws JMException if the bean can't be registered.
+     */
+    public ObjectName registerMBean(@Nonnull String name) throws JMException {
+        checkNotNull(name, "No name provided.");
+        ObjectName objectName = new ObjectName("com.totsp.keying:type=RetryHandler,name=" + ObjectName.quote(name));
+        ManagementFactory.getPlatformMBeanServer().registerMBean(new MXBean(), objectName);
+        return objectName;
     }
+
+    /**
+     * @return the handler's circuit breaker, or null if it has none.
+     */
+    @Nullable
+    public CircuitBreaker getCircuitBreaker() {
+        return breaker;
     }
 
-    private void sleepAttempt(int tryNumber, Callable callable) {
-        long realTime = this.strategy.compute(this.time, tryNumber);
+    private void sleepAttempt(long realTime, Callable callable) {
         try {
             LOGGER.finest("Sleeping " + realTime + " " + unit);
             Thread.sleep(unit.toMillis(realTime));
@@ -146,6 +346,172 @@ public class RetryHandler {
         }
     }
 
+    /**
+     * The state of one execution: the try it is on, and the delays so far.
+     */
+    private class Retries {
+        private final long startNanos = System.nanoTime();
+        private final long remainingNanos;
+        private volatile int tryNumber = 1;
+        private volatile long previous;
+        private volatile long delayed;
+        private volatile Throwable last;
+        private volatile int attemptsMade;
+
+        Retries() {
+            metrics.started();
+            if(budget != null){
+                budget.deposit();
+            }
+            remainingNanos = deadline == null ? Long.MAX_VALUE
+                    : TimeUnit.MILLISECONDS.toNanos(Math.max(0, deadline.remainingMillis()));
+        }
+
+        /**
+         * @param thrown the failure of the current try.
+         * @return the delay before the next try, or -1 if there shouldn't be one.
+         */
+        long next(Throwable thrown) {
+            last = thrown;
+            if(tryNumber >= maxTries || !(thrown instanceof Exception) || !predicate.apply((Exception) thrown)){
+                return -1;
+            }
+            long delay = strategy instanceof Builder.SequenceStrategy
+                    ? ((Builder.SequenceStrategy) strategy).next(time, tryNumber - 1, previous)
+                    : strategy.compute(time, tryNumber - 1);
+            if(maxTotalDelay >= 0 && delayed + delay > maxTotalDelay){
+                LOGGER.fine("Not retrying: the next delay would exceed the maximum total delay.");
+                return -1;
+            }
+            if(remainingNanos != Long.MAX_VALUE
+                    && unit.toNanos(delay) >= remainingNanos - (System.nanoTime() - startNanos)){
+                LOGGER.fine("Not retrying: the next delay would pass the deadline.");
+                return -1;
+            }
+            if(breaker != null && breaker.getState() == CircuitBreaker.State.OPEN){
+                LOGGER.fine("Not retrying: circuit " + breaker.getName() + " is open.");
+                return -1;
+            }
+            if(budget != null && !budget.withdraw()){
+                LOGGER.fine("Not retrying: the retry budget is exhausted.");
+                return -1;
+            }
+            previous = delay;
+            delayed += delay;
+            tryNumber++;
+            return delay;
+        }
+
+        boolean acquire() {
+            if(breaker != null && !breaker.tryAcquire()){
+                metrics.rejected();
+                return false;
+            }
+            metrics.attempted();
+            attemptsMade++;
+            return true;
+        }
+
+        void record(long startNanos, Throwable thrown) {
+            if(thrown != null){
+                metrics.thrown(thrown);
+            }
+            if(breaker == null){
+                return;
+            }
+            if(thrown == null || thrown instanceof Exception){
+                breaker.record(System.nanoTime() - startNanos,
+                        thrown != null && predicate.apply((Exception) thrown));
+            } else {
+                release();
+            }
+        }
+
+        void release() {
+            if(breaker != null){
+                breaker.release();
+            }
+        }
+
+        void finish(boolean succeeded) {
+            metrics.finished(succeeded, attemptsMade, delayed, unit);
+        }
+    }
+
+    private class MXBean implements RetryHandlerMXBean {
+        @Override
+        public long getCalls() {
+            return getStats().getCalls();
+        }
+
+        @Override
+        public long getAttempts() {
+            return getStats().getAttempts();
+        }
+
+        @Override
+        public long getSuccesses() {
+            return getStats().getSuccesses();
+        }
+
+        @Override
+        public long getSuccessesAfterRetry() {
+            return getStats().getSuccessesAfterRetry();
+        }
+
+        @Override
+        public long getFailures() {
+            return getStats().getFailures();
+        }
+
+        @Override
+        public long getRejections() {
+            return getStats().getRejections();
+        }
+
+        @Override
+        public long getSleepMillis() {
+            return getStats().getSleepTime(TimeUnit.MILLISECONDS);
+        }
+
+        @Override
+        public long[] getAttemptHistogram() {
+            return getStats().getAttemptHistogram();
+        }
+
+        @Override
+        public long[] getSleepHistogram() {
+            return getStats().getSleepHistogram();
+        }
+
+        @Override
+        public long[] getSleepBucketMillis() {
+            return RetryStats.getSleepBucketMillis();
+        }
+
+        @Override
+        public Map<String, Long> getExceptionCounts() {
+            Map<String, Long> counts = new TreeMap<String, Long>();
+            for(Map.Entry<Class<?>, Long> entry : getStats().getExceptionCounts().entrySet()){
+                counts.put(entry.getKey().getName(), entry.getValue());
+            }
+            return counts;
+        }
+
+        @Override
+        public String getCircuitState() {
+            return breaker == null ? null : breaker.getState().name();
+        }
+    }
+
+    private static class TimerHolder {
+        static final ScheduledExecutorService TIMER = Executors.newSingleThreadScheduledExecutor(
+                new ThreadFactoryBuilder()
+                        .setDaemon(true)
+                        .setNameFormat("keying-retry-timer-%d")
+                        .build());
+    }
+
     /**
      * A Builder for RetryHandlers. Begin with RetryHandler.Builder.retryTimes()...
      *
@@ -156,6 +522,12 @@ public class RetryHandler {
         private TimeUnit unit;
         private Strategy strategy;
         private Predicate<? extends Exception> predicate;
+        private ScheduledExecutorService scheduler;
+        private RetryBudget budget;
+        private long maxTotalDelay = -1;
+        private TimeUnit maxTotalDelayUnit;
+        private Deadline deadline;
+        private CircuitBreaker breaker;
 
         private Builder(){
 
@@ -192,6 +564,9 @@ public class RetryHandler {
          * @see Builder#LINEAR
          * @see Builder#EXPONENTIAL
          * @see Builder#FIXED
+         * @see Builder#cappedExponential(long)
+         * @see Builder#jittered(Strategy)
+         * @see Builder#decorrelatedJitter(long)
          * @param strategy The strategy used to compute the backoff time.
          *
          * @return interface for specifying the matching logic for exceptions.
@@ -254,7 +629,10 @@ public class RetryHandler {
         /**
          * Increases the base time exponentially with each subsequent call
          * 5 seconds, 25 seconds, 125 seconds, 625 seconds, etc.
+         * @deprecated raises the base time to a power, so delays grow without bound;
+         * use {@link #cappedExponential(long)}, which doubles it up to a maximum.
          */
+        @Deprecated
         public static final Strategy EXPONENTIAL = new Strategy() {
             @Override
             public long compute(long base, int factor) {
@@ -277,13 +655,142 @@ public class RetryHandler {
             }
         };
 
+        /**
+         * Doubles the base time with each subsequent call, up to a maximum
+         * 5 seconds, 10 seconds, 20 seconds, 40 seconds, etc.
+         * @param max the longest delay, in the builder's time unit.
+         * @return the strategy.
+         */
+        public static Strategy cappedExponential(final long max) {
+            checkArgument(max > 0, "The maximum delay must be positive.");
+            return new Strategy() {
+                @Override
+                public long compute(long base, int step) {
+                    long value = Math.min(base, max);
+                    for(int i=0; i < step && value < max; i++){
+                        value *= 2;
+                    }
+                    return Math.min(value, max);
+                }
+            };
+        }
+
+        /**
+         * Waits a random time between zero and the delay of another strategy, so callers
+         * that failed together don't all retry together.
+         * @param strategy the strategy giving the longest delay for each step.
+         * @return the strategy.
+         */
+        public static Strategy jittered(@Nonnull final Strategy strategy) {
+            checkNotNull(strategy, "No backoff strategy provided.");
+            return new Strategy() {
+                @Override
+                public long compute(long base, int step) {
+                    long value = strategy.compute(base, step);
+                    return value <= 0 ? 0 : ThreadLocalRandom.current().nextLong(value + 1);
+                }
+            };
+        }
+
+        /**
+         * Waits a random time between the base time and three times the previous delay, up
+         * to a maximum. This spreads retries out like jittered() while still growing.
+         * @param max the longest delay, in the builder's time unit.
+         * @return the strategy.
+         */
+        public static Strategy decorrelatedJitter(final long max) {
+            checkArgument(max > 0, "The maximum delay must be positive.");
+            return new SequenceStrategy() {
+                @Override
+                public long next(long base, int step, long previous) {
+                    long low = Math.min(base, max);
+                    long last = Math.max(low, previous);
+                    long high = last > max / 3 ? max : last * 3;
+                    return high <= low ? low : ThreadLocalRandom.current().nextLong(low, high + 1);
+                }
+
+                @Override
+                public long compute(long base, int step) {
+                    return next(base, step, 0);
+                }
+            };
+        }
+
+        /**
+         * Specifies the scheduler that executeAsync() waits out backoff delays on.
+         * @param scheduler the scheduler to use instead of the shared timer.
+         * @return interface for performing the final build.
+         */
+        @Override
+        public RetryBuilderBuild withScheduler(@Nonnull ScheduledExecutorService scheduler) {
+            checkNotNull(scheduler, "No scheduler provided.");
+            this.scheduler = scheduler;
+            return this;
+        }
+
+        /**
+         * Limits retries to a fraction of the calls made through the handler.
+         * @param ratio the retries allowed per call.
+         * @param maxTokens the retries allowed in a burst.
+         * @return interface for performing the final build.
+         */
+        @Override
+        public RetryBuilderBuild withRetryBudget(double ratio, int maxTokens) {
+            this.budget = new RetryBudget(ratio, maxTokens);
+            return this;
+        }
+
+        /**
+         * Stops retrying once the next delay would take the total delay of a call over the
+         * given time.
+         * @param time longest total delay.
+         * @param units The TimeUnit the long value represents.
+         * @return interface for performing the final build.
+         */
+        @Override
+        public RetryBuilderBuild withMaxTotalDelay(long time, @Nonnull TimeUnit units) {
+            checkNotNull(units, "No TimeUnit provided.");
+            checkArgument(time >= 0, "Negative total delay %s", time);
+            this.maxTotalDelay = time;
+            this.maxTotalDelayUnit = units;
+            return this;
+        }
+
+        /**
+         * Stops retrying once the next delay would run past a deadline, read when each call
+         * starts.
+         * @param deadline the deadline.
+         * @return interface for performing the final build.
+         */
+        @Override
+        public RetryBuilderBuild withDeadline(@Nonnull Deadline deadline) {
+            checkNotNull(deadline, "No deadline provided.");
+            this.deadline = deadline;
+            return this;
+        }
+
+        /**
+         * Fails calls fast while the circuit breaker is open. Failures matching the retry
+         * exceptions count against the breaker.
+         * @param breaker the breaker, which may be shared with other handlers.
+         * @return interface for performing the final build.
+         */
+        @Override
+        public RetryBuilderBuild withCircuitBreaker(@Nonnull CircuitBreaker breaker) {
+            checkNotNull(breaker, "No circuit breaker provided.");
+            this.breaker = breaker;
+            return this;
+        }
+
         /**
          * Builds a RetryHandler.
          * @return instance with desired configuration.
          */
         @Override
         public RetryHandler build() {
-            return new RetryHandler(this.time, this.unit, this.maxTries, this.strategy, this.predicate);
+            long totalDelay = maxTotalDelayUnit == null ? -1 : unit.convert(maxTotalDelay, maxTotalDelayUnit);
+            return new RetryHandler(this.time, this.unit, this.maxTries, this.strategy, this.predicate, this.scheduler,
+                    this.budget, totalDelay, this.deadline, this.breaker);
         }
 
 
@@ -299,6 +806,30 @@ public class RetryHandler {
              */
             long compute(long base, int step);
         }
+
+        /**
+         * A strategy whose next time depends on the time it gave for the previous step.
+         */
+        public static interface SequenceStrategy extends Strategy {
+            /** computes the next execution time.
+             *
+             * @param base The base time value.
+             * @param step The 0-index step the strategy is on.
+             * @param previous The time returned for the previous step, or 0 on the first.
+             * @return the new time value.
+             */
+            long next(long base, int step, long previous);
+        }
+    }
+
+    /**
+     * The time left for a call, such as the remaining time of the current request.
+     */
+    public static interface Deadline {
+        /**
+         * @return milliseconds left before the deadline.
+         */
+        long remainingMillis();
     }
 
     /**
@@ -315,4 +846,18 @@ public class RetryHandler {
         void onRetry(RetryHandler source, long delayed, TimeUnit timeUnit, Callable callable);
     }
 
+    /**
+     * A retry listener that is also notified when the handler's circuit breaker changes
+     * state. The breaker notifies it on the thread whose call caused the change.
+     */
+    public static interface CircuitListener extends RetryListener {
+        /**
+         * Called after a circuit breaker changes state.
+         * @param breaker the circuit breaker.
+         * @param from the previous state.
+         * @param to the new state.
+         */
+        void onStateChange(CircuitBreaker breaker, CircuitBreaker.State from, CircuitBreaker.State to);
+    }
+
 }
@@ -0,0 +1,54 @@
+/**
+ *    Copyright 2013 Robert Cooper
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package com.totsp.keying.util;
+
+import java.util.Map;
+
+/**
+ * The JMX view of a RetryHandler's stats, registered with RetryHandler.registerMBean().
+ */
+public interface RetryHandlerMXBean {
+
+    long getCalls();
+
+    long getAttempts();
+
+    long getSuccesses();
+
+    long getSuccessesAfterRetry();
+
+    long getFailures();
+
+    long getRejections();
+
+    long getSleepMillis();
+
+    long[] getAttemptHistogram();
+
+    long[] getSleepHistogram();
+
+    long[] getSleepBucketMillis();
+
+    /**
+     * @return the number of times each exception class was thrown, by class name.
+     */
+    Map<String, Long> getExceptionCounts();
+
+    /**
+     * @return the state of the circuit breaker, or null if the handler has none.
+     */
+    String getCircuitState();
+}
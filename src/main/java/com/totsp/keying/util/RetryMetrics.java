@@ -0,0 +1,109 @@
+/**
+ *    Copyright 2013 Robert Cooper
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package com.totsp.keying.util;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * The counters behind a RetryHandler's RetryStats.
+ */
+final class RetryMetrics {
+    private static final int MAX_ATTEMPT_BUCKETS = 32;
+
+    private final AtomicLong calls = new AtomicLong();
+    private final AtomicLong attempts = new AtomicLong();
+    private final AtomicLong successes = new AtomicLong();
+    private final AtomicLong successesAfterRetry = new AtomicLong();
+    private final AtomicLong failures = new AtomicLong();
+    private final AtomicLong rejections = new AtomicLong();
+    private final AtomicLong sleepNanos = new AtomicLong();
+    private final AtomicLongArray attemptCounts;
+    private final AtomicLongArray sleepCounts = new AtomicLongArray(RetryStats.SLEEP_BUCKET_MILLIS.length);
+    private final ConcurrentMap<Class<?>, AtomicLong> exceptions = new ConcurrentHashMap<>();
+
+    RetryMetrics(int maxTries) {
+        this.attemptCounts = new AtomicLongArray(Math.max(1, Math.min(maxTries, MAX_ATTEMPT_BUCKETS)));
+    }
+
+    void started() {
+        calls.incrementAndGet();
+    }
+
+    void attempted() {
+        attempts.incrementAndGet();
+    }
+
+    void rejected() {
+        rejections.incrementAndGet();
+    }
+
+    void thrown(Throwable thrown) {
+        AtomicLong count = exceptions.get(thrown.getClass());
+        if(count == null){
+            AtomicLong created = new AtomicLong();
+            count = exceptions.putIfAbsent(thrown.getClass(), created);
+            if(count == null){
+                count = created;
+            }
+        }
+        count.incrementAndGet();
+    }
+
+    void finished(boolean succeeded, int attemptsMade, long slept, TimeUnit unit) {
+        if(succeeded){
+            successes.incrementAndGet();
+            if(attemptsMade > 1){
+                successesAfterRetry.incrementAndGet();
+            }
+        } else {
+            failures.incrementAndGet();
+        }
+        if(attemptsMade > 0){
+            attemptCounts.incrementAndGet(Math.min(attemptsMade, attemptCounts.length()) - 1);
+        }
+        long nanos = unit.toNanos(slept);
+        sleepNanos.addAndGet(nanos);
+        long millis = TimeUnit.NANOSECONDS.toMillis(nanos);
+        int bucket = 0;
+        while(bucket < RetryStats.SLEEP_BUCKET_MILLIS.length - 1 && millis > RetryStats.SLEEP_BUCKET_MILLIS[bucket]){
+            bucket++;
+        }
+        sleepCounts.incrementAndGet(bucket);
+    }
+
+    RetryStats snapshot() {
+        long[] attemptHistogram = new long[attemptCounts.length()];
+        for(int i = 0; i < attemptHistogram.length; i++){
+            attemptHistogram[i] = attemptCounts.get(i);
+        }
+        long[] sleepHistogram = new long[sleepCounts.length()];
+        for(int i = 0; i < sleepHistogram.length; i++){
+            sleepHistogram[i] = sleepCounts.get(i);
+        }
+        Map<Class<?>, Long> exceptionCounts = new LinkedHashMap<>();
+        for(Map.Entry<Class<?>, AtomicLong> entry : exceptions.entrySet()){
+            exceptionCounts.put(entry.getKey(), entry.getValue().get());
+        }
+        return new RetryStats(calls.get(), attempts.get(), successes.get(), successesAfterRetry.get(), failures.get(),
+                rejections.get(), sleepNanos.get(), attemptHistogram, sleepHistogram, exceptionCounts);
+    }
+}
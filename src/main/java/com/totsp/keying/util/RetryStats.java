@@ -0,0 +1,149 @@
+/**
+ *    Copyright 2013 Robert Cooper
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package com.totsp.keying.util;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A snapshot of a RetryHandler's counters.
+ */
+public class RetryStats {
+    static final long[] SLEEP_BUCKET_MILLIS = {0, 10, 50, 100, 250, 500, 1000, 2500, 5000, 10000, Long.MAX_VALUE};
+
+    private final long calls;
+    private final long attempts;
+    private final long successes;
+    private final long successesAfterRetry;
+    private final long failures;
+    private final long rejections;
+    private final long sleepNanos;
+    private final long[] attemptHistogram;
+    private final long[] sleepHistogram;
+    private final Map<Class<?>, Long> exceptionCounts;
+
+    RetryStats(long calls, long attempts, long successes, long successesAfterRetry, long failures, long rejections,
+               long sleepNanos, long[] attemptHistogram, long[] sleepHistogram, Map<Class<?>, Long> exceptionCounts) {
+        this.calls = calls;
+        this.attempts = attempts;
+        this.successes = successes;
+        this.successesAfterRetry = successesAfterRetry;
+        this.failures = failures;
+        this.rejections = rejections;
+        this.sleepNanos = sleepNanos;
+        this.attemptHistogram = attemptHistogram;
+        this.sleepHistogram = sleepHistogram;
+        this.exceptionCounts = Collections.unmodifiableMap(exceptionCounts);
+    }
+
+    /**
+     * @return calls started with execute() or executeAsync().
+     */
+    public long getCalls() {
+        return calls;
+    }
+
+    /**
+     * @return attempts made, including first attempts.
+     */
+    public long getAttempts() {
+        return attempts;
+    }
+
+    /**
+     * @return calls that returned a value.
+     */
+    public long getSuccesses() {
+        return successes;
+    }
+
+    /**
+     * @return calls that returned a value after at least one retry.
+     */
+    public long getSuccessesAfterRetry() {
+        return successesAfterRetry;
+    }
+
+    /**
+     * @return calls that failed, including those rejected by the circuit breaker.
+     */
+    public long getFailures() {
+        return failures;
+    }
+
+    /**
+     * @return attempts not made because the circuit breaker was open.
+     */
+    public long getRejections() {
+        return rejections;
+    }
+
+    /**
+     * @return total backoff time of finished calls.
+     */
+    public long getSleepTime(TimeUnit unit) {
+        return unit.convert(sleepNanos, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * @return finished calls by the number of attempts they made: element i counts the calls
+     * that made i + 1 attempts, and the last element also counts calls that made more.
+     */
+    public long[] getAttemptHistogram() {
+        return attemptHistogram.clone();
+    }
+
+    /**
+     * @return finished calls by their total backoff time: element i counts the calls that
+     * slept more than getSleepBucketMillis()[i - 1] and at most getSleepBucketMillis()[i].
+     */
+    public long[] getSleepHistogram() {
+        return sleepHistogram.clone();
+    }
+
+    /**
+     * @return the upper bounds, in milliseconds, of the sleep histogram buckets.
+     */
+    public static long[] getSleepBucketMillis() {
+        return SLEEP_BUCKET_MILLIS.clone();
+    }
+
+    /**
+     * @return the number of times each exception class was thrown by an attempt.
+     */
+    public Map<Class<?>, Long> getExceptionCounts() {
+        return exceptionCounts;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder("RetryStats{calls=").append(calls)
+                .append(", attempts=").append(attempts)
+                .append(", successes=").append(successes)
+                .append(", successesAfterRetry=").append(successesAfterRetry)
+                .append(", failures=").append(failures)
+                .append(", rejections=").append(rejections)
+                .append(", sleepMillis=").append(getSleepTime(TimeUnit.MILLISECONDS))
+                .append(", attemptHistogram=").append(Arrays.toString(attemptHistogram))
+                .append(", sleepHistogram=").append(Arrays.toString(sleepHistogram));
+        for(Map.Entry<Class<?>, Long> entry : exceptionCounts.entrySet()){
+            sb.append(", ").append(entry.getKey().getName()).append('=').append(entry.getValue());
+        }
+        return sb.append('}').toString();
+    }
+}
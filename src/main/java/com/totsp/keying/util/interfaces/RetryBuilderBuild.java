@@ -15,12 +15,57 @@
  */
 package com.totsp.keying.util.interfaces;
 
+import com.totsp.keying.util.CircuitBreaker;
 import com.totsp.keying.util.RetryHandler;
 
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
 /**
  * Masking interface for the final build.
  */
 public interface RetryBuilderBuild {
+    /**
+     * Specifies the scheduler that executeAsync() waits out backoff delays on.
+     * @param scheduler the scheduler to use instead of the shared timer.
+     * @return interface for performing the final build.
+     */
+    RetryBuilderBuild withScheduler(ScheduledExecutorService scheduler);
+
+    /**
+     * Limits retries to a fraction of the calls made through the handler.
+     * @param ratio the retries allowed per call.
+     * @param maxTokens the retries allowed in a burst.
+     * @return interface for performing the final build.
+     */
+    RetryBuilderBuild withRetryBudget(double ratio, int maxTokens);
+
+    /**
+     * Stops retrying once the next delay would take the total delay of a call over the
+     * given time.
+     * @param time longest total delay.
+     * @param units The TimeUnit the long value represents.
+     * @return interface for performing the final build.
+     */
+    RetryBuilderBuild withMaxTotalDelay(long time, TimeUnit units);
+
+    /**
+     * Stops retrying once the next delay would run past a deadline, read when each call
+     * starts.
+     * @param deadline the deadline.
+     * @return interface for performing the final build.
+     */
+    RetryBuilderBuild withDeadline(RetryHandler.Deadline deadline);
+
+    /**
+     * Fails calls fast while the circuit breaker is open. Failures matching the retry
+     * exceptions count against the breaker.
+     * @param breaker the breaker, which may be shared with other handlers.
+     * @return interface for performing the final build.
+     */
+    RetryBuilderBuild withCircuitBreaker(CircuitBreaker breaker);
+
+
     /**
      * Builds a RetryHandler.
      * @return instance with desired configuration.
@@ -29,6 +29,9 @@ public interface RetryBuilderStrategy {
      * @see com.totsp.keying.util.RetryHandler.Builder#LINEAR
      * @see com.totsp.keying.util.RetryHandler.Builder#EXPONENTIAL
      * @see com.totsp.keying.util.RetryHandler.Builder#FIXED
+     * @see com.totsp.keying.util.RetryHandler.Builder#cappedExponential(long)
+     * @see com.totsp.keying.util.RetryHandler.Builder#jittered(com.totsp.keying.util.RetryHandler.Builder.Strategy)
+     * @see com.totsp.keying.util.RetryHandler.Builder#decorrelatedJitter(long)
      * @param strategy The strategy used to compute the backoff time.
      *
      * @return interface for specifying the matching logic for exceptions.
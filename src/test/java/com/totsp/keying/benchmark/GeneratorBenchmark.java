@@ -0,0 +1,122 @@
+/**
+ *    Copyright 2013 Robert Cooper
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package com.totsp.keying.benchmark;
+
+import com.totsp.keying.dao.KeyGenerator;
+import com.totsp.keying.definition.KeySegment;
+import com.totsp.keying.definition.KeyStrategy;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the cost of computing a two property, lower cased key. legacyCompute
+ * reproduces the original Generator.compute() (a Method.invoke and StringBuilder per
+ * segment, then String.toLowerCase()) so the two can be compared side by side.
+ *
+ * Run with the GC profiler to see bytes allocated per key (gc.alloc.rate.norm):
+ *
+ *     mvn test-compile exec:java -Dexec.classpathScope=test \
+ *         -Dexec.mainClass=com.totsp.keying.benchmark.GeneratorBenchmark
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class GeneratorBenchmark {
+
+    private Member member;
+    private Method[] getters;
+
+    @Setup
+    public void setUp() throws Exception {
+        member = new Member();
+        member.setGroupId("Administrators");
+        member.setUserId("Robert.Cooper");
+        getters = new Method[]{ Member.class.getMethod("getGroupId"), Member.class.getMethod("getUserId") };
+    }
+
+    @Benchmark
+    public String legacyCompute() throws Exception {
+        StringBuilder sb = new StringBuilder();
+        for(int i = 0; i < getters.length; i++){
+            if(i != 0){
+                sb = sb.append(":");
+            }
+            sb = sb.append(new StringBuilder().append(getters[i].invoke(member)).toString());
+        }
+        return sb.toString().toLowerCase();
+    }
+
+    @Benchmark
+    public String compute() {
+        return KeyGenerator.compute(member);
+    }
+
+    public static void main(String... args) throws RunnerException {
+        new Runner(new OptionsBuilder()
+                .include(GeneratorBenchmark.class.getSimpleName())
+                .addProfiler(GCProfiler.class)
+                .build()).run();
+    }
+
+    public static class Member {
+        private String id;
+        private String groupId;
+        private String userId;
+
+        @KeyStrategy(value = {KeySegment.PROPERTY, KeySegment.PROPERTY}, properties = {"groupId", "userId"}, lowerCase = true)
+        public String getId() {
+            return id;
+        }
+
+        public void setId(String id) {
+            this.id = id;
+        }
+
+        public String getGroupId() {
+            return groupId;
+        }
+
+        public void setGroupId(String groupId) {
+            this.groupId = groupId;
+        }
+
+        public String getUserId() {
+            return userId;
+        }
+
+        public void setUserId(String userId) {
+            this.userId = userId;
+        }
+    }
+}
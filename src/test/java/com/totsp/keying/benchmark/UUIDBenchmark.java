@@ -0,0 +1,76 @@
+/**
+ *    Copyright 2013 Robert Cooper
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package com.totsp.keying.benchmark;
+
+import com.totsp.keying.definition.UUIDEncoding;
+import com.totsp.keying.impl.UUIDComponent;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures UUID segment throughput for each encoding as the number of threads sharing
+ * one component grows from 1 to 64. STANDARD contends on the SecureRandom behind
+ * UUID.randomUUID(); the compact encodings use a SHA1PRNG per thread.
+ *
+ *     mvn test-compile exec:java -Dexec.classpathScope=test \
+ *         -Dexec.mainClass=com.totsp.keying.benchmark.UUIDBenchmark
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class UUIDBenchmark {
+
+    @Param({"STANDARD", "BASE64", "BASE32"})
+    public UUIDEncoding encoding;
+
+    private UUIDComponent<Object> component;
+
+    @Setup
+    public void setUp() {
+        component = new UUIDComponent<>(encoding);
+    }
+
+    @Benchmark
+    public String uuid() {
+        return component.getComponent(null);
+    }
+
+    public static void main(String... args) throws RunnerException {
+        for(int threads = 1; threads <= 64; threads *= 2){
+            new Runner(new OptionsBuilder()
+                    .include(UUIDBenchmark.class.getSimpleName())
+                    .threads(threads)
+                    .build()).run();
+        }
+    }
+}
@@ -15,11 +15,17 @@
  */
 package com.totsp.keying.dao;
 
+import com.google.appengine.api.datastore.DatastoreTimeoutException;
 import com.google.appengine.tools.development.testing.LocalDatastoreServiceTestConfig;
 import com.google.appengine.tools.development.testing.LocalServiceTestHelper;
 import com.google.common.base.Function;
+import com.google.common.collect.Lists;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
 import com.googlecode.objectify.Key;
 import com.googlecode.objectify.NotFoundException;
+import com.googlecode.objectify.Objectify;
+import com.totsp.keying.impl.TimeComponent;
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
@@ -27,7 +33,13 @@ import org.junit.Test;
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
 
 import static com.google.common.collect.Iterables.addAll;
 import static com.google.common.collect.Iterables.transform;
@@ -49,6 +61,9 @@ public class AbstractStringKeyedDaoTest {
     public void setUp(){
         OfyService.factory().register(NodeterministicEntity.class);
         OfyService.factory().register(DeterministicEntity.class);
+        OfyService.factory().register(ShardedEntity.class);
+        OfyService.factory().register(TimedEntity.class);
+        OfyService.factory().register(EventEntity.class);
         HELPER.setUp();
 
     }
@@ -140,6 +155,247 @@ public class AbstractStringKeyedDaoTest {
         dao.findById("Foo:101");
     }
 
+    @Test
+    public void testAsync() throws Exception {
+        TestEntityDao instance = new TestEntityDao();
+        final List<NodeterministicEntity> returned = new ArrayList<NodeterministicEntity>();
+        instance.preReturnHook = new Function<NodeterministicEntity, NodeterministicEntity>() {
+            @Override
+            public NodeterministicEntity apply(NodeterministicEntity input) {
+                returned.add(input);
+                return input;
+            }
+        };
+        List<ListenableFuture<Key<NodeterministicEntity>>> saves = new ArrayList<ListenableFuture<Key<NodeterministicEntity>>>();
+        for(int i = 0; i < 5; i++){
+            NodeterministicEntity entity = new NodeterministicEntity();
+            entity.setName("async"+i);
+            saves.add(instance.saveAsync(entity));
+        }
+        checkBeforeAndAfter(instance);
+        List<String> ids = new ArrayList<String>();
+        for(Key<NodeterministicEntity> key : Futures.allAsList(saves).get()){
+            ids.add(key.getName());
+        }
+        assertEquals(5, ids.size());
+
+        Map<String, NodeterministicEntity> found = instance.findByIdsAsync(ids).get();
+        assertEquals(5, found.size());
+        assertEquals(5, returned.size());
+        assertEquals(found.get(ids.get(0)), instance.findByIdAsync(ids.get(0)).get());
+
+        instance.deleteAsync(ids.get(0)).get();
+        instance.deleteAllAsync(Lists.newArrayList(found.get(ids.get(1)))).get();
+        assertEquals(3, instance.findByIdsAsync(ids).get().size());
+        try {
+            instance.findByIdAsync(ids.get(0)).get();
+            fail();
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof NotFoundException);
+        }
+
+        TestDetEnDap deterministic = new TestDetEnDap();
+        DeterministicEntity entity = new DeterministicEntity();
+        entity.setFirstName("Async");
+        entity.setLastName("Save");
+        Map<Key<DeterministicEntity>, DeterministicEntity> saved =
+                deterministic.saveAsync(Lists.newArrayList(entity)).get();
+        assertEquals("Async:Save", saved.keySet().iterator().next().getName());
+    }
+
+    @Test
+    public void testFindByKeyPrefix() throws Exception {
+        TestDetEnDap dao = new TestDetEnDap();
+        ArrayList<DeterministicEntity> test = new ArrayList<DeterministicEntity>();
+        for(String name : new String[]{"Robert:Cooper", "Robert:Smith", "Roberta:Jones", "Rob:Allen", "Robert:Burns",
+                "Robert:Smithers"}){
+            DeterministicEntity e = new DeterministicEntity();
+            e.setFirstName(name.split(":")[0]);
+            e.setLastName(name.split(":")[1]);
+            test.add(e);
+        }
+        dao.save(test);
+
+        Page<DeterministicEntity> first = dao.findByKeyPrefix(2, null, "Robert");
+        assertEquals(2, first.getResults().size());
+        assertEquals("Robert:Burns", first.getResults().get(0).getId());
+        assertEquals("Robert:Cooper", first.getResults().get(1).getId());
+        assertNotNull(first.getCursor());
+        Page<DeterministicEntity> second = dao.findByKeyPrefix(2, first.getCursor(), "Robert");
+        assertEquals(2, second.getResults().size());
+        assertEquals("Robert:Smith", second.getResults().get(0).getId());
+        assertEquals("Robert:Smithers", second.getResults().get(1).getId());
+
+        Page<Key<DeterministicEntity>> keys = dao.findKeysByKeyPrefix(10, null, "Roberta");
+        assertEquals(1, keys.getResults().size());
+        assertEquals("Roberta:Jones", keys.getResults().get(0).getName());
+        assertNull(keys.getCursor());
+
+        assertEquals(6, dao.findKeysByKeyPrefix(10, null).getResults().size());
+        // A full set of values is the whole key, and doesn't match keys that merely start with it.
+        keys = dao.findKeysByKeyPrefix(10, null, "Robert", "Smith");
+        assertEquals(1, keys.getResults().size());
+        assertEquals("Robert:Smith", keys.getResults().get(0).getName());
+    }
+
+    @Test
+    public void testFindByTimeRange() throws Exception {
+        TimeComponent<TimedEntity> inverse = new TimeComponent<>(true);
+        ArrayList<TimedEntity> test = new ArrayList<TimedEntity>();
+        for(String owner : new String[]{"bob", "bobby"}){
+            for(long time = 1000; time <= 5000; time += 1000){
+                test.add(new TimedEntity(owner+":"+inverse.format(time)+":"+time, owner));
+            }
+        }
+        AbstractStringKeyedDao<TimedEntity> dao = new AbstractStringKeyedDao<TimedEntity>(TimedEntity.class);
+        dao.save(test);
+
+        Page<TimedEntity> page = dao.findByTimeRange(new Object[]{"bob"}, 2000, 5000, 10, null);
+        assertEquals(3, page.getResults().size());
+        assertTrue(page.getResults().get(0).id.endsWith(":4000"));
+        assertTrue(page.getResults().get(2).id.endsWith(":2000"));
+        for(TimedEntity e : page.getResults()){
+            assertEquals("bob", e.owner);
+        }
+        Page<TimedEntity> first = dao.findByTimeRange(new Object[]{"bobby"}, 0, Long.MAX_VALUE, 2, null);
+        assertEquals(2, first.getResults().size());
+        assertTrue(first.getResults().get(0).id.endsWith(":5000"));
+        Page<TimedEntity> rest = dao.findByTimeRange(new Object[]{"bobby"}, 0, Long.MAX_VALUE, 10, first.getCursor());
+        assertEquals(3, rest.getResults().size());
+        assertTrue(rest.getResults().get(2).id.endsWith(":1000"));
+    }
+
+    @Test
+    public void testFindAcrossShards() throws Exception {
+        ArrayList<ShardedEntity> test = new ArrayList<ShardedEntity>(40);
+        HashSet<Character> shards = new HashSet<Character>();
+        for(int i=0; i < 40; i++){
+            ShardedEntity e = new ShardedEntity(String.format("n%02d", 39 - i));
+            test.add(e);
+        }
+        AbstractStringKeyedDao<ShardedEntity> dao = new AbstractStringKeyedDao<ShardedEntity>(ShardedEntity.class);
+        dao.save(test);
+        for(ShardedEntity e : test){
+            shards.add(e.id.charAt(0));
+        }
+        assertEquals(4, shards.size());
+        List<ShardedEntity> all = dao.findAcrossShards("", 100);
+        assertEquals(40, all.size());
+        for(int i=0; i < 40; i++){
+            assertEquals(String.format("n%02d", i), all.get(i).name);
+        }
+        List<ShardedEntity> tens = dao.findAcrossShards("n1", 100);
+        assertEquals(10, tens.size());
+        assertEquals("n10", tens.get(0).name);
+        assertEquals("n19", tens.get(9).name);
+        List<ShardedEntity> range = dao.findAcrossShards("n05", "n08", 2);
+        assertEquals(2, range.size());
+        assertEquals("n05", range.get(0).name);
+        assertEquals("n06", range.get(1).name);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testFindAcrossShardsUnsharded() throws Exception {
+        new TestDetEnDap().findAcrossShards("Foo", 10);
+    }
+
+    @Test
+    public void testSaveBatchWithSharedProperty() throws Exception {
+        List<EventEntity> events = new ArrayList<EventEntity>();
+        for(int i=0; i < 50; i++){
+            events.add(new EventEntity("bob"));
+        }
+        new AbstractStringKeyedDao<EventEntity>(EventEntity.class).save(events);
+        HashSet<String> ids = new HashSet<String>();
+        for(EventEntity event : events){
+            ids.add(event.id);
+        }
+        assertEquals(50, ids.size());
+        assertEquals(50, OfyService.ofy().load().type(EventEntity.class).count());
+    }
+
+    @Test
+    public void testChunkedWrites() throws Exception {
+        ArrayList<NodeterministicEntity> test = new ArrayList<NodeterministicEntity>(10);
+        for(int i=0; i < 10; i++){
+            NodeterministicEntity e = new NodeterministicEntity();
+            e.setName("Chunk "+i);
+            test.add(e);
+        }
+        ChunkedEntityDao dao = new ChunkedEntityDao();
+        Map<Key<NodeterministicEntity>, NodeterministicEntity> saved = dao.save(test);
+        assertEquals(test, new ArrayList<NodeterministicEntity>(saved.values()));
+        List<String> ids = new ArrayList<String>();
+        for(NodeterministicEntity e : test){
+            ids.add(e.getId());
+        }
+        assertEquals(10, dao.findByIds(ids).size());
+
+        dao.deleteAll(test.subList(0, 4));
+        assertEquals(6, dao.findByIds(ids).size());
+        dao.deleteEntitiesByKeys(ids);
+        assertTrue(dao.findByIds(ids).isEmpty());
+    }
+
+    @Test
+    public void testChunkedReads() throws Exception {
+        ArrayList<NodeterministicEntity> test = new ArrayList<NodeterministicEntity>(10);
+        for(int i=0; i < 10; i++){
+            NodeterministicEntity e = new NodeterministicEntity();
+            e.setName("Read "+i);
+            test.add(e);
+        }
+        ChunkedEntityDao dao = new ChunkedEntityDao();
+        dao.save(test);
+        List<String> ids = new ArrayList<String>();
+        List<Key<NodeterministicEntity>> keys = new ArrayList<Key<NodeterministicEntity>>();
+        for(NodeterministicEntity e : test){
+            ids.add(e.getId());
+            keys.add(Key.create(e));
+        }
+        ids.add(5, "missing");
+
+        Map<String, NodeterministicEntity> found = dao.findByIds(ids);
+        assertEquals(test, new ArrayList<NodeterministicEntity>(found.values()));
+        assertEquals(test, new ArrayList<NodeterministicEntity>(dao.findByKeys(keys).values()));
+
+        Iterator<Map.Entry<String, NodeterministicEntity>> iterator = dao.iterateByIds(ids);
+        List<NodeterministicEntity> streamed = new ArrayList<NodeterministicEntity>();
+        while(iterator.hasNext()){
+            Map.Entry<String, NodeterministicEntity> entry = iterator.next();
+            assertEquals(entry.getKey(), entry.getValue().getId());
+            streamed.add(entry.getValue());
+        }
+        assertEquals(test, streamed);
+        assertEquals(0, dao.loadsOutsideOperation);
+        assertFalse(dao.iterateByIds(new ArrayList<String>()).hasNext());
+    }
+
+    @Test
+    public void testInChunksRetriesFailedChunk() throws Exception {
+        ChunkedEntityDao dao = new ChunkedEntityDao();
+        final int[] starts = new int[4];
+        List<Integer> results = dao.inChunks(Arrays.asList(0, 1, 2, 3), new AbstractKeyedDao.ChunkOperation<Integer, Integer>() {
+            @Override
+            public Callable<Integer> start(final Integer chunk) {
+                // The first attempt at chunk 2 fails.
+                final boolean fail = ++starts[chunk] == 1 && chunk == 2;
+                return new Callable<Integer>() {
+                    @Override
+                    public Integer call() throws Exception {
+                        if(fail){
+                            throw new DatastoreTimeoutException("timeout");
+                        }
+                        return chunk * 10;
+                    }
+                };
+            }
+        }, true);
+        assertEquals(Arrays.asList(0, 10, 20, 30), results);
+        assertArrayEquals(new int[]{1, 1, 2, 1}, starts);
+        assertEquals(1, dao.getRetryStats().getSuccessesAfterRetry());
+    }
+
     public void testDelete() throws Exception {
 
     }
@@ -170,6 +426,48 @@ public class AbstractStringKeyedDaoTest {
         }
     }
 
+    static class ChunkedEntityDao extends AbstractStringKeyedDao<NodeterministicEntity> {
+        private int operations;
+        private int loadsOutsideOperation;
+
+        public ChunkedEntityDao() {
+            super(NodeterministicEntity.class);
+        }
+
+        @Override
+        protected void beforeOperation() {
+            operations++;
+        }
+
+        @Override
+        protected void afterOperation() {
+            operations--;
+        }
+
+        @Override
+        protected Objectify streamingOfy() {
+            if(operations == 0){
+                loadsOutsideOperation++;
+            }
+            return super.streamingOfy();
+        }
+
+        @Override
+        protected int writeBatchSize() {
+            return 3;
+        }
+
+        @Override
+        protected int maxBatchesInFlight() {
+            return 2;
+        }
+
+        @Override
+        protected int readBatchSize() {
+            return 4;
+        }
+    }
+
     static class TestEntityDao extends AbstractStringKeyedDao<NodeterministicEntity> {
         private boolean beforeCalled;
         private boolean afterCalled;
@@ -0,0 +1,41 @@
+/**
+ *    Copyright 2013 Robert Cooper
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package com.totsp.keying.dao;
+
+import com.googlecode.objectify.annotation.Entity;
+import com.googlecode.objectify.annotation.Id;
+import com.googlecode.objectify.annotation.Unindex;
+import com.totsp.keying.definition.KeySegment;
+import com.totsp.keying.definition.KeyStrategy;
+
+/**
+ *
+ */
+@Entity
+@Unindex
+public class EventEntity extends TestEntity {
+    @Id
+    @KeyStrategy(value={KeySegment.PROPERTY, KeySegment.INVERSE_TIME}, properties = "owner", monotonicTime = true)
+    String id;
+    String owner;
+
+    public EventEntity() {
+    }
+
+    public EventEntity(String owner) {
+        this.owner = owner;
+    }
+}
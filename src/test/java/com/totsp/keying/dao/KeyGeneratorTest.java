@@ -15,10 +15,31 @@
  */
 package com.totsp.keying.dao;
 
+import com.totsp.keying.definition.KeySegment;
+import com.totsp.keying.definition.KeyStrategy;
+import com.totsp.keying.impl.TestEncodedBean;
 import com.totsp.keying.impl.TestLowerBean;
+import com.totsp.keying.impl.TestMonotonicTimeBean;
+import com.totsp.keying.impl.TestPrimitiveBean;
+import com.totsp.keying.impl.TestPropertyBean;
+import com.totsp.keying.impl.TestTimeBean;
+import com.totsp.keying.impl.TimeInverseBean;
+import com.totsp.keying.reflect.KeyException;
 import org.junit.Test;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
 /**
  * Created with IntelliJ IDEA.
@@ -43,4 +64,195 @@ public class KeyGeneratorTest {
         KeyGenerator.key(bean);
         assertEquals("robert", bean.getId());
     }
+
+    @Test
+    public void testKeyAll() throws Exception {
+        List<Object> values = new ArrayList<>();
+        TestLowerBean keyed = new TestLowerBean();
+        keyed.setId("existing");
+        values.add(keyed);
+        for(int i = 0; i < KeyGenerator.PARALLEL_THRESHOLD + 10; i++){
+            TestLowerBean lower = new TestLowerBean();
+            lower.setName("NAME" + i);
+            values.add(lower);
+            values.add(new TestMonotonicTimeBean());
+        }
+        values.add(null);
+        List<Object> result = KeyGenerator.keyAll(values);
+        assertEquals(values, result);
+        assertEquals("existing", keyed.getId());
+        assertEquals("name0", ((TestLowerBean) values.get(1)).getId());
+        HashSet<String> ids = new HashSet<>();
+        String last = "~";
+        for(Object value : values){
+            if(value instanceof TestMonotonicTimeBean){
+                String id = ((TestMonotonicTimeBean) value).id;
+                assertTrue(id.endsWith(":robert"));
+                assertTrue(id.compareTo(last) < 0);
+                last = id;
+                ids.add(id);
+            }
+        }
+        assertEquals(KeyGenerator.PARALLEL_THRESHOLD + 10, ids.size());
+        TestLowerBean[] array = { new TestLowerBean() };
+        array[0].setName("ARRAY");
+        assertSame(array, KeyGenerator.keyAll(array));
+        assertEquals("array", array[0].getId());
+    }
+
+    @Test
+    public void testSingleConstruction() throws Exception {
+        GeneratorStats before = KeyGenerator.stats();
+        final CountDownLatch start = new CountDownLatch(1);
+        final List<String> ids = Collections.synchronizedList(new ArrayList<String>());
+        List<Thread> threads = new ArrayList<>();
+        for(int i = 0; i < 16; i++){
+            final int index = i;
+            Thread thread = new Thread(){
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    BurstBean bean = new BurstBean();
+                    bean.name = "bean" + index;
+                    ids.add(KeyGenerator.key(bean).id);
+                }
+            };
+            thread.start();
+            threads.add(thread);
+        }
+        start.countDown();
+        for(Thread thread : threads){
+            thread.join();
+        }
+        GeneratorStats after = KeyGenerator.stats();
+        assertEquals(16, ids.size());
+        assertEquals(1, after.getMisses() - before.getMisses());
+        assertEquals(15, after.getHits() - before.getHits());
+        assertTrue(after.getBuildTime(TimeUnit.NANOSECONDS) > before.getBuildTime(TimeUnit.NANOSECONDS));
+    }
+
+    @Test
+    public void testFailuresNotCached() throws Exception {
+        GeneratorStats before = KeyGenerator.stats();
+        for(int i = 0; i < 2; i++){
+            try {
+                KeyGenerator.key(new TimeInverseBean());
+                fail();
+            } catch (KeyException e) {
+                // expected
+            }
+        }
+        assertEquals(2, KeyGenerator.stats().getMisses() - before.getMisses());
+    }
+
+    @Test
+    public void testPreload() throws Exception {
+        PreloadReport report = KeyGenerator.preload(TestLowerBean.class, TestPropertyBean.class);
+        assertEquals(Arrays.<Class<?>>asList(TestLowerBean.class, TestPropertyBean.class), new ArrayList<>(report.getClasses()));
+        assertTrue(report.getPreparationTime(TestPropertyBean.class, TimeUnit.NANOSECONDS) >= 0);
+        assertEquals(-1, report.getPreparationTime(Object.class, TimeUnit.NANOSECONDS));
+        try {
+            KeyGenerator.preload(TestLowerBean.class, TimeInverseBean.class, Object.class);
+            fail();
+        } catch (KeyException e) {
+            assertTrue(e.getMessage(), e.getMessage().startsWith("Failed to prepare 2 generator(s)"));
+            assertTrue(e.getMessage(), e.getMessage().contains(TimeInverseBean.class.getName()+": "));
+            assertTrue(e.getMessage(), e.getMessage().contains(Object.class.getName()+": "));
+            assertEquals(2, e.getSuppressed().length);
+        }
+        assertTrue(KeyGenerator.preloadFromOfyClasses().getClasses().isEmpty());
+    }
+
+    @Test
+    public void testIdFor() throws Exception {
+        DeterministicEntity entity = new DeterministicEntity();
+        entity.setFirstName("Robert");
+        entity.setLastName("Cooper");
+        assertEquals(KeyGenerator.compute(entity), KeyGenerator.idFor(DeterministicEntity.class, "Robert", "Cooper"));
+
+        TestPrimitiveBean primitives = new TestPrimitiveBean();
+        assertEquals(KeyGenerator.compute(primitives), KeyGenerator.idFor(TestPrimitiveBean.class,
+                primitives.intValue, primitives.longValue, primitives.doubleValue, primitives.boxedLong));
+
+        Date created = new Date(1387557600000L);
+        assertEquals(KeyGenerator.compute(new TestEncodedBean(12, -3.5, created)),
+                KeyGenerator.idFor(TestEncodedBean.class, 12, -3.5, created));
+
+        ShardedEntity sharded = new ShardedEntity("sharded");
+        assertEquals(KeyGenerator.compute(sharded), KeyGenerator.idFor(ShardedEntity.class, "sharded"));
+
+        List<Object[]> rows = Arrays.asList(new Object[]{"a", "b"}, new Object[]{"c", "d"});
+        assertEquals(Arrays.asList("a:b", "c:d"), KeyGenerator.idsFor(DeterministicEntity.class, rows));
+    }
+
+    @Test
+    public void testKeyPrefix() throws Exception {
+        assertEquals("Robert:", KeyGenerator.keyPrefix(DeterministicEntity.class, "Robert"));
+        assertEquals("Robert:Cooper", KeyGenerator.keyPrefix(DeterministicEntity.class, "Robert", "Cooper"));
+        assertEquals("", KeyGenerator.keyPrefix(DeterministicEntity.class));
+        assertEquals("robert", KeyGenerator.keyPrefix(TestLowerBean.class, "ROBERT"));
+        try {
+            KeyGenerator.keyPrefix(ShardedEntity.class, "name");
+            fail();
+        } catch (KeyException e) {
+            // the shard is a hash of the whole key
+        }
+    }
+
+    @Test
+    public void testTimeRange() throws Exception {
+        assertEquals(Arrays.asList("0000000000000064", "00000000000000c8"),
+                Arrays.asList(KeyGenerator.timeRange(TestTimeBean.class, 100, 200)));
+        assertEquals(Arrays.asList("0000000000000000", "7fffffffffffffff"),
+                Arrays.asList(KeyGenerator.timeRange(TestTimeBean.class, -5, Long.MAX_VALUE)));
+        assertEquals(Arrays.asList("owner:7fffffffffffff37", "owner:7fffffffffffff9c"),
+                Arrays.asList(KeyGenerator.timeRange(TimedEntity.class, 100, 201, "owner")));
+        try {
+            KeyGenerator.timeRange(DeterministicEntity.class, 100, 200, "Robert");
+            fail();
+        } catch (KeyException e) {
+            // the next segment is a property
+        }
+    }
+
+    @Test
+    public void testIdForErrors() throws Exception {
+        List<Runnable> failures = Arrays.<Runnable>asList(
+                new Runnable() {
+                    @Override
+                    public void run() {
+                        KeyGenerator.idFor(NodeterministicEntity.class);
+                    }
+                },
+                new Runnable() {
+                    @Override
+                    public void run() {
+                        KeyGenerator.idFor(DeterministicEntity.class, "Robert");
+                    }
+                },
+                new Runnable() {
+                    @Override
+                    public void run() {
+                        KeyGenerator.idFor(TestEncodedBean.class, "12", -3.5, new Date());
+                    }
+                });
+        for(Runnable failure : failures){
+            try {
+                failure.run();
+                fail();
+            } catch (KeyException e) {
+                // expected
+            }
+        }
+    }
+
+    public static class BurstBean {
+        @KeyStrategy(value = KeySegment.PROPERTY, properties = "name")
+        String id;
+        String name;
+    }
 }
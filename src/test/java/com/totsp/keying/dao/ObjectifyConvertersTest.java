@@ -0,0 +1,73 @@
+/**
+ *    Copyright 2013 Robert Cooper
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package com.totsp.keying.dao;
+
+import com.googlecode.objectify.Key;
+import com.googlecode.objectify.Ref;
+import com.totsp.keying.definition.KeySegment;
+import com.totsp.keying.definition.KeyStrategy;
+import com.totsp.keying.impl.ValueConverters;
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ *
+ */
+public class ObjectifyConvertersTest {
+
+    public static class Membership {
+        @KeyStrategy(value={KeySegment.PROPERTY, KeySegment.PROPERTY}, properties={"group", "user"})
+        public String id;
+        public Key<DeterministicEntity> group;
+        public Ref<DeterministicEntity> user;
+    }
+
+    @BeforeClass
+    public static void register(){
+        ObjectifyConverters.register();
+    }
+
+    @AfterClass
+    public static void unregister(){
+        ValueConverters.unregister(Key.class);
+        ValueConverters.unregister(Ref.class);
+    }
+
+    @Before
+    public void setUp(){
+        AbstractStringKeyedDaoTest.HELPER.setUp();
+    }
+
+    @After
+    public void tearDown(){
+        AbstractStringKeyedDaoTest.HELPER.tearDown();
+    }
+
+    @Test
+    public void testKeyAndRef(){
+        Membership membership = new Membership();
+        Key<DeterministicEntity> parent = Key.create(DeterministicEntity.class, 7L);
+        membership.group = Key.create(parent, DeterministicEntity.class, "admins");
+        membership.user = Ref.create(Key.create(DeterministicEntity.class, "bob"));
+        assertEquals("DeterministicEntity/7/DeterministicEntity/admins:DeterministicEntity/bob",
+                KeyGenerator.compute(membership));
+    }
+}
@@ -0,0 +1,66 @@
+/**
+ *    Copyright 2013 Robert Cooper
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package com.totsp.keying.impl;
+
+import com.totsp.keying.reflect.Reader;
+import com.totsp.keying.reflect.Setter;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ *
+ */
+public class CompiledGeneratorTest {
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void testSameAsGenerator(){
+        TestPropertyBean bean = new TestPropertyBean();
+        bean.setFirstName("Robert");
+        bean.setLastName("Cooper");
+        Component<TestPropertyBean>[] components = new Component[]{
+                new PropertyComponent<>(new Reader<>(TestPropertyBean.class, "lastName")),
+                new PropertyComponent<>(new Reader<>(TestPropertyBean.class, "middleName")),
+                new PropertyComponent<>(new Reader<>(TestPropertyBean.class, "age"))
+        };
+        Generator<TestPropertyBean> generator = new Generator<>(components, new Setter<>(TestPropertyBean.class), false);
+        Generator<TestPropertyBean> compiled = CompiledGenerator.compile(generator);
+        assertTrue(compiled instanceof CompiledGenerator);
+        assertEquals("Cooper,null,39", generator.compute(bean));
+        assertEquals(generator.compute(bean), compiled.compute(bean));
+        compiled.key(bean);
+        assertEquals("Cooper,null,39", bean.getId());
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void testLowerCaseAndComponents(){
+        TestLowerBean bean = new TestLowerBean();
+        bean.setName("ROBERT");
+        Component<TestLowerBean>[] components = new Component[]{
+                new PropertyComponent<>(new Reader<>(TestLowerBean.class, "name")),
+                new UUIDComponent<TestLowerBean>()
+        };
+        Generator<TestLowerBean> compiled = CompiledGenerator.compile(
+                new Generator<>(components, new Setter<>(TestLowerBean.class), true));
+        assertTrue(compiled instanceof CompiledGenerator);
+        String key = compiled.compute(bean);
+        assertTrue(key.startsWith("robert:"));
+        assertTrue(key.substring("robert:".length()).matches(UUIDComponentTest.UUID_REGEX));
+    }
+}
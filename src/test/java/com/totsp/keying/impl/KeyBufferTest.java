@@ -0,0 +1,75 @@
+/**
+ *    Copyright 2013 Robert Cooper
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package com.totsp.keying.impl;
+
+import com.totsp.keying.reflect.Setter;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+
+/**
+ *
+ */
+public class KeyBufferTest {
+
+    @Test
+    public void testLowerCase(){
+        assertEquals("robert:cooper-1", KeyBuffer.toLowerCase(new StringBuilder("ROBERT:Cooper-1")));
+        assertEquals("ÅSA:ÉMILE".toLowerCase(), KeyBuffer.toLowerCase(new StringBuilder("ÅSA:ÉMILE")));
+    }
+
+    @Test
+    public void testReuseAndReentry(){
+        StringBuilder outer = KeyBuffer.acquire(16);
+        outer.append("outer");
+        StringBuilder inner = KeyBuffer.acquire(16);
+        assertNotSame(outer, inner);
+        inner.append("INNER");
+        assertEquals("inner", KeyBuffer.release(inner, true));
+        assertEquals("outer", KeyBuffer.release(outer, false));
+        assertSame(outer, KeyBuffer.acquire(16));
+        assertEquals(0, outer.length());
+        KeyBuffer.release(outer, false);
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void testReleasedAfterError(){
+        Generator<TestLowerBean> generator = new Generator<>(new Component[]{
+                new Component<TestLowerBean>() {
+                    @Override
+                    public String getComponent(TestLowerBean object) {
+                        throw new AssertionError("Component failed.");
+                    }
+                }
+        }, new Setter<>(TestLowerBean.class), false);
+        try {
+            generator.compute(new TestLowerBean());
+            fail();
+        } catch(AssertionError e){
+            assertEquals("Component failed.", e.getMessage());
+        }
+        // The thread's buffer is handed out again, so it wasn't left marked in use.
+        StringBuilder first = KeyBuffer.acquire(16);
+        KeyBuffer.release(first, false);
+        StringBuilder second = KeyBuffer.acquire(16);
+        assertSame(first, second);
+        KeyBuffer.release(second, false);
+    }
+}
@@ -0,0 +1,93 @@
+/**
+ *    Copyright 2013 Robert Cooper
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package com.totsp.keying.impl;
+
+import com.totsp.keying.dao.KeyGenerator;
+import com.totsp.keying.definition.KeySegment;
+import com.totsp.keying.reflect.KeyException;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ *
+ */
+public class KeyParserTest {
+
+    @Test
+    public void testTimeAndProperty(){
+        long before = System.currentTimeMillis();
+        TestMonotonicTimeBean bean = KeyGenerator.key(new TestMonotonicTimeBean());
+        ParsedKey key = KeyGenerator.parse(TestMonotonicTimeBean.class, bean.id);
+        assertEquals(2, key.size());
+        assertEquals(KeySegment.INVERSE_TIME, key.getSegment(0));
+        assertTrue(key.getTime() >= before);
+        assertEquals(key.getTime(), key.getTime(0));
+        assertEquals("robert", key.getProperty("owner").toString());
+        assertEquals("robert", key.get(1).toString());
+    }
+
+    @Test
+    public void testPropertiesAndUUID(){
+        TestPropertyBean bean = new TestPropertyBean();
+        bean.setFirstName("Robert");
+        bean.setLastName("Cooper");
+        bean.setMiddleName("T,");
+        ParsedKey key = KeyGenerator.parse(TestPropertyBean.class, KeyGenerator.compute(bean));
+        assertEquals("Cooper", key.getProperty("lastName").toString());
+        assertEquals("Robert", key.getProperty("firstName").toString());
+        // The last property may contain the separator.
+        assertEquals("T,", key.getProperty("middleName").toString());
+
+
+        TestTimeBean timed = KeyGenerator.key(new TestTimeBean());
+        key = KeyGenerator.parse(TestTimeBean.class, timed.id);
+        assertEquals(KeySegment.UUID, key.getSegment(1));
+        assertTrue(key.get(1).toString().matches(UUIDComponentTest.UUID_REGEX));
+        assertTrue(key.getTime() <= System.currentTimeMillis());
+    }
+
+    @Test
+    public void testCompactTime(){
+        long before = System.currentTimeMillis();
+        TestCompactTimeBean bean = KeyGenerator.key(new TestCompactTimeBean());
+        assertEquals(30, bean.id.length());
+        ParsedKey key = KeyGenerator.parse(TestCompactTimeBean.class, bean.id);
+        assertTrue(key.getTime() >= before);
+        assertTrue(key.getTime() <= System.currentTimeMillis());
+        assertEquals(22, key.get(1).length());
+    }
+
+    @Test
+    public void testMismatch(){
+        for(String id : new String[]{"robert", "0123:robert", "zzzzzzzzzzzzzzzz:robert"}){
+            try {
+                KeyGenerator.parse(TestMonotonicTimeBean.class, id).getTime();
+                fail(id);
+            } catch (KeyException e) {
+                // expected
+            }
+        }
+        try {
+            KeyGenerator.parse(TestMonotonicTimeBean.class, "7fffffffffffffff:robert").getTime(1);
+            fail();
+        } catch (KeyException e) {
+            assertTrue(e.getMessage().contains("not a time"));
+        }
+    }
+}
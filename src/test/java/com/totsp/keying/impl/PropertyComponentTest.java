@@ -16,11 +16,19 @@
 package com.totsp.keying.impl;
 
 import com.totsp.keying.dao.KeyGenerator;
+import com.totsp.keying.definition.PropertyEncoding;
 import com.totsp.keying.reflect.KeyException;
 import com.totsp.keying.reflect.Reader;
 import org.junit.Test;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
 /**
  *
@@ -54,6 +62,77 @@ public class PropertyComponentTest {
         assertEquals("39", read);
     }
 
+    @Test
+    public void testPrimitivesMatchStringValueOf() throws Exception {
+        TestPrimitiveBean bean = new TestPrimitiveBean();
+        for(String name : new String[]{"intValue", "longValue", "shortValue", "byteValue", "doubleValue",
+                "floatValue", "booleanValue", "charValue", "boxedInt", "boxedLong", "boxedShort", "boxedByte",
+                "boxedDouble", "boxedFloat"}){
+            String expected = String.valueOf(TestPrimitiveBean.class.getField(name).get(bean));
+            PropertyComponent<TestPrimitiveBean> component =
+                    new PropertyComponent<>(new Reader<>(TestPrimitiveBean.class, name));
+            assertEquals(name, expected, component.getComponent(bean));
+        }
+        KeyGenerator.key(bean);
+        assertEquals("-42:-9223372036854775808:1.0E-7:42", bean.id);
+    }
+
+    @Test
+    public void testEncodingsSort(){
+        List<String> ids = new ArrayList<>();
+        ids.add(KeyGenerator.compute(new TestEncodedBean(9, -1.5, new Date(-1L))));
+        ids.add(KeyGenerator.compute(new TestEncodedBean(10, -1.5, new Date(0L))));
+        ids.add(KeyGenerator.compute(new TestEncodedBean(10, -0.25, new Date(0L))));
+        ids.add(KeyGenerator.compute(new TestEncodedBean(10, 0.0, new Date(0L))));
+        ids.add(KeyGenerator.compute(new TestEncodedBean(10, 2.0, new Date(0L))));
+        ids.add(KeyGenerator.compute(new TestEncodedBean(10, 2.0, new Date(1000L))));
+        ids.add(KeyGenerator.compute(new TestEncodedBean(Integer.MAX_VALUE, 2.0, new Date(1000L))));
+        List<String> sorted = new ArrayList<>(ids);
+        Collections.sort(sorted);
+        assertEquals(ids, sorted);
+        assertEquals("0000000009:4007ffffffffffff:1969-12-31T23:59:59.999Z", ids.get(0));
+        assertEquals("0000000010:8000000000000000:1970-01-01T00:00:00.000Z", ids.get(3));
+    }
+
+    @Test
+    public void testEncodings() throws Exception {
+        TestPrimitiveBean bean = new TestPrimitiveBean();
+        assertEquals("7fffffd6", encode(bean, "intValue", PropertyEncoding.SORTABLE_HEX));
+        assertEquals("0000000000000000", encode(bean, "longValue", PropertyEncoding.SORTABLE_HEX));
+        assertEquals("8007", encode(bean, "shortValue", PropertyEncoding.SORTABLE_HEX));
+        assertEquals("7f", encode(bean, "byteValue", PropertyEncoding.SORTABLE_HEX));
+        assertEquals("0000000007", encode(bean, "shortValue", PropertyEncoding.PADDED));
+        assertEquals("0000000000000000042", encode(bean, "boxedLong", PropertyEncoding.PADDED));
+        assertEquals("1970-01-01T00:00:00.042Z", encode(bean, "boxedLong", PropertyEncoding.ISO_DATE));
+        bean.longValue = 253402300799999L;
+        assertEquals("9999-12-31T23:59:59.999Z", encode(bean, "longValue", PropertyEncoding.ISO_DATE));
+        bean.longValue = -62135596800000L;
+        assertEquals("0001-01-01T00:00:00.000Z", encode(bean, "longValue", PropertyEncoding.ISO_DATE));
+    }
+
+    @Test
+    public void testEncodingErrors(){
+        TestPrimitiveBean bean = new TestPrimitiveBean();
+        for(String name : new String[]{"intValue", "boxedShort"}){
+            try {
+                encode(bean, name, PropertyEncoding.PADDED);
+                fail(name);
+            } catch (KeyException e) {
+                // negative or null
+            }
+        }
+        try {
+            new PropertyComponent<>(new Reader<>(TestPrimitiveBean.class, "doubleValue"), PropertyEncoding.PADDED);
+            fail();
+        } catch (KeyException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains("PADDED"));
+        }
+    }
+
+    private static String encode(TestPrimitiveBean bean, String name, PropertyEncoding encoding){
+        return new PropertyComponent<>(new Reader<>(TestPrimitiveBean.class, name), encoding).getComponent(bean);
+    }
+
     @Test(expected = KeyException.class)
     public void testMissing(){
         TestPropertyBean bean = new TestPropertyBean();
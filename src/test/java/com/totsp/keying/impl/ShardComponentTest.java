@@ -0,0 +1,90 @@
+/**
+ *    Copyright 2013 Robert Cooper
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package com.totsp.keying.impl;
+
+import com.totsp.keying.reflect.Reader;
+import com.totsp.keying.reflect.Setter;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ *
+ */
+public class ShardComponentTest {
+
+    @Test
+    public void testWidth(){
+        assertEquals(1, ShardComponent.width(1));
+        assertEquals(1, ShardComponent.width(16));
+        assertEquals(2, ShardComponent.width(17));
+        assertEquals(2, ShardComponent.width(256));
+        assertEquals(3, ShardComponent.width(257));
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void testShardOfKey(){
+        ShardComponent<TestLowerBean> shard = new ShardComponent<>(16);
+        Generator<TestLowerBean> generator = new Generator<>(new Component[]{
+                shard,
+                new PropertyComponent<>(new Reader<>(TestLowerBean.class, "name"))
+        }, new Setter<>(TestLowerBean.class), true);
+        assertTrue(generator.hasKeyShard());
+        assertSame(generator, CompiledGenerator.compile(generator));
+        assertEquals(16, generator.shardPrefixes().size());
+        assertEquals("a:", generator.shardPrefixes().get(10));
+
+        Set<Character> used = new HashSet<>();
+        for(int i = 0; i < 1000; i++){
+            TestLowerBean bean = new TestLowerBean();
+            bean.setName("NAME" + i);
+            String key = generator.compute(bean);
+            assertEquals(key, generator.compute(bean));
+            assertEquals(":name" + i, key.substring(1));
+            StringBuilder rest = new StringBuilder(":name" + i);
+            shard.insert(rest, 0, false);
+            assertEquals(key, rest.toString());
+            used.add(key.charAt(0));
+        }
+        assertEquals(16, used.size());
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void testShardOfProperty(){
+        TestPropertyBean bean = new TestPropertyBean();
+        bean.setFirstName("Robert");
+        bean.setLastName("Cooper");
+        ShardComponent<TestPropertyBean> shard = new ShardComponent<>(300,
+                new PropertyComponent<>(new Reader<>(TestPropertyBean.class, "lastName")));
+        assertEquals(3, shard.getComponent(bean).length());
+        Generator<TestPropertyBean> generator = new Generator<>(new Component[]{
+                new PropertyComponent<>(new Reader<>(TestPropertyBean.class, "firstName")),
+                shard
+        }, new Setter<>(TestPropertyBean.class), false);
+        assertEquals("Robert," + shard.getComponent(bean), generator.compute(bean));
+        assertEquals(Arrays.<String>asList(), generator.shardPrefixes());
+        bean.setFirstName("Someone");
+        assertTrue(generator.compute(bean).endsWith("," + shard.getComponent(bean)));
+    }
+}
@@ -0,0 +1,31 @@
+/**
+ *    Copyright 2013 Robert Cooper
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package com.totsp.keying.impl;
+
+import com.totsp.keying.definition.KeySegment;
+import com.totsp.keying.definition.KeyStrategy;
+import com.totsp.keying.definition.TimeEncoding;
+import com.totsp.keying.definition.UUIDEncoding;
+
+/**
+ *
+ */
+public class TestCompactTimeBean {
+
+    @KeyStrategy(value={KeySegment.INVERSE_TIME, KeySegment.UUID}, timeEncoding = TimeEncoding.BASE64,
+            uuidEncoding = UUIDEncoding.BASE64, separator = "")
+    public String id;
+}
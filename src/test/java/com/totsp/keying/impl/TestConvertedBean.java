@@ -0,0 +1,71 @@
+/**
+ *    Copyright 2013 Robert Cooper
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package com.totsp.keying.impl;
+
+import com.totsp.keying.definition.KeySegment;
+import com.totsp.keying.definition.KeyStrategy;
+
+import java.util.Date;
+
+/**
+ *
+ */
+public class TestConvertedBean {
+
+    public enum Color {
+        RED, GREEN;
+
+        @Override
+        public String toString() {
+            return name().toLowerCase();
+        }
+    }
+
+    public interface Amount {
+        long getCents();
+    }
+
+    public static class Money implements Amount {
+        private final long cents;
+
+        public Money(long cents) {
+            this.cents = cents;
+        }
+
+        @Override
+        public long getCents() {
+            return cents;
+        }
+
+        @Override
+        public String toString() {
+            return "Money{cents=" + cents + '}';
+        }
+    }
+
+    public static class Untyped {
+        @KeyStrategy(value=KeySegment.PROPERTY, properties="value")
+        public String id;
+        public Object value = new Date(0L);
+    }
+
+    @KeyStrategy(value={KeySegment.PROPERTY, KeySegment.PROPERTY, KeySegment.PROPERTY},
+            properties={"color", "price", "when"})
+    public String id;
+    public Color color = Color.GREEN;
+    public Money price = new Money(1250);
+    public Date when = new Date(0L);
+}
@@ -0,0 +1,43 @@
+/**
+ *    Copyright 2013 Robert Cooper
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package com.totsp.keying.impl;
+
+import com.totsp.keying.definition.KeySegment;
+import com.totsp.keying.definition.KeyStrategy;
+
+/**
+ *
+ */
+public class TestPrimitiveBean {
+
+    @KeyStrategy(value={KeySegment.PROPERTY, KeySegment.PROPERTY, KeySegment.PROPERTY, KeySegment.PROPERTY},
+            properties={"intValue", "longValue", "doubleValue", "boxedLong"})
+    public String id;
+    public int intValue = -42;
+    public long longValue = Long.MIN_VALUE;
+    public short shortValue = 7;
+    public byte byteValue = -1;
+    public double doubleValue = 1.0E-7;
+    public float floatValue = 3.14f;
+    public boolean booleanValue = true;
+    public char charValue = 'k';
+    public Integer boxedInt = 1234567;
+    public Long boxedLong = 42L;
+    public Short boxedShort;
+    public Byte boxedByte = 3;
+    public Double boxedDouble = Double.NaN;
+    public Float boxedFloat = -0.0f;
+}
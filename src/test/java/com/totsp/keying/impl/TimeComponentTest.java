@@ -16,8 +16,16 @@
 package com.totsp.keying.impl;
 
 import com.totsp.keying.dao.KeyGenerator;
+import com.totsp.keying.definition.TimeEncoding;
 import org.junit.Test;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertTrue;
 
 /**
@@ -83,4 +91,97 @@ public class TimeComponentTest {
         assertTrue(bean.getId().substring(0, bean.getId().indexOf(":")).compareTo(endStr) <= 0);
 
     }
+
+    @Test
+    public void testMonotonicAcrossThreads() throws Exception {
+        final TimeComponent<TestTimeBean> timeComponent = new TimeComponent<>(false, true);
+        final TimeComponent<TestTimeBean> inverseComponent = new TimeComponent<>(true, true);
+        final Set<String> seen = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+        final Set<String> inverseSeen = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+        final List<Throwable> failures = Collections.synchronizedList(new ArrayList<Throwable>());
+        final int perThread = 5000;
+        long start = System.currentTimeMillis();
+        List<Thread> threads = new ArrayList<>();
+        for(int t = 0; t < 4; t++){
+            threads.add(new Thread(){
+                @Override
+                public void run() {
+                    String last = "";
+                    String lastInverse = "~";
+                    try {
+                        for(int i = 0; i < perThread; i++){
+                            String value = timeComponent.getComponent(null);
+                            String inverse = inverseComponent.getComponent(null);
+                            assertTrue(value.compareTo(last) > 0);
+                            assertTrue(inverse.compareTo(lastInverse) < 0);
+                            last = value;
+                            lastInverse = inverse;
+                            seen.add(value);
+                            inverseSeen.add(inverse);
+                        }
+                    } catch(Throwable t){
+                        failures.add(t);
+                    }
+                }
+            });
+        }
+        for(Thread thread : threads){
+            thread.start();
+        }
+        for(Thread thread : threads){
+            thread.join();
+        }
+        assertTrue(failures.toString(), failures.isEmpty());
+        assertEquals(4 * perThread, seen.size());
+        assertEquals(4 * perThread, inverseSeen.size());
+        String starStr = "00000000".substring(Long.toHexString(start).length() - 8) + Long.toHexString(start);
+        for(String value : seen){
+            assertEquals(16, value.length());
+            assertTrue(value.compareTo(starStr) >= 0);
+        }
+    }
+
+    @Test
+    public void testCompactEncodingsSort() throws Exception {
+        long now = System.currentTimeMillis();
+        long[] times = {0, 1, 31, 32, 63, 64, now - 1000, now, now + 1, 253402300799999L};
+        for(TimeEncoding encoding : TimeEncoding.values()){
+            for(boolean inverse : new boolean[]{false, true}){
+                TimeComponent<TestTimeBean> component = new TimeComponent<>(inverse, false, encoding);
+                String last = null;
+                for(long time : times){
+                    StringBuilder sb = new StringBuilder();
+                    component.append(sb, time, 0);
+                    String value = sb.toString();
+                    assertEquals(TimeComponent.width(encoding), value.length());
+                    assertEquals(time, TimeComponent.decode(value, 0, inverse, encoding));
+                    if(last != null){
+                        assertTrue(encoding+" "+last+" "+value, inverse ? value.compareTo(last) < 0 : value.compareTo(last) > 0);
+                    }
+                    last = value;
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testBatchTimes() throws Exception {
+        long before = System.currentTimeMillis();
+        TimeComponent<TestTimeBean> plain = new TimeComponent<>(false);
+        long batch = plain.reserve(100000);
+        assertTrue(batch >= before && batch <= System.currentTimeMillis());
+        // Without a monotonic clock the whole batch keeps the wall clock time.
+        StringBuilder first = new StringBuilder();
+        plain.append(first, batch, 0);
+        StringBuilder last = new StringBuilder();
+        plain.append(last, batch, 99999);
+        assertEquals(first.toString(), last.toString());
+
+        TimeComponent<TestTimeBean> monotonic = new TimeComponent<>(false, true);
+        long run = monotonic.reserve(10);
+        StringBuilder tenth = new StringBuilder();
+        monotonic.append(tenth, run, 9);
+        assertEquals(run + 9, TimeComponent.decode(tenth, 0, false, TimeEncoding.HEX));
+        assertTrue(monotonic.getComponent(new TestTimeBean()).compareTo(tenth.toString()) > 0);
+    }
 }
@@ -15,14 +15,23 @@
  */
 package com.totsp.keying.impl;
 
+import com.google.common.io.BaseEncoding;
 import com.totsp.keying.dao.KeyGenerator;
+import com.totsp.keying.definition.UUIDEncoding;
 import org.junit.Test;
 
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.util.UUID;
+
+import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertTrue;
 
 public class UUIDComponentTest {
 
     public static final String UUID_REGEX="[0-9a-f]{8}-[0-9a-f]{4}-[0-9a-f]{4}-[0-9a-f]{4}-[0-9a-f]{12}";
+    public static final String BASE64_REGEX="[A-Za-z0-9_-]{22}";
+    public static final String BASE32_REGEX="[0-9a-hjkmnp-tv-z]{26}";
 
 
     @Test
@@ -38,4 +47,35 @@ public class UUIDComponentTest {
         KeyGenerator.key(bean);
         assertTrue(bean.id.matches(UUID_REGEX));
     }
-}
\ No newline at end of file
+
+    @Test
+    public void testCompactEncodings() {
+        assertTrue(new UUIDComponent<>(UUIDEncoding.BASE64).getComponent(null).matches(BASE64_REGEX));
+        assertTrue(new UUIDComponent<>(UUIDEncoding.BASE32).getComponent(null).matches(BASE32_REGEX));
+        TestCompactUUIDBean bean = new TestCompactUUIDBean();
+        KeyGenerator.key(bean);
+        assertTrue(bean.id.matches(BASE32_REGEX));
+    }
+
+    @Test
+    public void testAppend128() {
+        UUID uuid = UUID.fromString("f81d4fae-7dec-41d0-a765-00a0c91e6bf6");
+        byte[] bytes = ByteBuffer.allocate(16).putLong(uuid.getMostSignificantBits())
+                .putLong(uuid.getLeastSignificantBits()).array();
+        StringBuilder sb = new StringBuilder();
+        Encodings.append128(sb, uuid.getMostSignificantBits(), uuid.getLeastSignificantBits(), 6, Encodings.BASE64_URL);
+        assertEquals(BaseEncoding.base64Url().omitPadding().encode(bytes), sb.toString());
+
+        sb.setLength(0);
+        Encodings.append128(sb, uuid.getMostSignificantBits(), uuid.getLeastSignificantBits(), 5, Encodings.CROCKFORD32);
+        String radix = new BigInteger(1, bytes).shiftLeft(2).toString(32);
+        StringBuilder expected = new StringBuilder();
+        for(int i = radix.length(); i < 26; i++){
+            expected.append('0');
+        }
+        for(char c : radix.toCharArray()){
+            expected.append(Encodings.CROCKFORD32[Character.digit(c, 32)]);
+        }
+        assertEquals(expected.toString(), sb.toString());
+    }
+}
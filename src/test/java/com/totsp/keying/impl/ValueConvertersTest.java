@@ -0,0 +1,98 @@
+/**
+ *    Copyright 2013 Robert Cooper
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package com.totsp.keying.impl;
+
+import com.totsp.keying.dao.KeyGenerator;
+import com.totsp.keying.reflect.Reader;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.util.Date;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+/**
+ *
+ */
+public class ValueConvertersTest {
+
+    private static final ValueConverter<TestConvertedBean.Amount> AMOUNT = new ValueConverter<TestConvertedBean.Amount>() {
+        @Override
+        public void append(StringBuilder sb, TestConvertedBean.Amount value) {
+            sb.append(value.getCents());
+        }
+    };
+
+    @BeforeClass
+    public static void register(){
+        ValueConverters.register(TestConvertedBean.Amount.class, AMOUNT);
+        ValueConverters.register(Date.class, ValueConverters.DATE);
+    }
+
+    @AfterClass
+    public static void unregister(){
+        ValueConverters.unregister(TestConvertedBean.Amount.class);
+        ValueConverters.unregister(Date.class);
+    }
+
+    @Test
+    public void testFind(){
+        assertSame(ValueConverters.ENUM, ValueConverters.find(TestConvertedBean.Color.class));
+        assertSame(AMOUNT, ValueConverters.find(TestConvertedBean.Money.class));
+        assertNull(ValueConverters.find(String.class));
+        assertNull(ValueConverters.find(Integer.class));
+        assertNull(ValueConverters.find(int.class));
+        assertNull(ValueConverters.find(Object.class));
+    }
+
+    @Test
+    public void testKey(){
+        TestConvertedBean bean = new TestConvertedBean();
+        assertEquals("green:1250:1970-01-01T00:00:00.000Z", KeyGenerator.compute(bean));
+        bean.price = null;
+        assertEquals("null", new PropertyComponent<>(new Reader<>(TestConvertedBean.class, "price")).getComponent(bean));
+    }
+
+    @Test
+    public void testDeclaredType(){
+        // The converter is the one for the declared Object, not the Date in the property.
+        TestConvertedBean.Untyped bean = new TestConvertedBean.Untyped();
+        assertEquals(String.valueOf(bean.value), KeyGenerator.compute(bean));
+        assertEquals(KeyGenerator.compute(bean), KeyGenerator.idFor(TestConvertedBean.Untyped.class, bean.value));
+    }
+
+    @Test
+    public void testMemoize(){
+        final AtomicInteger calls = new AtomicInteger();
+        ValueConverter<Integer> memoized = ValueConverters.memoize(new ValueConverter<Integer>() {
+            @Override
+            public void append(StringBuilder sb, Integer value) {
+                calls.incrementAndGet();
+                sb.append('#').append(value);
+            }
+        }, 16);
+        StringBuilder sb = new StringBuilder();
+        for(int i = 0; i < 3; i++){
+            memoized.append(sb, 7);
+        }
+        assertEquals("#7#7#7", sb.toString());
+        assertEquals(1, calls.get());
+    }
+}
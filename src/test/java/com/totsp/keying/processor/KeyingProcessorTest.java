@@ -0,0 +1,331 @@
+/**
+ *    Copyright 2013 Robert Cooper
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package com.totsp.keying.processor;
+
+import com.google.common.base.Joiner;
+import com.google.common.base.Preconditions;
+import com.google.common.io.Files;
+import com.totsp.keying.dao.KeyGenerator;
+import com.totsp.keying.definition.KeyStrategy;
+import com.totsp.keying.impl.Component;
+import com.totsp.keying.impl.Generator;
+import com.totsp.keying.impl.ShardComponent;
+import com.totsp.keying.impl.TestConvertedBean;
+import com.totsp.keying.impl.TestEncodedBean;
+import com.totsp.keying.impl.TestPrimitiveBean;
+import com.totsp.keying.impl.TestPropertyBean;
+import com.totsp.keying.impl.ValueConverters;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import javax.annotation.Nonnull;
+import javax.tools.Diagnostic;
+import javax.tools.DiagnosticCollector;
+import javax.tools.JavaCompiler;
+import javax.tools.JavaFileObject;
+import javax.tools.StandardJavaFileManager;
+import javax.tools.ToolProvider;
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeNotNull;
+
+/**
+ *
+ */
+public class KeyingProcessorTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private JavaCompiler compiler;
+    private File sources;
+    private File classes;
+    private DiagnosticCollector<JavaFileObject> diagnostics;
+    private List<File> paths = new ArrayList<>();
+
+    @Before
+    public void setUp() throws IOException {
+        compiler = ToolProvider.getSystemJavaCompiler();
+        assumeNotNull(compiler);
+        sources = folder.newFolder("src");
+        classes = folder.newFolder("classes");
+        diagnostics = new DiagnosticCollector<>();
+    }
+
+    @Test
+    public void testGeneratedKeyers() throws Exception {
+        source("sample/Person.java",
+                "package sample;",
+                "import com.totsp.keying.definition.*;",
+                "public class Person {",
+                "    @KeyStrategy(value={KeySegment.PROPERTY, KeySegment.PROPERTY}, properties={\"lastName\", \"age\"}, separator=\"\\\",\", lowerCase=true)",
+                "    String id;",
+                "    String lastName = \"Cooper\";",
+                "    public int getAge() { return 39; }",
+                "}");
+        source("sample/Outer.java",
+                "package sample;",
+                "import com.totsp.keying.definition.*;",
+                "public class Outer {",
+                "    public static class Inner {",
+                "        private String id;",
+                "        private String name = \"Robert\";",
+                "        @KeyStrategy(value={KeySegment.PROPERTY, KeySegment.UUID}, properties={\"name\"})",
+                "        public String getId() { return id; }",
+                "        public void setId(String id) { this.id = id; }",
+                "        public String getName() { return name; }",
+                "    }",
+                "}");
+        source("sample/Sharded.java",
+                "package sample;",
+                "import com.totsp.keying.definition.*;",
+                "public class Sharded {",
+                "    @KeyStrategy(value={KeySegment.SHARD, KeySegment.PROPERTY}, properties={\"name\"}, shardProperty=\"owner\")",
+                "    String id;",
+                "    String name = \"doc\";",
+                "    long owner = 42;",
+                "}");
+        source("sample/Padded.java",
+                "package sample;",
+                "import com.totsp.keying.definition.*;",
+                "public class Padded {",
+                "    @KeyStrategy(value={KeySegment.PROPERTY, KeySegment.PROPERTY, KeySegment.PROPERTY, KeySegment.PROPERTY},",
+                "            properties={\"sequence\", \"kind\", \"score\", \"when\"},",
+                "            encodings={PropertyEncoding.PADDED, PropertyEncoding.DEFAULT, PropertyEncoding.SORTABLE_HEX, PropertyEncoding.ISO_DATE})",
+                "    String id;",
+                "    Integer sequence = 7;",
+                "    long score = -1;",
+                "    java.util.Date when = new java.util.Date(0);",
+                "    Kind kind = Kind.DOC;",
+                "    enum Kind { DOC; public String toString() { return \"doc\"; } }",
+                "}");
+        source("sample/Hidden.java",
+                "package sample;",
+                "import com.totsp.keying.definition.*;",
+                "public class Hidden {",
+                "    @KeyStrategy(value={KeySegment.PROPERTY}, properties={\"name\"})",
+                "    private String id;",
+                "    private String name = \"hidden\";",
+                "}");
+        assertTrue(diagnostics.getDiagnostics().toString(), compile());
+        assertTrue(new File(classes, "sample/Person_Keyer.class").isFile());
+        assertTrue(new File(classes, "sample/Outer_Inner_Keyer.class").isFile());
+        // Encoded properties are written inline, not through a reflective PropertyComponent.
+        String paddedKeyer = Files.toString(new File(classes, "sample/Padded_Keyer.java"), Charset.forName("utf-8"));
+        assertFalse(paddedKeyer, paddedKeyer.contains("PropertyComponent"));
+        assertFalse(new File(classes, "sample/Hidden_Keyer.class").exists());
+        assertEquals(Arrays.asList("sample.Outer$Inner=sample.Outer_Inner_Keyer", "sample.Padded=sample.Padded_Keyer",
+                        "sample.Person=sample.Person_Keyer", "sample.Sharded=sample.Sharded_Keyer"),
+                Files.readLines(new File(classes, KeyingProcessor.REGISTRY), Charset.forName("utf-8")));
+
+        try(URLClassLoader loader = new URLClassLoader(new URL[]{classes.toURI().toURL()}, getClass().getClassLoader())){
+            Object person = loader.loadClass("sample.Person").newInstance();
+            @SuppressWarnings("unchecked")
+            Generator<Object> keyer = (Generator<Object>) loader.loadClass("sample.Person_Keyer").newInstance();
+            assertEquals("cooper\",39", keyer.compute(person));
+            assertFalse(keyer.keyed(person));
+            KeyGenerator.key(person);
+            assertTrue(keyer.keyed(person));
+            Field id = person.getClass().getDeclaredField("id");
+            id.setAccessible(true);
+            assertEquals("cooper\",39", id.get(person));
+            assertEquals("cooper\",39", KeyGenerator.idFor(person.getClass(), "Cooper", 39));
+
+            Object inner = loader.loadClass("sample.Outer$Inner").newInstance();
+            KeyGenerator.key(inner);
+            String innerId = (String) inner.getClass().getMethod("getId").invoke(inner);
+            assertTrue(innerId, innerId.matches("Robert:[0-9a-f]{8}-[0-9a-f]{4}-[0-9a-f]{4}-[0-9a-f]{4}-[0-9a-f]{12}"));
+
+            Object sharded = loader.loadClass("sample.Sharded").newInstance();
+            String shardedId = KeyGenerator.compute(sharded);
+            ShardComponent<Object> owner = new ShardComponent<>(16, new Component<Object>() {
+                @Override
+                public String getComponent(Object object) {
+                    return "42";
+                }
+            });
+            assertEquals(owner.getComponent(sharded)+":doc", shardedId);
+
+            Object padded = loader.loadClass("sample.Padded").newInstance();
+            String paddedId = "0000000007:doc:7fffffffffffffff:1970-01-01T00:00:00.000Z";
+            assertEquals(paddedId, KeyGenerator.compute(padded));
+            Field kindField = padded.getClass().getDeclaredField("kind");
+            kindField.setAccessible(true);
+            Object kind = kindField.get(padded);
+            assertEquals(paddedId, KeyGenerator.idFor(padded.getClass(), 7, kind, -1L, new Date(0)));
+
+            Object hidden = loader.loadClass("sample.Hidden").newInstance();
+            assertEquals("hidden", KeyGenerator.compute(hidden));
+        }
+    }
+
+    @Test
+    public void testInvalidStrategies() throws Exception {
+        source("sample/Invalid.java",
+                "package sample;",
+                "import com.totsp.keying.definition.*;",
+                "public class Invalid {",
+                "    @KeyStrategy(value={KeySegment.PROPERTY, KeySegment.PROPERTY}, properties={\"name\"})",
+                "    String id;",
+                "    @KeyStrategy(value={KeySegment.TIME})",
+                "    String time;",
+                "    @KeyStrategy(value={KeySegment.PROPERTY, KeySegment.UUID}, properties={\"absent\"})",
+                "    String missing;",
+                "    @KeyStrategy(value={KeySegment.UUID}, lowerCase=true, uuidEncoding=UUIDEncoding.BASE64)",
+                "    String lower;",
+                "    @KeyStrategy(value={KeySegment.UUID})",
+                "    public void setOther(String other) { }",
+                "    String name;",
+                "    @KeyStrategy(value={KeySegment.PROPERTY}, properties={\"name\"}, encodings={PropertyEncoding.PADDED})",
+                "    String padded;",
+                "    @KeyStrategy(value={KeySegment.UUID})",
+                "    final String fixed = null;",
+                "    @KeyStrategy(value={KeySegment.UUID})",
+                "    Long number;",
+                "    @KeyStrategy(value={KeySegment.PROPERTY}, properties={\"name\", \"ignored\"})",
+                "    String extra;",
+                "}");
+        assertFalse(compile());
+        List<String> warnings = new ArrayList<>();
+        List<String> errors = new ArrayList<>();
+        for(Diagnostic<? extends JavaFileObject> diagnostic : diagnostics.getDiagnostics()){
+            if(diagnostic.getKind() == Diagnostic.Kind.ERROR){
+                errors.add(diagnostic.getMessage(null));
+            } else if(diagnostic.getKind() == Diagnostic.Kind.WARNING){
+                warnings.add(diagnostic.getMessage(null));
+            }
+        }
+        String all = Joiner.on('\n').join(errors);
+        assertEquals(all, 8, errors.size());
+        assertTrue(all, all.contains("Expected 2 properties but found 1"));
+        assertTrue(all, all.contains("only a time"));
+        assertTrue(all, all.contains("property for absent"));
+        assertTrue(all, all.contains("BASE64"));
+        assertTrue(all, all.contains("read/write String property"));
+        assertTrue(all, all.contains("PADDED can't be used for name"));
+        assertTrue(all, all.contains("non-final String field"));
+        // Like the KeyGenerator, the processor only warns about extra properties.
+        assertTrue(warnings.toString(), Joiner.on('\n').join(warnings).contains("the extra ones are ignored"));
+        assertFalse(new File(classes, "sample/Invalid_Keyer.class").exists());
+    }
+
+    @Test
+    public void testRegistryDropsRemovedEntities() throws Exception {
+        source("sample/Kept.java",
+                "package sample;",
+                "import com.totsp.keying.definition.*;",
+                "public class Kept {",
+                "    @KeyStrategy(value={KeySegment.UUID})",
+                "    String id;",
+                "}");
+        source("sample/Gone.java",
+                "package sample;",
+                "import com.totsp.keying.definition.*;",
+                "public class Gone {",
+                "    @KeyStrategy(value={KeySegment.UUID})",
+                "    String id;",
+                "}");
+        assertTrue(diagnostics.getDiagnostics().toString(), compile());
+
+        // An incremental build after Gone was deleted, which compiles only a new entity.
+        assertTrue(new File(classes, "sample/Gone.class").delete());
+        assertTrue(new File(classes, "sample/Gone_Keyer.class").delete());
+        paths.clear();
+        source("sample/Added.java",
+                "package sample;",
+                "import com.totsp.keying.definition.*;",
+                "public class Added {",
+                "    @KeyStrategy(value={KeySegment.UUID})",
+                "    String id;",
+                "}");
+        assertTrue(diagnostics.getDiagnostics().toString(), compile());
+        assertEquals(Arrays.asList("sample.Added=sample.Added_Keyer", "sample.Kept=sample.Kept_Keyer"),
+                Files.readLines(new File(classes, KeyingProcessor.REGISTRY), Charset.forName("utf-8")));
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void testSameKeysAsRuntime() throws Exception {
+        File tests = new File("src/test/java/com/totsp/keying/impl");
+        for(String name : new String[]{"TestEncodedBean", "TestPropertyBean", "TestPrimitiveBean", "TestConvertedBean"}){
+            paths.add(new File(tests, name + ".java"));
+        }
+        assertTrue(diagnostics.getDiagnostics().toString(), compile());
+
+        TestEncodedBean encoded = new TestEncodedBean(7, -2.5, new Date(0));
+        TestPropertyBean property = new TestPropertyBean();
+        property.setFirstName("Robert");
+        property.setLastName("Cooper");
+        TestPrimitiveBean primitive = new TestPrimitiveBean();
+        TestConvertedBean.Untyped untyped = new TestConvertedBean.Untyped();
+        // The entities come from the test classpath, which has no generated keyers, so
+        // KeyGenerator keys them reflectively; only the keyers are loaded from the new classes.
+        try(URLClassLoader loader = new URLClassLoader(new URL[]{classes.toURI().toURL()}, getClass().getClassLoader())){
+            for(Object entity : new Object[]{encoded, property, primitive, untyped}){
+                Generator<Object> keyer = (Generator<Object>) loader.loadClass(entity.getClass().getName().replace('$', '_') + "_Keyer").newInstance();
+                assertEquals(KeyGenerator.compute(entity), keyer.compute(entity));
+            }
+            // A Date converter mustn't apply to the Date value of a property declared as Object.
+            ValueConverters.register(Date.class, ValueConverters.DATE);
+            try {
+                Generator<Object> keyer = (Generator<Object>) loader.loadClass(TestConvertedBean.class.getName() + "_Untyped_Keyer").newInstance();
+                assertEquals(KeyGenerator.compute(untyped), keyer.computeFrom(untyped.value));
+            } finally {
+                ValueConverters.unregister(Date.class);
+            }
+        }
+    }
+
+    private void source(String path, String... lines) throws IOException {
+        File file = new File(sources, path);
+        Files.createParentDirs(file);
+        Files.write(Joiner.on('\n').join(lines), file, Charset.forName("utf-8"));
+        paths.add(file);
+    }
+
+    private boolean compile() throws IOException {
+        try(StandardJavaFileManager files = compiler.getStandardFileManager(diagnostics, null, Charset.forName("utf-8"))){
+            String classpath = Joiner.on(File.pathSeparator).join(location(KeyStrategy.class),
+                    location(Preconditions.class), location(Nonnull.class), location(getClass()), classes.getPath());
+            List<String> options = Arrays.asList("-classpath", classpath, "-d", classes.getPath(),
+                    "-source", "1.7", "-target", "1.7", "-Xlint:-options",
+                    "-processor", KeyingProcessor.class.getName());
+            return compiler.getTask(null, files, diagnostics, options, null, files.getJavaFileObjectsFromFiles(paths)).call();
+        }
+    }
+
+    private static String location(Class<?> type){
+        try {
+            return new File(type.getProtectionDomain().getCodeSource().getLocation().toURI()).getPath();
+        } catch (Exception e) {
+            throw new AssertionError(e);
+        }
+    }
+}
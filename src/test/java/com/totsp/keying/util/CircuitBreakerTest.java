@@ -0,0 +1,214 @@
+/**
+ *    Copyright 2013 Robert Cooper
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package com.totsp.keying.util;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ *
+ */
+public class CircuitBreakerTest {
+
+    @Test
+    public void testOpenAndClose() throws Exception {
+        CircuitBreaker breaker = CircuitBreaker.Builder.named("test")
+                .failureRate(0.5)
+                .window(4, 4)
+                .openFor(500, TimeUnit.MILLISECONDS)
+                .halfOpenCalls(2)
+                .build();
+        RetryHandler handler = RetryHandler.Builder.retryTimes(3)
+                .every(1, TimeUnit.MILLISECONDS)
+                .withBackoffStrategy(RetryHandler.Builder.FIXED)
+                .forExceptions(IOException.class)
+                .withCircuitBreaker(breaker)
+                .build();
+        TestCircuitListener listener = new TestCircuitListener();
+        handler.addRetryListener(listener);
+        assertSame(breaker, handler.getCircuitBreaker());
+
+        CountingCallable ok = new CountingCallable(false);
+        CountingCallable failing = new CountingCallable(true);
+        assertEquals("Done.", handler.execute(ok));
+        assertEquals("Done.", handler.execute(ok));
+        try {
+            handler.execute(failing);
+            fail();
+        } catch(IOException e){
+            // The second failure opens the breaker, so there is no third try.
+            assertEquals(2, failing.called.get());
+        }
+        assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+        assertEquals(0.5, breaker.getFailureRate(), 0.0001);
+
+        try {
+            handler.execute(ok);
+            fail();
+        } catch(CircuitOpenException e){
+            assertEquals(2, ok.called.get());
+        }
+
+        Thread.sleep(550);
+        assertEquals("Done.", handler.execute(ok));
+        assertEquals(CircuitBreaker.State.HALF_OPEN, breaker.getState());
+        assertEquals("Done.", handler.execute(ok));
+        assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+        assertEquals(0, breaker.getFailureRate(), 0.0001);
+
+        assertEquals(Arrays.asList("CLOSED>OPEN", "OPEN>HALF_OPEN", "HALF_OPEN>CLOSED"), listener.transitions);
+        assertTrue(handler.removeRetryListener(listener));
+    }
+
+    @Test
+    public void testHalfOpenFailure() throws Exception {
+        CircuitBreaker breaker = CircuitBreaker.Builder.named("test")
+                .window(2, 1)
+                .openFor(0, TimeUnit.MILLISECONDS)
+                .halfOpenCalls(1)
+                .build();
+        RetryHandler handler = RetryHandler.Builder.retryTimes(1)
+                .every(1, TimeUnit.MILLISECONDS)
+                .withBackoffStrategy(RetryHandler.Builder.FIXED)
+                .forExceptions(IOException.class)
+                .withCircuitBreaker(breaker)
+                .build();
+        TestCircuitListener listener = new TestCircuitListener();
+        handler.addRetryListener(listener);
+        CountingCallable failing = new CountingCallable(true);
+        for(int i = 0; i < 2; i++){
+            try {
+                handler.execute(failing);
+                fail();
+            } catch(IOException e){
+                assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+            }
+        }
+        assertEquals(Arrays.asList("CLOSED>OPEN", "OPEN>HALF_OPEN", "HALF_OPEN>OPEN"), listener.transitions);
+    }
+
+    @Test
+    public void testProbeThrowingError() throws Exception {
+        CircuitBreaker breaker = CircuitBreaker.Builder.named("test")
+                .window(1, 1)
+                .openFor(0, TimeUnit.MILLISECONDS)
+                .halfOpenCalls(1)
+                .build();
+        RetryHandler handler = RetryHandler.Builder.retryTimes(1)
+                .every(1, TimeUnit.MILLISECONDS)
+                .withBackoffStrategy(RetryHandler.Builder.FIXED)
+                .forExceptions(IOException.class)
+                .withCircuitBreaker(breaker)
+                .build();
+        try {
+            handler.execute(new CountingCallable(true));
+            fail();
+        } catch(IOException e){
+            assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+        }
+        try {
+            handler.execute(new Callable<String>() {
+                @Override
+                public String call() throws Exception {
+                    throw new AssertionError("Probe died.");
+                }
+            });
+            fail();
+        } catch(AssertionError e){
+            assertEquals(CircuitBreaker.State.HALF_OPEN, breaker.getState());
+        }
+        assertEquals(2, handler.getStats().getFailures());
+        // The probe slot was given back, so the next call is let through and closes the breaker.
+        assertEquals("Done.", handler.execute(new CountingCallable(false)));
+        assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+    }
+
+    @Test
+    public void testProbeTimeout() throws Exception {
+        CircuitBreaker breaker = CircuitBreaker.Builder.named("test")
+                .window(1, 1)
+                .openFor(0, TimeUnit.MILLISECONDS)
+                .halfOpenCalls(1)
+                .probeTimeout(200, TimeUnit.MILLISECONDS)
+                .build();
+        breaker.record(0, true);
+        assertTrue(breaker.tryAcquire());
+        assertEquals(CircuitBreaker.State.HALF_OPEN, breaker.getState());
+        assertFalse(breaker.tryAcquire());
+        Thread.sleep(250);
+        assertTrue(breaker.tryAcquire());
+        breaker.record(0, false);
+        assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+    }
+
+    @Test
+    public void testSlowCalls() throws Exception {
+        CircuitBreaker breaker = CircuitBreaker.Builder.named("slow")
+                .slowCalls(1, TimeUnit.NANOSECONDS, 1)
+                .window(2, 2)
+                .build();
+        breaker.record(10, false);
+        assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+        breaker.record(10, false);
+        assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+        assertEquals(1, breaker.getSlowCallRate(), 0.0001);
+        assertEquals(0, breaker.getFailureRate(), 0.0001);
+    }
+
+    private static class CountingCallable implements Callable<String> {
+        final AtomicInteger called = new AtomicInteger();
+        final boolean fail;
+
+        CountingCallable(boolean fail) {
+            this.fail = fail;
+        }
+
+        @Override
+        public String call() throws Exception {
+            called.incrementAndGet();
+            if(fail){
+                throw new IOException();
+            }
+            return "Done.";
+        }
+    }
+
+    private static class TestCircuitListener implements RetryHandler.CircuitListener {
+        final List<String> transitions = new ArrayList<String>();
+
+        @Override
+        public void onStateChange(CircuitBreaker breaker, CircuitBreaker.State from, CircuitBreaker.State to) {
+            transitions.add(from + ">" + to);
+        }
+
+        @Override
+        public void onRetry(RetryHandler source, long delayed, TimeUnit timeUnit, Callable callable) {
+        }
+    }
+}
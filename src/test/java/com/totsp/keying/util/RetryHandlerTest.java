@@ -15,14 +15,29 @@
  */
 package com.totsp.keying.util;
 
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ListeningExecutorService;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.SettableFuture;
 import org.junit.Test;
 
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
 import java.io.IOException;
+import java.lang.management.ManagementFactory;
 import java.net.SocketTimeoutException;
 import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
 /**
@@ -36,6 +51,7 @@ public class RetryHandlerTest {
 
 
     @Test
+    @SuppressWarnings("deprecation")
     public void testExponential(){
         long base = 2;
         assertEquals(2, RetryHandler.Builder.EXPONENTIAL.compute(base, 0));
@@ -63,6 +79,29 @@ public class RetryHandlerTest {
     }
 
 
+    @Test
+    public void testCappedStrategies(){
+        RetryHandler.Builder.Strategy capped = RetryHandler.Builder.cappedExponential(1000);
+        assertEquals(250, capped.compute(250, 0));
+        assertEquals(500, capped.compute(250, 1));
+        assertEquals(1000, capped.compute(250, 2));
+        assertEquals(1000, capped.compute(250, 3));
+        assertEquals(1000, capped.compute(250, Integer.MAX_VALUE));
+
+        RetryHandler.Builder.Strategy jittered = RetryHandler.Builder.jittered(capped);
+        RetryHandler.Builder.SequenceStrategy decorrelated =
+                (RetryHandler.Builder.SequenceStrategy) RetryHandler.Builder.decorrelatedJitter(1000);
+        for(int i=0; i < 1000; i++){
+            long value = jittered.compute(250, 1);
+            assertTrue(value >= 0 && value <= 500);
+            value = decorrelated.next(100, 1, 200);
+            assertTrue(value >= 100 && value <= 600);
+            value = decorrelated.next(100, 5, 900);
+            assertTrue(value >= 100 && value <= 1000);
+        }
+        assertEquals(0, jittered.compute(0, 0));
+    }
+
     @Test
     public void testSimpleSuccess() throws Exception {
 
@@ -140,9 +179,267 @@ public class RetryHandlerTest {
         fail();
     }
 
+    @Test
+    public void testAsyncRetrySuccess() throws Exception {
+
+        RetryHandler handler = RetryHandler.Builder.retryTimes(3)
+                .every(50, TimeUnit.MILLISECONDS)
+                .withBackoffStrategy(RetryHandler.Builder.LINEAR)
+                .forExceptions(IOException.class)
+                .build();
+
+        TestCallable callable = new TestCallable(3, IOException.class);
+        TestRetryListener listener = new TestRetryListener(50, 100);
+        handler.addRetryListener(listener);
+        ListeningExecutorService executor = MoreExecutors.sameThreadExecutor();
+        long start = System.nanoTime();
+        ListenableFuture<String> result = handler.executeAsync(callable, executor);
+        assertFalse(result.isDone());
+        assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) < 50);
+        assertEquals("Done.", result.get(5, TimeUnit.SECONDS));
+        assertEquals(3, callable.called);
+        assertEquals(2, listener.retry);
+    }
+
+    @Test
+    public void testAsyncRetryFailure() throws Exception {
+
+        ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+        try {
+            RetryHandler handler = RetryHandler.Builder.retryTimes(3)
+                    .every(10, TimeUnit.MILLISECONDS)
+                    .withBackoffStrategy(RetryHandler.Builder.FIXED)
+                    .forExceptions(IOException.class)
+                    .withScheduler(scheduler)
+                    .build();
+
+            TestCallable callable = new TestCallable(5, IOException.class);
+            ListenableFuture<String> result = handler.executeAsync(callable, MoreExecutors.sameThreadExecutor());
+            try {
+                result.get(5, TimeUnit.SECONDS);
+                fail();
+            } catch(ExecutionException e){
+                assertTrue(e.getCause() instanceof IOException);
+            }
+            assertEquals(3, callable.called);
+
+            callable = new TestCallable(5, NullPointerException.class);
+            result = handler.executeAsync(callable, MoreExecutors.sameThreadExecutor());
+            try {
+                result.get(5, TimeUnit.SECONDS);
+                fail();
+            } catch(ExecutionException e){
+                assertTrue(e.getCause() instanceof NullPointerException);
+            }
+            assertEquals(1, callable.called);
+        } finally {
+            scheduler.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testAsyncFutures() throws Exception {
+
+        RetryHandler handler = RetryHandler.Builder.retryTimes(3)
+                .every(10, TimeUnit.MILLISECONDS)
+                .withBackoffStrategy(RetryHandler.Builder.FIXED)
+                .forExceptions(IOException.class)
+                .build();
+
+        final AtomicInteger called = new AtomicInteger();
+        ListenableFuture<String> result = handler.executeAsync(new Callable<ListenableFuture<String>>() {
+            @Override
+            public ListenableFuture<String> call() throws Exception {
+                if(called.incrementAndGet() == 1){
+                    throw new IOException();
+                }
+                if(called.get() == 2){
+                    return Futures.immediateFailedFuture(new IOException());
+                }
+                return Futures.immediateFuture("Done.");
+            }
+        });
+        assertEquals("Done.", result.get(5, TimeUnit.SECONDS));
+        assertEquals(3, called.get());
+    }
+
+    @Test
+    public void testAsyncFailingListener() throws Exception {
+
+        RetryHandler handler = RetryHandler.Builder.retryTimes(3)
+                .every(10, TimeUnit.MILLISECONDS)
+                .withBackoffStrategy(RetryHandler.Builder.FIXED)
+                .forExceptions(IOException.class)
+                .build();
+        handler.addRetryListener(new RetryHandler.RetryListener() {
+            @Override
+            public void onRetry(RetryHandler source, long delayed, TimeUnit timeUnit, Callable callable) {
+                throw new IllegalStateException("Listener failed.");
+            }
+        });
+
+        TestCallable callable = new TestCallable(2, IOException.class);
+        ListenableFuture<String> result = handler.executeAsync(callable, MoreExecutors.sameThreadExecutor());
+        assertEquals("Done.", result.get(5, TimeUnit.SECONDS));
+        assertEquals(2, callable.called);
+    }
+
+    @Test
+    public void testAsyncCancel() throws Exception {
+
+        RetryHandler handler = RetryHandler.Builder.retryTimes(3)
+                .every(10, TimeUnit.MILLISECONDS)
+                .withBackoffStrategy(RetryHandler.Builder.FIXED)
+                .forExceptions(IOException.class)
+                .build();
+
+        final SettableFuture<String> inFlight = SettableFuture.create();
+        ListenableFuture<String> result = handler.executeAsync(new Callable<ListenableFuture<String>>() {
+            @Override
+            public ListenableFuture<String> call() throws Exception {
+                return inFlight;
+            }
+        });
+        assertTrue(result.cancel(true));
+        assertTrue(inFlight.isCancelled());
+        assertEquals(1, handler.getStats().getFailures());
+    }
+
+    @Test
+    public void testRetryBudget() throws Exception {
+
+        RetryHandler handler = RetryHandler.Builder.retryTimes(3)
+                .every(1, TimeUnit.MILLISECONDS)
+                .withBackoffStrategy(RetryHandler.Builder.FIXED)
+                .forExceptions(IOException.class)
+                .withRetryBudget(0.5, 2)
+                .build();
+
+        // The first call spends both tokens.
+        TestCallable callable = new TestCallable(3, IOException.class);
+        assertEquals("Done.", handler.execute(callable));
+        assertEquals(3, callable.called);
+
+        // The second deposits half a token: not enough to retry.
+        callable = new TestCallable(2, IOException.class);
+        try {
+            handler.execute(callable);
+            fail();
+        } catch(IOException e){
+            assertEquals(1, callable.called);
+        }
+
+        // The third brings it to a whole one.
+        callable = new TestCallable(2, IOException.class);
+        assertEquals("Done.", handler.execute(callable));
+        assertEquals(2, callable.called);
+
+        RetryBudget budget = new RetryBudget(0.1, 1);
+        assertTrue(budget.withdraw());
+        assertFalse(budget.withdraw());
+        for(int i=0; i < 100; i++){
+            budget.deposit();
+        }
+        assertEquals(1.0, budget.getTokens(), 0.0001);
+    }
+
+    @Test
+    public void testDelayLimits() throws Exception {
+
+        RetryHandler handler = RetryHandler.Builder.retryTimes(5)
+                .every(10, TimeUnit.MILLISECONDS)
+                .withBackoffStrategy(RetryHandler.Builder.LINEAR)
+                .forExceptions(IOException.class)
+                .withMaxTotalDelay(35, TimeUnit.MILLISECONDS)
+                .build();
+
+        TestCallable callable = new TestCallable(5, IOException.class);
+        handler.addRetryListener(new TestRetryListener(10, 20));
+        try {
+            handler.execute(callable);
+            fail();
+        } catch(IOException e){
+            assertEquals(3, callable.called);
+        }
+
+        handler = RetryHandler.Builder.retryTimes(5)
+                .every(10, TimeUnit.MILLISECONDS)
+                .withBackoffStrategy(RetryHandler.Builder.FIXED)
+                .forExceptions(IOException.class)
+                .withDeadline(new RetryHandler.Deadline() {
+                    @Override
+                    public long remainingMillis() {
+                        return 5;
+                    }
+                })
+                .build();
+        callable = new TestCallable(2, IOException.class);
+        try {
+            handler.execute(callable);
+            fail();
+        } catch(IOException e){
+            assertEquals(1, callable.called);
+        }
+        ListenableFuture<String> result = handler.executeAsync(new TestCallable(2, IOException.class),
+                MoreExecutors.sameThreadExecutor());
+        try {
+            result.get(5, TimeUnit.SECONDS);
+            fail();
+        } catch(ExecutionException e){
+            assertTrue(e.getCause() instanceof IOException);
+        }
+    }
+
+    @Test
+    public void testStats() throws Exception {
+
+        RetryHandler handler = RetryHandler.Builder.retryTimes(3)
+                .every(10, TimeUnit.MILLISECONDS)
+                .withBackoffStrategy(RetryHandler.Builder.LINEAR)
+                .forExceptions(IOException.class)
+                .build();
+
+        assertEquals("Done.", handler.execute(new TestCallable(1, IOException.class)));
+        assertEquals("Done.", handler.execute(new TestCallable(3, IOException.class)));
+        try {
+            handler.execute(new TestCallable(2, NullPointerException.class));
+            fail();
+        } catch(NullPointerException e){
+            // expected
+        }
+        assertEquals("Done.", handler.executeAsync(new TestCallable(2, IOException.class),
+                MoreExecutors.sameThreadExecutor()).get(5, TimeUnit.SECONDS));
+
+        RetryStats stats = handler.getStats();
+        assertEquals(4, stats.getCalls());
+        assertEquals(7, stats.getAttempts());
+        assertEquals(3, stats.getSuccesses());
+        assertEquals(2, stats.getSuccessesAfterRetry());
+        assertEquals(1, stats.getFailures());
+        assertEquals(0, stats.getRejections());
+        assertEquals(40, stats.getSleepTime(TimeUnit.MILLISECONDS));
+        assertArrayEquals(new long[]{2, 1, 1}, stats.getAttemptHistogram());
+        long[] sleeps = stats.getSleepHistogram();
+        assertEquals(2, sleeps[0]);
+        assertEquals(1, sleeps[1]);
+        assertEquals(1, sleeps[2]);
+        assertEquals(Long.valueOf(3), stats.getExceptionCounts().get(IOException.class));
+        assertEquals(Long.valueOf(1), stats.getExceptionCounts().get(NullPointerException.class));
+
+        ObjectName name = handler.registerMBean("test");
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            assertEquals(4L, server.getAttribute(name, "Calls"));
+            assertEquals(40L, server.getAttribute(name, "SleepMillis"));
+            assertEquals(null, server.getAttribute(name, "CircuitState"));
+        } finally {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(name);
+        }
+    }
+
     private class TestCallable implements Callable<String>{
 
-        int called = 0;
+        volatile int called = 0;
         final int succeedOn;
         final Class<? extends Exception> throwThis;
 
@@ -165,7 +462,7 @@ public class RetryHandlerTest {
 
     private class TestRetryListener implements RetryHandler.RetryListener {
         private final long[] expectedTimes;
-        int retry = 0;
+        volatile int retry = 0;
 
         private TestRetryListener(long... expectedTimes) {
             this.expectedTimes = expectedTimes;